@@ -0,0 +1,175 @@
+package model;
+
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.media.RingtoneManager;
+import android.support.v4.app.NotificationCompat;
+import android.util.Log;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import mindyourcar.mindyourcar.R;
+import utility.MetricsRegistry;
+import utility.Settings;
+import view.MainActivity;
+
+/**
+ * Stadio che decide se un allarme "macchina non chiusa" diventa una notifica.
+ *
+ * Un link che cade e si riconnette di continuo fa valutare la chiusura ad ogni disconnessione: senza filtro l'utente
+ * riceverebbe una notifica con suono ogni volta. Per ogni device l'allarme viene quindi:
+ * - deduplicato: finchè l'allarme precedente non è stato risolto (device di nuovo connesso o macchina chiusa) uno
+ *   nuovo non viene notificato
+ * - limitato: dopo una notifica ne passa al massimo un'altra ogni windowMs, anche se nel frattempo l'allarme è stato
+ *   risolto
+ *
+ * Lo stato degli allarmi vive in memoria. Il builder della notifica (icona, testi, suono, intent) viene preparato una
+ * volta sola e riusato; il file che segnala a MainActivity che è stata mandata una notifica viene scritto su un thread
+ * dedicato, una sola volta per più notifiche ravvicinate.
+ */
+public final class AlarmNotifier {
+
+    private final Context context;
+    private final long windowMs;
+    private final Map<String, AlarmState> alarms = new HashMap<>(); // protetta dal lock del notifier
+    private final ThreadPoolExecutor writer;
+    private final Runnable writeTask = new Runnable() {
+        @Override
+        public void run() {
+            writeNotificationFile();
+        }
+    };
+    private final MetricsRegistry.Counter delivered;
+    private final MetricsRegistry.Counter suppressedDuplicate;
+    private final MetricsRegistry.Counter suppressedRateLimited;
+    private NotificationCompat.Builder builder; // creato alla prima notifica
+    private boolean writeScheduled;
+
+    /**
+     * @param context
+     * @param windowMs intervallo minimo tra due notifiche dello stesso device
+     * @param metrics registro in cui contare gli allarmi notificati e soppressi
+     */
+    public AlarmNotifier(final Context context, final long windowMs, final MetricsRegistry metrics) {
+        this.context = context.getApplicationContext();
+        this.windowMs = windowMs;
+        this.delivered = metrics.counter("alarm.delivered");
+        this.suppressedDuplicate = metrics.counter("alarm.suppressed.duplicate");
+        this.suppressedRateLimited = metrics.counter("alarm.suppressed.rate_limited");
+
+        // Un solo thread, che termina quando non ci sono scritture da fare
+        this.writer = new ThreadPoolExecutor(1, 1, 5, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        this.writer.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Segnala che la macchina non è stata chiusa: manda la notifica se l'allarme non è un duplicato e se la finestra
+     * del device è trascorsa.
+     * @param address indirizzo del device
+     * @param time istante dell'allarme in millisecondi
+     * @return true se la notifica è stata mandata
+     */
+    public synchronized boolean raise(final String address, final long time) {
+        AlarmState state = this.alarms.get(address);
+        if(state == null) {
+            state = new AlarmState();
+            this.alarms.put(address, state);
+        }
+
+        if(state.active) {
+            this.suppressedDuplicate.increment();
+            Log.d("AndroidCar", "Allarme di " + address + " già notificato");
+            return false;
+        }
+        if(state.lastDelivered != 0 && time - state.lastDelivered < this.windowMs) {
+            this.suppressedRateLimited.increment();
+            Log.d("AndroidCar", "Allarme di " + address + " soppresso, ultima notifica " + (time - state.lastDelivered) + " ms fa");
+            return false;
+        }
+
+        state.active = true;
+        state.lastDelivered = time;
+        this.delivered.increment();
+        this.post(address, time);
+        return true;
+    }
+
+    /**
+     * Segnala che l'allarme del device è risolto (device di nuovo connesso o macchina chiusa): il prossimo allarme
+     * non è un duplicato, ma resta soggetto alla finestra.
+     * @param address indirizzo del device
+     */
+    public synchronized void resolve(final String address) {
+        final AlarmState state = this.alarms.get(address);
+        if(state != null) {
+            state.active = false;
+        }
+    }
+
+    public long getDelivered() {
+        return this.delivered.get();
+    }
+
+    public long getSuppressed() {
+        return this.suppressedDuplicate.get() + this.suppressedRateLimited.get();
+    }
+
+    /**
+     * Completa le scritture su file in corso e termina il thread di scrittura.
+     */
+    public void shutdown() {
+        this.writer.shutdown();
+    }
+
+    /* Va chiamato tenendo il lock: il builder non è thread-safe */
+    private void post(final String address, final long time) {
+        if(this.builder == null) {
+            final PendingIntent pi = PendingIntent.getActivity(this.context, 1, new Intent(this.context, MainActivity.class), 0);
+            this.builder = new NotificationCompat.Builder(this.context)
+                    .setSmallIcon(R.mipmap.ic_launcher)
+                    .setContentTitle("Mind Your Car")
+                    .setContentText("Non hai chiuso la macchina!")
+                    .setSound(RingtoneManager.getDefaultUri(RingtoneManager.TYPE_NOTIFICATION))
+                    .setAutoCancel(true)
+                    .setContentIntent(pi);
+        }
+
+        // Una notifica per device
+        final NotificationManager notificationManager =
+                (NotificationManager) this.context.getSystemService(Context.NOTIFICATION_SERVICE);
+        notificationManager.notify(address.hashCode(), this.builder.setWhen(time).build());
+
+        if(!this.writeScheduled) {
+            this.writeScheduled = true;
+            this.writer.execute(this.writeTask);
+        }
+    }
+
+    /* Eseguito sul thread di scrittura: segna su file che è stata mandata una notifica, letto da MainActivity */
+    private void writeNotificationFile() {
+        synchronized (this) {
+            this.writeScheduled = false;
+        }
+
+        try {
+            final FileOutputStream outputStream = this.context.openFileOutput(Settings.NOTIFICATION_FILENAME, Context.MODE_PRIVATE);
+            outputStream.write(1);
+            outputStream.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static final class AlarmState {
+        private boolean active; // notificato e non ancora risolto
+        private long lastDelivered; // istante dell'ultima notifica, 0 se non ce ne sono state
+    }
+}
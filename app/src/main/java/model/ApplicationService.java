@@ -1,25 +1,33 @@
 package model;
 
-import android.app.IntentService;
-import android.app.NotificationManager;
-import android.app.PendingIntent;
+import android.app.Service;
+import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.media.RingtoneManager;
-import android.net.Uri;
+import android.os.Binder;
 import android.os.Bundle;
-import android.support.v4.app.NotificationCompat;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
-import java.io.FileOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
 import java.io.IOException;
-import mindyourcar.mindyourcar.R;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import utility.DeviceRegistry;
+import utility.MetricsRegistry;
 import utility.Settings;
 import utility.Utility;
-import view.MainActivity;
 import static model.Event.CAR_CLOSED;
 import static model.Event.CAR_NOT_CLOSED;
 import static model.MyIntentFilter.CLOSE_CONNECTION;
@@ -32,124 +40,217 @@ import static model.MyIntentFilter.STOP_SERVICE;
  * Una volta avviato continua a lavorare in background finchè l'applicazione non viene chiusa.
  * Come ogni service viene attivato con un Intent esplicito, nell'Intent può essere inserito un indirizzo fisico di un device
  * attraverso il metodo Intent.putStringExtra("address", stringaIndirizzo). Il Service si connetterà quindi a quell'indirizzo
+ * Se il service è già attivo un nuovo Intent con un indirizzo equivale ad un SET_DEVICE.
  * Inoltre resta in ascolto di tre Intent attraverso un LocalBroadcastReceiver:
  *
- * - SET_DEVICE, permette connettersi ad un altro dispositivo. Nell'Intent va inserito l'indirizzo del dispositivo usando il metodo
- * Intent.putStringExtra("address", stringaIndirizzo)
+ * - SET_DEVICE, aggiunge un device da monitorare. Nell'Intent va inserito l'indirizzo del dispositivo usando il metodo
+ * Intent.putStringExtra("address", stringaIndirizzo). I device già monitorati continuano ad esserlo
  *
- * - CLOSE_CONNECTION, chiude la connessione bluetooth e interrompe l'applicazione.
+ * - CLOSE_CONNECTION, chiude la connessione bluetooth con il device indicato da putStringExtra("address", ...)
+ * oppure, se l'indirizzo manca, con tutti i device, e interrompe l'applicazione.
  *
  * - STOP_SERVICE, interrompe la computazione, chiude la connessione e termina il service.
  *
  * N.B : Questi Intent devono essere mandati usando il metodo LocalBroadcastManager.sendBroadcast(intent) in quanto
  *       questo Service utilizza un receiver locale
+ *
+ * I comandi vengono accodati come messaggi ad un HandlerThread dedicato ed eseguiti appena arrivano:
+ * quando non ci sono comandi il thread resta bloccato sulla coda senza risvegli periodici.
+ *
+ * Ogni device monitorato ha un DeviceMonitor con il proprio stato (ConnectionHandler, ClosureEvaluator, registro e
+ * storico). Le connessioni di tutti i device girano su un unico ConnectionScheduler, con un worker per device
+ * perchè un handler connesso occupa il suo worker finchè la connessione non cade.
+ *
+ * Gli eventi verso la GUI passano da un EventChannel per device: le probabilità ricevute (MESSAGE_RECEIVED) vengono
+ * conflate, quindi se la GUI è lenta riceve solo la più recente, mentre gli altri eventi vengono sempre consegnati.
+ * Ogni Intent mandato alla GUI contiene l'indirizzo del device in getStringExtra("address").
+ *
+ * Tutte le probabilità ricevute e gli eventi della connessione vengono aggiunti al TelemetryLog del device, aperto sul
+ * thread dei comandi, per poter ricostruire a posteriori cosa è successo prima di un allarme, e alla TelemetryHistory,
+ * che calcola le statistiche per finestre di tempo. Un'activity che si collega al service con bindService() riceve
+ * un LocalBinder da cui interrogare lo storico.
+ *
+ * Con Settings.CAPTURE_ENABLED i byte ricevuti da ogni device vengono anche registrati da un CaptureTransport, per
+ * riprodurli su una JVM con benchmark.ReplayHarness.
+ *
+ * Le notifiche di macchina non chiusa passano dall'AlarmNotifier, che le deduplica e ne limita la frequenza per device.
+ *
+ * Le metriche della pipeline (byte letti, frame, errori, latenze di connessione e di elaborazione, stato dei worker e
+ * delle code, allarmi) si leggono con "adb shell dumpsys activity service ApplicationService".
  */
-public class ApplicationService extends IntentService {
+public class ApplicationService extends Service {
 
-    private ConnectionHandlerThread connectionHandlerThread;
-    private final MyBroadcastReceiver myBroadcastReceiver = new MyBroadcastReceiver();
-    private int actualProbability = -1;
-    private long lastUpdateTime;
-    private boolean stop;
+    private static final MyIntentFilter[] COMMANDS = MyIntentFilter.values();
 
-    public ApplicationService() {
-        super("ApplicationService");
-    }
+    // Device monitorati per indirizzo: modificata solo dal thread dei comandi, letta anche dal main thread
+    private final Map<String, DeviceMonitor> monitors = new ConcurrentHashMap<>();
+    // Storici dei device per indirizzo, mappati dal file una volta sola e riusati se il device torna monitorato:
+    // usata solo dal thread dei comandi
+    private final Map<String, TelemetryHistory> telemetryHistories = new HashMap<>();
+    private final MyBroadcastReceiver myBroadcastReceiver = new MyBroadcastReceiver();
+    private final MyBluetoothReceiver myBluetoothReceiver = new MyBluetoothReceiver();
+    private final IBinder binder = new LocalBinder();
+    private final MetricsRegistry metrics = MetricsRegistry.getInstance();
+    private final MetricsRegistry.Counter carClosedAlarms = this.metrics.counter("alarm.car_closed");
+    private final MetricsRegistry.Counter carNotClosedAlarms = this.metrics.counter("alarm.car_not_closed");
+    private HandlerThread commandThread;
+    private Handler commandHandler;
+    private ConnectionScheduler scheduler;
+    private Executor mainThreadExecutor;
+    private AlarmNotifier alarmNotifier;
 
     @Override
-    protected void onHandleIntent(final Intent intent) {
+    public void onCreate() {
+        super.onCreate();
         Log.d("AndroidCar", "service partito");
+
+        this.commandThread = new HandlerThread("ApplicationService");
+        this.commandThread.start();
+        this.commandHandler = new Handler(this.commandThread.getLooper(), new MyCommandHandler());
+        this.scheduler = new ConnectionScheduler();
+        this.mainThreadExecutor = new MainThreadExecutor();
+        this.alarmNotifier = new AlarmNotifier(this, Settings.ALARM_WINDOW_MS, this.metrics);
+        this.setupMetrics();
         this.setupBroadcastReceiver();
+    }
 
-        final String address = intent.getStringExtra("address");
+    @Override
+    public int onStartCommand(final Intent intent, final int flags, final int startId) {
+        final String address = intent == null? null : intent.getStringExtra("address");
 
         if(address != null && !address.isEmpty()){
-            this.startApplicationService(address);
-        }
-
-        while (!stop) {
-            try {
-                Thread.sleep(200);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
+            this.sendCommand(SET_DEVICE, address);
         }
 
-        LocalBroadcastManager.getInstance(getApplicationContext()).unregisterReceiver(this.myBroadcastReceiver);
-        this.stopComputing();
-        stopSelf();
+        return START_NOT_STICKY;
     }
 
-    public void notifyEvent(Event event, String message) {
-        switch (event) {
-            case MESSAGE_RECEIVED:
-                try {
-                    this.actualProbability = Integer.parseInt(message);
-                }catch (Exception e) {e.printStackTrace();}
+    @Override
+    public IBinder onBind(final Intent intent) {
+        return this.binder;
+    }
 
-                this.lastUpdateTime = System.currentTimeMillis();
-                this.sendBroadcast(event, message);
-                break;
+    /* Chiamato da dumpsys su un thread del binder: le metriche si possono leggere da qualsiasi thread */
+    @Override
+    protected void dump(final FileDescriptor fd, final PrintWriter writer, final String[] args) {
+        this.metrics.dump(writer);
+    }
 
-            case DISCONNECTED: this.valutaChiusuraMacchina(); break;
-            default: this.sendBroadcast(event, message); break;
-        }
+    @Override
+    public void onDestroy() {
+        LocalBroadcastManager.getInstance(getApplicationContext()).unregisterReceiver(this.myBroadcastReceiver);
+        this.unregisterReceiver(this.myBluetoothReceiver);
+
+        // Fermo i device sul thread dei comandi prima di qualsiasi altro comando ancora in coda, poi lo termino
+        this.commandHandler.postAtFrontOfQueue(new Runnable() {
+            @Override
+            public void run() {
+                stopMonitoring(null);
+                scheduler.shutdown();
+                alarmNotifier.shutdown();
+                // I gauge del service non devono restare nel registro del processo dopo la sua distruzione
+                metrics.removeAll("devices.");
+                metrics.removeAll("scheduler.");
+                commandThread.quit();
+            }
+        });
+        super.onDestroy();
     }
 
     private void startApplicationService(final String address) {
+        final DeviceMonitor monitor = this.monitors.get(address);
 
-        // Se sono già connesso al dispositivo non interrompo la connessione
-        if(this.connectionHandlerThread != null && this.connectionHandlerThread.isConnectedWith(address)) {
-            Log.d("AndroidCar", "Già connesso al dispositivo");
+        if(monitor == null) {
+            final BluetoothDevice device = Utility.getDeviceByAddress(getApplicationContext(), address);
+            if(device == null) {
+                this.deviceNotFound(address); // Prima di creare il monitor, che registra le sue metriche
+                return;
+            }
+            final DeviceMonitor newMonitor = new DeviceMonitor(address);
+            this.scheduler.setWorkers(Math.max(ConnectionScheduler.DEFAULT_WORKERS, this.monitors.size() + 1));
+            newMonitor.start(new RfcommTransport(device)); // Prima di renderlo visibile ai receiver sul main thread
+            this.monitors.put(address, newMonitor);
+        } else if(monitor.handler.isStopped()) {
+            // Fermato (per esempio perchè il bluetooth era disattivato): riparto mantenendo la stima del device
+            final BluetoothDevice device = Utility.getDeviceByAddress(getApplicationContext(), address);
+            if(device == null) {
+                this.deviceNotFound(address); // Disaccoppiato nel frattempo: il monitor resta fermo
+                return;
+            }
+            monitor.start(new RfcommTransport(device));
         } else {
-            this.stopComputing();
-            final BluetoothDevice device = Utility.getDeviceByAddress(address);
-            this.connectionHandlerThread = new ConnectionHandlerThread(device, this);
-            this.connectionHandlerThread.start();
+            // Se sono già connesso o sto già tentando non interrompo niente, al massimo anticipo il prossimo tentativo
+            Log.d("AndroidCar", "Device già monitorato");
+            monitor.handler.wakeUp();
         }
     }
 
-    /* Per mandare un Intent implicito attraverso il LocalBroadcastManager in modo più semplice. */
-    private void sendBroadcast(final Event event, final String s) {
-        final Intent intent = new Intent(event.name());
-        final Bundle bundle = new Bundle();
-        bundle.putString("message", s);
-        intent.putExtras(bundle);
-        LocalBroadcastManager.getInstance(getApplicationContext()).sendBroadcast(intent);
+    /* Il device non è (più) tra quelli accoppiati: non lo monitoro e lo segnalo alla GUI */
+    private void deviceNotFound(final String address) {
+        Log.d("AndroidCar", "Device " + address + " non trovato tra quelli accoppiati");
+        this.mainThreadExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                deliverBroadcast(address, Event.DEVICE_NOT_FOUND, "");
+            }
+        });
     }
 
-    private void stopComputing() {
-        if(this.connectionHandlerThread != null) {
-            Log.d("AndroidCar", "Termino connectionHandler");
-            this.connectionHandlerThread.stopComputing();
+    /* Smette di monitorare il device con l'indirizzo indicato, o tutti se address è null */
+    private void stopMonitoring(final String address) {
+        for(DeviceMonitor monitor : this.monitors.values()) {
+            if(address == null || address.equals(monitor.address)) {
+                Log.d("AndroidCar", "Termino connectionHandler di " + monitor.address);
+                this.monitors.remove(monitor.address);
+                monitor.stop();
+            }
         }
+        this.scheduler.setWorkers(Math.max(ConnectionScheduler.DEFAULT_WORKERS, this.monitors.size()));
     }
 
-    private void valutaChiusuraMacchina() {
-        Log.d("AndroidCar", "Valuto chiusura macchina");
-
-        // Probabilità attuale minore di quella minima ---> lancio allarme
-        if(this.actualProbability <= Utility.getMinimumProbability(getApplicationContext())) {
-            Log.d("AndroidCar", "Non hai chiuso la macchina!");
-            this.notifyEvent(CAR_NOT_CLOSED, Integer.toString(this.actualProbability));
-            this.sendNotification();
+    /* Per mandare un Intent implicito attraverso il LocalBroadcastManager in modo più semplice.
+       Viene invocato sul main thread dall'EventChannel, quindi la consegna è sincrona: finchè la GUI non ha gestito
+       l'Intent non ne parte un altro e i sample arrivati nel frattempo vengono conflati. */
+    private void deliverBroadcast(final String address, final Event event, final String s) {
+        final Intent intent = new Intent(event.name());
+        final Bundle bundle = new Bundle();
+        bundle.putString("message", s);
+        bundle.putString("address", address);
+        intent.putExtras(bundle);
+        LocalBroadcastManager.getInstance(getApplicationContext()).sendBroadcastSync(intent);
+    }
 
-        } else {
-            final long time = System.currentTimeMillis() - this.lastUpdateTime;
-
-            if(time < 15000) {
-                this.actualProbability += 35;
-            } else if(time > 15000 && time < 30000){
-                this.actualProbability += 25;
-            } else if(time > 30000 && time < 45000){
-                this.actualProbability += 15;
-            } else {
-                this.actualProbability += 5;
+    private void setupMetrics() {
+        this.metrics.gauge("devices.monitored", new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                return monitors.size();
             }
-
-            Log.d("AndroidCar", "Hai chiuso la macchina al " + this.actualProbability + "%");
-            this.notifyEvent(CAR_CLOSED, this.actualProbability + "");
-        }
+        });
+        this.metrics.gauge("devices.bonded_reloads", new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                return DeviceRegistry.getInstance(getApplicationContext()).getReloads();
+            }
+        });
+        this.metrics.gauge("scheduler.workers.active", new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                return scheduler.getActiveWorkers();
+            }
+        });
+        this.metrics.gauge("scheduler.workers.max", new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                return scheduler.getWorkers();
+            }
+        });
+        this.metrics.gauge("scheduler.tasks.queued", new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                return scheduler.getQueuedTasks();
+            }
+        });
     }
 
     private void setupBroadcastReceiver() {
@@ -157,58 +258,361 @@ public class ApplicationService extends IntentService {
         final LocalBroadcastManager localBroadcastManager = LocalBroadcastManager.getInstance(getApplicationContext());
         localBroadcastManager.registerReceiver(this.myBroadcastReceiver, new IntentFilter(SET_DEVICE.name()));
         localBroadcastManager.registerReceiver(this.myBroadcastReceiver, new IntentFilter(CLOSE_CONNECTION.name()));
+        localBroadcastManager.registerReceiver(this.myBroadcastReceiver, new IntentFilter(STOP_SERVICE.name()));
+
+        // Intent di sistema per svegliare subito i ConnectionHandler quando cambia lo stato del bluetooth
+        final IntentFilter bluetoothFilter = new IntentFilter(BluetoothAdapter.ACTION_STATE_CHANGED);
+        bluetoothFilter.addAction(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
+        bluetoothFilter.addAction(BluetoothDevice.ACTION_ACL_CONNECTED);
+        this.registerReceiver(this.myBluetoothReceiver, bluetoothFilter);
+    }
+
+    /* Accoda un comando al thread del service, che lo esegue appena possibile */
+    private void sendCommand(final MyIntentFilter command, final String address) {
+        this.commandHandler.obtainMessage(command.ordinal(), address).sendToTarget();
     }
 
-    private void sendNotification() {
-        final NotificationManager notificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
-        final Intent i = new Intent(this, MainActivity.class);
-        final PendingIntent pi = PendingIntent.getActivity(this, 1, i, 0);
+    /**
+     * Stato di un device monitorato. Riceve gli eventi del suo ConnectionHandler (sul worker dello scheduler che lo
+     * sta eseguendo) e li inoltra alla GUI con l'indirizzo del device.
+     */
+    private final class DeviceMonitor implements ConnectionListener {
+        private final String address;
+        // Sopravvive alle riconnessioni: se la connessione cade di nuovo prima del primo sample la decisione usa la
+        // stima precedente invece di lanciare l'allarme per mancanza di dati
+        private final ClosureTracker closureTracker = new ClosureTracker(ClosureEvaluator.fromSettings());
+        private final EventChannel eventChannel;
+        private final ConnectionMetrics connectionMetrics;
+        private volatile ConnectionHandler handler;
+        private volatile TelemetryLog telemetryLog; // null finchè non è stato aperto e dopo stop()
+        private volatile TelemetryHistory telemetryHistory; // null insieme a telemetryLog
+
+        DeviceMonitor(final String address) {
+            this.address = address;
+            this.eventChannel = new EventChannel(mainThreadExecutor, new MyEventConsumer(address));
+            this.connectionMetrics = new ConnectionMetrics(metrics, "device." + address.replace(":", "") + ".");
+            metrics.gauge(this.connectionMetrics.prefix + "events.queued", new MetricsRegistry.Gauge() {
+                @Override
+                public long getValue() {
+                    return eventChannel.getQueueDepth();
+                }
+            });
+            metrics.gauge(this.connectionMetrics.prefix + "samples.coalesced", new MetricsRegistry.Gauge() {
+                @Override
+                public long getValue() {
+                    return eventChannel.getSamplesCoalesced();
+                }
+            });
+        }
+
+        /* Eseguito sul thread dei comandi: apre il registro (se non è già aperto) e fa partire un nuovo handler */
+        void start(final Transport transport) {
+            if(this.telemetryLog == null) {
+                this.openTelemetryLog();
+            }
+            final Transport source = !Settings.CAPTURE_ENABLED? transport : new CaptureTransport(transport,
+                    new File(new File(getFilesDir(), Settings.CAPTURE_DIRECTORY), this.address.replace(":", "")),
+                    Settings.CAPTURE_MAX_FILES);
+            this.handler = new ConnectionHandler(source, this, scheduler, new ReconnectPolicy(), this.connectionMetrics);
+            this.handler.setLiveness(Settings.HEARTBEAT_INTERVAL_MS, Settings.LIVENESS_TIMEOUT_MS);
+            this.handler.start();
+        }
+
+        /* Eseguito sul thread dei comandi */
+        void stop() {
+            final ConnectionHandler handler = this.handler;
+            if(handler != null) {
+                handler.stopComputing();
+            }
+
+            // Prima di chiudere stacco registro e storico insieme: quello che il worker riceve ancora non finisce in
+            // nessuno dei due
+            final TelemetryLog log = this.telemetryLog;
+            final TelemetryHistory history = this.telemetryHistory;
+            this.telemetryLog = null;
+            this.telemetryHistory = null;
+            if(log != null) {
+                log.close();
+            }
+            if(history != null) {
+                history.force();
+            }
+            metrics.removeAll(this.connectionMetrics.prefix);
+
+            Log.d("AndroidCar", this.address + " probabilità pubblicate: " + this.eventChannel.getSamplesPublished()
+                    + ", conflate: " + this.eventChannel.getSamplesCoalesced());
+        }
+
+        @Override
+        public void notifyEvent(Event event, String message) {
+            switch (event) {
+                case MESSAGE_RECEIVED:
+                    final long now = System.currentTimeMillis();
+                    final int probability = this.closureTracker.onMessage(message, now);
+                    if(probability >= 0) {
+                        this.recordSample(now, probability);
+                    }
+
+                    this.sendBroadcast(event, message);
+                    break;
+
+                case DISCONNECTED:
+                    this.recordEvent(System.currentTimeMillis(), event, 0);
+                    this.valutaChiusuraMacchina();
+                    break;
+
+                case CONNECTION_ESTABLISHED:
+                    alarmNotifier.resolve(this.address); // Il device è di nuovo raggiungibile
+                    this.recordEvent(System.currentTimeMillis(), event, this.closureTracker.getProbability());
+                    this.sendBroadcast(event, message);
+                    break;
+
+                default:
+                    this.recordEvent(System.currentTimeMillis(), event, this.closureTracker.getProbability());
+                    this.sendBroadcast(event, message);
+                    break;
+            }
+        }
+
+        /**
+         * Notifica la ricezione di una probabilità di chiusura già convertita in intero dal ConnectionHandler.
+         * Equivale a notifyEvent(MESSAGE_RECEIVED, message) con un messaggio numerico, ma evita il parsing della stringa.
+         * @param probability
+         */
+        @Override
+        public void notifyProbability(final int probability) {
+            final long now = System.currentTimeMillis();
+
+            this.closureTracker.onProbability(probability, now);
+            this.recordSample(now, probability);
+            this.eventChannel.publishSample(probability);
+        }
+
+        /**
+         * Notifica un frame di telemetria: la probabilità, se presente, segue la stessa strada di notifyProbability,
+         * gli altri campi aggiornano l'ultimo stato noto della macchina.
+         * @param telemetry
+         */
+        @Override
+        public void notifyTelemetry(final Telemetry telemetry) {
+            final long now = System.currentTimeMillis();
+            final int probability = this.closureTracker.onTelemetry(telemetry, now);
+            if(probability >= 0) {
+                this.recordSample(now, probability);
+                this.eventChannel.publishSample(probability);
+            }
+            telemetry.recycle();
+        }
+
+        private void valutaChiusuraMacchina() {
+            Log.d("AndroidCar", "Valuto chiusura macchina " + this.address + ", ultimo stato: "
+                    + this.closureTracker.describeCarState());
+
+            final int minimumProbability = Utility.getMinimumProbability(getApplicationContext());
+
+            if(!this.closureTracker.onDisconnect(System.currentTimeMillis(), minimumProbability)) {
+                Log.d("AndroidCar", "Non hai chiuso la macchina!");
+                carNotClosedAlarms.increment();
+                this.notifyEvent(CAR_NOT_CLOSED, Integer.toString(this.closureTracker.getProbability()));
+                alarmNotifier.raise(this.address, System.currentTimeMillis());
+
+            } else {
+                Log.d("AndroidCar", "Hai chiuso la macchina al " + this.closureTracker.getProbability() + "%");
+                carClosedAlarms.increment();
+                alarmNotifier.resolve(this.address);
+                this.notifyEvent(CAR_CLOSED, this.closureTracker.getProbability() + "");
+            }
+        }
+
+        /* Accoda l'evento nell'EventChannel, che lo consegnerà alla GUI senza mai scartarlo. */
+        private void sendBroadcast(final Event event, final String s) {
+            this.eventChannel.publishEvent(event, s);
+        }
 
-        // Creo la notifca
-        NotificationCompat.Builder notifica = new NotificationCompat.Builder(this)
-                .setSmallIcon(R.mipmap.ic_launcher)
-                .setContentTitle("Mind Your Car")
-                .setContentText("Non hai chiuso la macchina!");
+        /* Apre il registro del device e ricostruisce lo storico, o riprende quello già mappato se il device era già
+           stato monitorato; i sample arrivati nel frattempo non finiscono in nessuno dei due, così registro e storico
+           restano coerenti */
+        private void openTelemetryLog() {
+            final File directory = new File(new File(getFilesDir(), Settings.TELEMETRY_DIRECTORY),
+                    this.address.replace(":", ""));
+            try {
+                final TelemetryLog log = new TelemetryLog(directory,
+                        Settings.TELEMETRY_SEGMENT_RECORDS, Settings.TELEMETRY_MAX_SEGMENTS);
+                TelemetryHistory history = telemetryHistories.get(this.address);
+                if(history == null) {
+                    history = new TelemetryHistory(log, new File(directory, Settings.TELEMETRY_HISTORY_FILENAME));
+                    history.rebuild();
+                    telemetryHistories.put(this.address, history);
+                } else {
+                    // Contiene già tutto quello che il registro chiuso da stop() aveva ricevuto
+                    history.setLog(log);
+                }
+
+                this.telemetryHistory = history;
+                this.telemetryLog = log;
+                Log.d("AndroidCar", "Registro di " + this.address + " aperto, record recuperati: " + log.getRecordsRecovered()
+                        + (history.isRestored()? ", storico letto da file" : ", storico ricostruito dal registro"));
+            } catch (IOException e) {
+                Log.d("AndroidCar", "Impossibile aprire il registro: " + e.getMessage());
+            }
+        }
 
-        // Carico il suono di avviso
-        final Uri sound = RingtoneManager.getDefaultUri(RingtoneManager.TYPE_NOTIFICATION);
+        private void recordSample(final long time, final int probability) {
+            final TelemetryLog log = this.telemetryLog;
+            final TelemetryHistory history = this.telemetryHistory;
 
-        // Setto i parametri della notifica
-        notifica.setSound(sound);
-        notifica.setAutoCancel(true);
-        notifica.setContentIntent(pi);
+            if(log != null) {
+                log.appendSample(time, probability);
+            }
+            if(history != null) {
+                history.addSample(time, probability);
+            }
+        }
 
-        // Lancio la notifica
-        notificationManager.notify(1, notifica.build());
+        private void recordEvent(final long time, final Event event, final int value) {
+            final TelemetryLog log = this.telemetryLog;
+            final TelemetryHistory history = this.telemetryHistory;
 
-        // Scrivo su file il fatto che ho mandato la notifica
-        try {
-            final FileOutputStream outputStream = openFileOutput(Settings.NOTIFICATION_FILENAME, MODE_PRIVATE);
-            outputStream.write(1);
-            outputStream.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+            if(log != null) {
+                log.appendEvent(time, event, value);
+            }
+            if(history != null) {
+                history.addEvent(time, event);
+            }
         }
     }
 
-    private void stopService() {
-        this.stop = true;
+    /**
+     * Binder restituito alle activity dello stesso processo che si collegano al service.
+     */
+    public final class LocalBinder extends Binder {
+        /**
+         * @param address indirizzo del device
+         * @return lo storico delle probabilità del device, null se il device non è monitorato
+         *         o se il registro non è ancora stato aperto
+         */
+        public TelemetryHistory getTelemetryHistory(final String address) {
+            final DeviceMonitor monitor = monitors.get(address);
+            return monitor == null? null : monitor.telemetryHistory;
+        }
+
+        /**
+         * @param address indirizzo del device
+         * @return una copia dell'ultimo stato noto della macchina (porte, serratura, finestrini, batteria, probabilità)
+         *         unendo tutti i frame di telemetria ricevuti, null se il device non è monitorato
+         */
+        public Telemetry getCarState(final String address) {
+            final DeviceMonitor monitor = monitors.get(address);
+            return monitor == null? null : monitor.closureTracker.getCarState();
+        }
+
+        /**
+         * @param address indirizzo del device
+         * @return il canale per mandare comandi al device (per esempio CommandChannel.QUERY_BATTERY), null se il device
+         *         non è monitorato
+         */
+        public CommandChannel getCommandChannel(final String address) {
+            final DeviceMonitor monitor = monitors.get(address);
+            final ConnectionHandler handler = monitor == null? null : monitor.handler;
+            return handler == null? null : handler.getCommandChannel();
+        }
+
+        /**
+         * @return numero di notifiche di macchina non chiusa mandate
+         */
+        public long getAlarmsDelivered() {
+            return alarmNotifier.getDelivered();
+        }
+
+        /**
+         * @return numero di allarmi non notificati perchè duplicati o troppo vicini al precedente dello stesso device
+         */
+        public long getAlarmsSuppressed() {
+            return alarmNotifier.getSuppressed();
+        }
     }
 
+    /* Riceve gli Intent sul main thread e li inoltra al thread dei comandi */
     private final class MyBroadcastReceiver extends BroadcastReceiver {
         @Override
         public void onReceive(Context context, Intent intent) {
             final String action = intent.getAction();
 
             if(action.equals(SET_DEVICE.name())) {
-                final String address = intent.getStringExtra("address");
-                startApplicationService(address);
-
+                sendCommand(SET_DEVICE, intent.getStringExtra("address"));
             } else if(action.equals(CLOSE_CONNECTION.name())) {
-                stopComputing();
+                sendCommand(CLOSE_CONNECTION, intent.getStringExtra("address"));
             } else if(action.equals(STOP_SERVICE.name())) {
-                stopService();
+                sendCommand(STOP_SERVICE, null);
+            }
+        }
+    }
+
+    /* Sveglia i ConnectionHandler in attesa di riprovare a connettersi quando il bluetooth viene riattivato,
+       e quello del device che viene accoppiato o torna raggiungibile */
+    private final class MyBluetoothReceiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if(BluetoothAdapter.ACTION_STATE_CHANGED.equals(intent.getAction())) {
+                if(intent.getIntExtra(BluetoothAdapter.EXTRA_STATE, BluetoothAdapter.ERROR) == BluetoothAdapter.STATE_ON) {
+                    for(DeviceMonitor monitor : monitors.values()) {
+                        if(monitor.handler.isStopped()) {
+                            // Si è fermato trovando il bluetooth spento e wakeUp() non lo farebbe ripartire:
+                            // lo riavvio sul thread del service, come se il device fosse stato selezionato di nuovo
+                            sendCommand(MyIntentFilter.SET_DEVICE, monitor.address);
+                        } else {
+                            monitor.handler.wakeUp();
+                        }
+                    }
+                }
+            } else {
+                final BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+                final DeviceMonitor monitor = device == null? null : monitors.get(device.getAddress());
+                if(monitor != null) {
+                    monitor.handler.wakeUp();
+                }
+            }
+        }
+    }
+
+    /* Esegue i comandi sul thread del service */
+    private final class MyCommandHandler implements Handler.Callback {
+        @Override
+        public boolean handleMessage(Message message) {
+            switch (COMMANDS[message.what]) {
+                case SET_DEVICE: startApplicationService((String) message.obj); break;
+                case CLOSE_CONNECTION: stopMonitoring((String) message.obj); break;
+                case STOP_SERVICE: stopSelf(); break;
             }
+            return true;
+        }
+    }
+
+    /* Consegna gli elementi dell'EventChannel di un device ai receiver locali */
+    private final class MyEventConsumer implements EventChannel.EventConsumer {
+        private final String address;
+
+        MyEventConsumer(final String address) {
+            this.address = address;
+        }
+
+        @Override
+        public void onSample(int probability) {
+            deliverBroadcast(this.address, Event.MESSAGE_RECEIVED, Integer.toString(probability));
+        }
+
+        @Override
+        public void onEvent(Event event, String message) {
+            deliverBroadcast(this.address, event, message);
+        }
+    }
+
+    private static final class MainThreadExecutor implements Executor {
+        private final Handler handler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void execute(Runnable command) {
+            this.handler.post(command);
         }
     }
 }
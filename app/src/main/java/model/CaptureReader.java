@@ -0,0 +1,128 @@
+package model;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Legge in ordine i record di un file scritto da CaptureTransport.
+ * I byte di un record DATA vengono letti in un buffer riusato, valido fino alla successiva chiamata di next().
+ */
+public final class CaptureReader {
+
+    private final DataInputStream input;
+    private final long startTime;
+    private final String address;
+    private byte[] buffer = new byte[1024];
+    private int type;
+    private long timeNanos;
+    private int length;
+    private boolean finished;
+
+    /**
+     * Apre il file e ne legge l'intestazione.
+     * @param file
+     * @throws IOException se il file non è leggibile o non è un file di cattura
+     */
+    public CaptureReader(final File file) throws IOException {
+        this.input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if(this.input.readInt() != CaptureTransport.MAGIC) {
+                throw new IOException(file + " non è un file di cattura");
+            }
+            final int version = this.input.readUnsignedShort();
+            if(version > CaptureTransport.VERSION) {
+                throw new IOException("Versione " + version + " non supportata");
+            }
+            this.startTime = this.input.readLong();
+            this.address = this.input.readUTF();
+        } catch (IOException e) {
+            this.input.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Passa al record successivo. Un record troncato (processo terminato durante la scrittura) viene considerato la
+     * fine della sessione.
+     * @return false se la sessione è finita: dopo un record END non vengono letti altri record
+     * @throws IOException
+     */
+    public boolean next() throws IOException {
+        if(this.finished) {
+            return false;
+        }
+
+        try {
+            this.type = this.input.readUnsignedByte();
+            this.timeNanos = this.input.readLong();
+
+            if(this.type == CaptureTransport.RECORD_DATA) {
+                this.length = this.input.readInt();
+                if(this.length < 0) {
+                    throw new IOException("Lunghezza non valida: " + this.length);
+                }
+                if(this.length > this.buffer.length) {
+                    this.buffer = new byte[Math.max(this.length, this.buffer.length * 2)];
+                }
+                this.input.readFully(this.buffer, 0, this.length);
+            } else if(this.type == CaptureTransport.RECORD_END) {
+                this.length = 0;
+                this.finished = true;
+            } else {
+                throw new IOException("Record sconosciuto: " + this.type);
+            }
+            return true;
+        } catch (EOFException e) {
+            this.finished = true;
+            return false;
+        }
+    }
+
+    /**
+     * @return CaptureTransport.RECORD_DATA o CaptureTransport.RECORD_END
+     */
+    public int getType() {
+        return this.type;
+    }
+
+    /**
+     * @return istante del record in nanosecondi dalla connessione
+     */
+    public long getTimeNanos() {
+        return this.timeNanos;
+    }
+
+    /**
+     * @return istante del record in millisecondi (stesso riferimento di System.currentTimeMillis() sul telefono)
+     */
+    public long getTimeMillis() {
+        return this.startTime + this.timeNanos / 1000000;
+    }
+
+    public byte[] getData() {
+        return this.buffer;
+    }
+
+    public int getLength() {
+        return this.length;
+    }
+
+    /**
+     * @return istante della connessione in millisecondi
+     */
+    public long getStartTime() {
+        return this.startTime;
+    }
+
+    public String getAddress() {
+        return this.address;
+    }
+
+    public void close() throws IOException {
+        this.input.close();
+    }
+}
@@ -0,0 +1,237 @@
+package model;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Transport che registra su file i byte esatti letti dal device, con l'istante di arrivo di ogni lettura, per poter
+ * riprodurre a posteriori su una JVM (vedi CaptureReader e benchmark.ReplayHarness) quello che è successo sul campo.
+ *
+ * Ogni connessione produce un file "<istante di connessione in ms>.cap" nella cartella indicata, quindi l'ordine
+ * alfabetico dei file è quello delle connessioni. Vengono tenuti al massimo maxFiles file: i più vecchi vengono
+ * cancellati quando se ne apre uno nuovo.
+ *
+ * Formato (big endian):
+ * - intestazione: MAGIC (4 byte), VERSION (2 byte), istante di connessione in ms (8 byte), indirizzo (UTF)
+ * - record: tipo (1 byte), nanosecondi dalla connessione (8 byte); i record DATA proseguono con
+ *   lunghezza (4 byte) e byte letti
+ * Il record END viene scritto quando lo stream termina o la connessione viene chiusa; se manca (per esempio perchè il
+ * processo è stato terminato) la sessione finisce con l'ultimo record completo.
+ *
+ * La scrittura avviene sul thread che legge, attraverso un buffer: va attivata solo per raccogliere tracce.
+ */
+public final class CaptureTransport implements Transport {
+
+    public static final int MAGIC = 0x4D594343; // "MYCC"
+    public static final int VERSION = 1;
+    public static final int RECORD_DATA = 1;
+    public static final int RECORD_END = 2;
+    public static final String EXTENSION = ".cap";
+
+    private final Transport transport;
+    private final File directory;
+    private final int maxFiles;
+    private volatile Capture capture; // sessione in corso, null se non connesso
+
+    /**
+     * @param transport transport da cui leggere i byte
+     * @param directory cartella dove scrivere i file di cattura
+     * @param maxFiles numero massimo di file mantenuti nella cartella, almeno 1
+     */
+    public CaptureTransport(final Transport transport, final File directory, final int maxFiles) {
+        if(maxFiles < 1) {
+            throw new IllegalArgumentException("maxFiles deve essere almeno 1");
+        }
+        this.transport = transport;
+        this.directory = directory;
+        this.maxFiles = maxFiles;
+    }
+
+    @Override
+    public String getName() {
+        return this.transport.getName();
+    }
+
+    @Override
+    public String getAddress() {
+        return this.transport.getAddress();
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return this.transport.isAvailable();
+    }
+
+    @Override
+    public void connect() throws IOException {
+        this.transport.connect();
+
+        try {
+            this.capture = this.openCapture();
+        } catch (IOException e) {
+            // Senza cattura la connessione resta comunque utilizzabile
+            Log.d("AndroidCar", "Impossibile aprire il file di cattura: " + e.getMessage());
+            this.capture = null;
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return this.transport.isConnected();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        final InputStream input = this.transport.getInputStream();
+        final Capture capture = this.capture;
+        return capture == null? input : capture.wrap(input);
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return this.transport.getOutputStream();
+    }
+
+    @Override
+    public void close() throws IOException {
+        final Capture capture = this.capture;
+        this.capture = null;
+        if(capture != null) {
+            capture.end();
+        }
+        this.transport.close();
+    }
+
+    private Capture openCapture() throws IOException {
+        if(!this.directory.isDirectory() && !this.directory.mkdirs()) {
+            throw new IOException("Impossibile creare " + this.directory);
+        }
+        this.deleteOldCaptures();
+
+        final long startTime = System.currentTimeMillis();
+        final File file = new File(this.directory, String.format("%013d", startTime) + EXTENSION);
+        final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        output.writeInt(MAGIC);
+        output.writeShort(VERSION);
+        output.writeLong(startTime);
+        output.writeUTF(this.transport.getAddress());
+        return new Capture(output);
+    }
+
+    /* Lascia spazio per il nuovo file cancellando i più vecchi */
+    private void deleteOldCaptures() {
+        final File[] files = this.directory.listFiles();
+        if(files == null) {
+            return;
+        }
+
+        Arrays.sort(files);
+        int captures = 0;
+        for(File file : files) {
+            if(file.getName().endsWith(EXTENSION)) {
+                captures++;
+            }
+        }
+
+        for(int i = 0; i < files.length && captures >= this.maxFiles; i++) {
+            if(files[i].getName().endsWith(EXTENSION) && files[i].delete()) {
+                captures--;
+            }
+        }
+    }
+
+    /* File di cattura di una connessione */
+    private static final class Capture {
+        private final DataOutputStream output;
+        private final long startNanos = System.nanoTime();
+        private boolean ended;
+        private RecordingInputStream recording; // stream registrato, creato alla prima richiesta
+
+        Capture(final DataOutputStream output) {
+            this.output = output;
+        }
+
+        /* ConnectionHandler chiede lo stream ad ogni lettura: lo stream registrato viene creato una volta sola */
+        synchronized InputStream wrap(final InputStream input) {
+            if(this.recording == null || this.recording.source != input) {
+                this.recording = new RecordingInputStream(input, this);
+            }
+            return this.recording;
+        }
+
+        synchronized void data(final byte[] bytes, final int offset, final int length) {
+            if(this.ended) {
+                return;
+            }
+            try {
+                this.output.writeByte(RECORD_DATA);
+                this.output.writeLong(System.nanoTime() - this.startNanos);
+                this.output.writeInt(length);
+                this.output.write(bytes, offset, length);
+            } catch (IOException e) {
+                Log.d("AndroidCar", "Cattura interrotta: " + e.getMessage());
+                this.close();
+            }
+        }
+
+        synchronized void end() {
+            if(this.ended) {
+                return;
+            }
+            try {
+                this.output.writeByte(RECORD_END);
+                this.output.writeLong(System.nanoTime() - this.startNanos);
+            } catch (IOException e) {
+                Log.d("AndroidCar", "Cattura interrotta: " + e.getMessage());
+            }
+            this.close();
+        }
+
+        private void close() {
+            this.ended = true;
+            try {
+                this.output.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /* Registra ogni lettura nel file di cattura */
+    private static final class RecordingInputStream extends FilterInputStream {
+        private final InputStream source;
+        private final Capture capture;
+
+        RecordingInputStream(final InputStream input, final Capture capture) {
+            super(input);
+            this.source = input;
+            this.capture = capture;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] single = new byte[1];
+            return this.read(single, 0, 1) < 0? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(final byte[] bytes, final int offset, final int length) throws IOException {
+            final int count = super.read(bytes, offset, length);
+            if(count < 0) {
+                this.capture.end();
+            } else if(count > 0) {
+                this.capture.data(bytes, offset, count);
+            }
+            return count;
+        }
+    }
+}
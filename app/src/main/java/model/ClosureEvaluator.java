@@ -0,0 +1,149 @@
+package model;
+
+import utility.Settings;
+
+/**
+ * Stima se la macchina è stata chiusa a partire dalle probabilità ricevute dal device.
+ *
+ * Ogni sample viene passato a un ProbabilityEstimator (media esponenziale, filtro di Kalman, ...) che lo filtra dal
+ * rumore, e a una SampleWindow che misura l'andamento degli ultimi sample. Entrambi si aggiornano in tempo costante
+ * senza allocare memoria, quindi anche la decisione alla disconnessione costa O(1).
+ *
+ * Quando la connessione viene persa (l'utente si è allontanato dalla macchina):
+ * - la probabilità stimata viene proiettata lungo l'andamento degli ultimi sample per al massimo trendHorizonMs
+ *   (se stava salendo l'utente probabilmente ha appena chiuso la macchina, se stava scendendo l'ha riaperta)
+ * - se la probabilità proiettata è minore o uguale a quella minima la macchina non è stata chiusa
+ * - altrimenti la macchina è chiusa e la probabilità viene aumentata tanto più quanto più recente era l'ultimo sample:
+ *   da MAX_RECENCY_BONUS se la disconnessione è immediata a MIN_RECENCY_BONUS dopo RECENCY_WINDOW_MS
+ *
+ * Non dipende da Android, quindi può essere usata anche fuori dal service (per esempio nei benchmark).
+ * Il service usa lo stimatore e i parametri configurati in Settings, vedi fromSettings().
+ */
+public final class ClosureEvaluator {
+
+    public static final String ESTIMATOR_KALMAN = "kalman";
+    public static final String ESTIMATOR_EWMA = "ewma";
+
+    public static final int DEFAULT_WINDOW_SIZE = 16;
+    public static final long DEFAULT_TREND_HORIZON_MS = 2000;
+
+    public static final int MAX_RECENCY_BONUS = 35;
+    public static final int MIN_RECENCY_BONUS = 5;
+    public static final long RECENCY_WINDOW_MS = 45000;
+
+    private final ProbabilityEstimator estimator;
+    private final SampleWindow window;
+    private final long trendHorizonMs;
+
+    private int actualProbability = -1;
+    private long lastUpdateTime;
+
+    public ClosureEvaluator() {
+        this(new KalmanEstimator(), DEFAULT_WINDOW_SIZE, DEFAULT_TREND_HORIZON_MS);
+    }
+
+    /**
+     * @return un evaluator con lo stimatore e i parametri di Settings (CLOSURE_ESTIMATOR, CLOSURE_WINDOW_SIZE, ...)
+     */
+    public static ClosureEvaluator fromSettings() {
+        return new ClosureEvaluator(createEstimator(Settings.CLOSURE_ESTIMATOR), Settings.CLOSURE_WINDOW_SIZE,
+                Settings.CLOSURE_TREND_HORIZON_MS);
+    }
+
+    /**
+     * @param name ESTIMATOR_KALMAN o ESTIMATOR_EWMA
+     * @return un nuovo stimatore con i parametri di Settings
+     * @throws IllegalArgumentException se lo stimatore non esiste
+     */
+    public static ProbabilityEstimator createEstimator(final String name) {
+        if(name.equals(ESTIMATOR_KALMAN)) {
+            return new KalmanEstimator(Settings.KALMAN_PROCESS_NOISE, Settings.KALMAN_MEASUREMENT_NOISE);
+        } else if(name.equals(ESTIMATOR_EWMA)) {
+            return new EwmaEstimator(Settings.EWMA_ALPHA);
+        }
+        throw new IllegalArgumentException("Stimatore sconosciuto: " + name);
+    }
+
+    /**
+     * @param estimator stimatore a cui passare i sample
+     * @param windowSize numero di sample usati per calcolare l'andamento, almeno 2
+     * @param trendHorizonMs per quanto tempo al massimo proiettare l'andamento dopo l'ultimo sample, 0 per non usarlo
+     */
+    public ClosureEvaluator(final ProbabilityEstimator estimator, final int windowSize, final long trendHorizonMs) {
+        if(trendHorizonMs < 0) {
+            throw new IllegalArgumentException("trendHorizonMs non può essere negativo");
+        }
+        this.estimator = estimator;
+        this.window = new SampleWindow(windowSize);
+        this.trendHorizonMs = trendHorizonMs;
+    }
+
+    /**
+     * Aggiunge una probabilità ricevuta dal device.
+     * @param probability
+     * @param time istante di ricezione in millisecondi
+     */
+    public void update(final int probability, final long time) {
+        this.estimator.update(probability, time);
+        this.window.add(probability, time);
+        this.actualProbability = (int) Math.round(this.estimator.getEstimate());
+        this.lastUpdateTime = time;
+    }
+
+    /**
+     * Registra la ricezione di un messaggio che non contiene una probabilità: la stima non cambia ma il device
+     * risulta attivo fino a time.
+     * @param time istante di ricezione in millisecondi
+     */
+    public void touch(final long time) {
+        this.lastUpdateTime = time;
+    }
+
+    /**
+     * Valuta la chiusura della macchina al momento della disconnessione e aggiorna la probabilità attuale,
+     * vedi getProbability().
+     * @param time istante della disconnessione in millisecondi
+     * @param minimumProbability probabilità minima di allarme
+     * @return true se la macchina è stata chiusa, false se va lanciato l'allarme
+     */
+    public boolean evaluate(final long time, final int minimumProbability) {
+        // Nessun sample ricevuto ---> lancio allarme
+        if(this.window.size() == 0) {
+            return false;
+        }
+
+        final long elapsed = Math.max(0, time - this.lastUpdateTime);
+        final double projected = clamp(this.estimator.getEstimate()
+                + this.window.getSlope() * Math.min(elapsed, this.trendHorizonMs));
+
+        // Probabilità attuale minore di quella minima ---> lancio allarme
+        if(projected <= minimumProbability) {
+            this.actualProbability = (int) Math.round(projected);
+            return false;
+        }
+
+        final double recency = Math.max(0, 1 - (double) elapsed / RECENCY_WINDOW_MS);
+        final double bonus = MIN_RECENCY_BONUS + (MAX_RECENCY_BONUS - MIN_RECENCY_BONUS) * recency;
+        this.actualProbability = (int) Math.round(clamp(projected + bonus));
+
+        return true;
+    }
+
+    /**
+     * @return la probabilità stimata, aggiornata dall'ultima evaluate(); -1 se non è mai arrivato niente
+     */
+    public int getProbability() {
+        return this.actualProbability;
+    }
+
+    /**
+     * @return andamento degli ultimi sample, in punti percentuali al secondo
+     */
+    public double getTrend() {
+        return this.window.getSlope() * 1000;
+    }
+
+    private static double clamp(final double probability) {
+        return Math.max(0, Math.min(100, probability));
+    }
+}
@@ -0,0 +1,115 @@
+package model;
+
+/**
+ * Decisione sulla chiusura della macchina a partire dagli eventi del ConnectionHandler di un device: ogni probabilità
+ * aggiorna il ClosureEvaluator, un messaggio non numerico indica solo che il device è ancora attivo e alla
+ * disconnessione viene valutata la chiusura. I frame di telemetria aggiornano anche l'ultimo stato noto della macchina.
+ *
+ * È la parte di ApplicationService.DeviceMonitor che non dipende da Android, usata così com'è anche dagli strumenti
+ * in benchmark (ReplayHarness, EmulatorLoadTest, LoopbackLoadTest) perchè prendano le stesse decisioni del service.
+ * Gli istanti vengono passati da chi chiama: l'orologio nel service, quello della cattura in ReplayHarness.
+ *
+ * I metodi on*() vanno chiamati da un solo thread alla volta (il worker della connessione); lo stato della macchina
+ * si può leggere da qualsiasi thread.
+ */
+public final class ClosureTracker {
+
+    private final ClosureEvaluator closureEvaluator;
+    private final Telemetry carState = new Telemetry(); // ultimo valore di ogni campo ricevuto, protetto dal suo lock
+
+    /**
+     * @param closureEvaluator evaluator del device, sopravvive alle riconnessioni
+     */
+    public ClosureTracker(final ClosureEvaluator closureEvaluator) {
+        this.closureEvaluator = closureEvaluator;
+    }
+
+    /**
+     * Messaggio testuale (MESSAGE_RECEIVED): se è una probabilità aggiorna la stima, altrimenti la stima non cambia
+     * ma il device risulta attivo fino a time.
+     * @param message
+     * @param time istante di ricezione in millisecondi
+     * @return la probabilità contenuta nel messaggio, -1 se non è numerico
+     */
+    public int onMessage(final String message, final long time) {
+        try {
+            final int probability = Integer.parseInt(message);
+            this.onProbability(probability, time);
+            return probability;
+        } catch (NumberFormatException e) {
+            this.closureEvaluator.touch(time);
+            return -1;
+        }
+    }
+
+    /**
+     * Probabilità di chiusura già convertita in intero dal ConnectionHandler.
+     * @param probability
+     * @param time istante di ricezione in millisecondi
+     */
+    public void onProbability(final int probability, final long time) {
+        this.closureEvaluator.update(probability, time);
+    }
+
+    /**
+     * Frame di telemetria: la probabilità, se presente, aggiorna la stima come onProbability(), gli altri campi
+     * l'ultimo stato noto della macchina. Il frame non viene riciclato.
+     * @param telemetry
+     * @param time istante di ricezione in millisecondi
+     * @return la probabilità contenuta nel frame, -1 se non c'è
+     */
+    public int onTelemetry(final Telemetry telemetry, final long time) {
+        synchronized (this.carState) {
+            this.carState.mergeFrom(telemetry);
+        }
+        if(!telemetry.hasProbability()) {
+            return -1;
+        }
+        this.onProbability(telemetry.getProbability(), time);
+        return telemetry.getProbability();
+    }
+
+    /**
+     * Disconnessione (DISCONNECTED): valuta la chiusura della macchina, vedi ClosureEvaluator.evaluate().
+     * @param time istante della disconnessione in millisecondi
+     * @param minimumProbability probabilità minima di allarme
+     * @return true se la macchina è stata chiusa, false se va lanciato l'allarme
+     */
+    public boolean onDisconnect(final long time, final int minimumProbability) {
+        return this.closureEvaluator.evaluate(time, minimumProbability);
+    }
+
+    /**
+     * @return la probabilità stimata, aggiornata dall'ultima onDisconnect(); -1 se non è mai arrivato niente
+     */
+    public int getProbability() {
+        return this.closureEvaluator.getProbability();
+    }
+
+    /**
+     * @return andamento degli ultimi sample, in punti percentuali al secondo
+     */
+    public double getTrend() {
+        return this.closureEvaluator.getTrend();
+    }
+
+    /**
+     * @return una copia dell'ultimo stato noto della macchina: i campi mai ricevuti non sono presenti
+     */
+    public Telemetry getCarState() {
+        final Telemetry copy = new Telemetry();
+        synchronized (this.carState) {
+            copy.copyFrom(this.carState);
+        }
+        return copy;
+    }
+
+    /**
+     * @return l'ultimo stato noto della macchina, come testo
+     */
+    public String describeCarState() {
+        synchronized (this.carState) {
+            return this.carState.toString();
+        }
+    }
+}
@@ -0,0 +1,324 @@
+package model;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import utility.FrameDecoder;
+import utility.Utility;
+
+/**
+ * Canale di comandi dal telefono al device sulla connessione aperta da un ConnectionHandler: permette di interrogare
+ * il modulo (stato della serratura, firmware, batteria) e di configurarlo (frequenza di campionamento).
+ *
+ * Protocollo (testuale, una riga per messaggio):
+ * - richiesta del telefono:  "?<id> <comando>[ <argomenti>]", per esempio "?7 RATE 20"
+ * - risposta del device:     "!<id> <valore>" oppure "!<id> ERR <motivo>"
+ * L'id di correlazione permette di avere più richieste in volo (al massimo MAX_IN_FLIGHT): le risposte possono
+ * arrivare in qualsiasi ordine, mescolate ai frame con le probabilità.
+ *
+ * Le richieste vengono scritte con Utility.sendToStream da un thread dedicato alla connessione, quindi send() non
+ * blocca mai e il thread che legge dallo stream non scrive mai. Lo stesso thread fa scadere le richieste che non hanno
+ * ricevuto risposta entro il loro timeout (contato da send(), quindi compresa l'attesa in coda); parte con open(),
+ * resta in attesa sul lock del canale quando non ci sono richieste e termina con close().
+ *
+ * Il listener viene invocato sul thread che legge dallo stream per le risposte e sul thread di scrittura per timeout ed
+ * errori (sul thread che chiama send() se il canale è chiuso): non deve bloccare.
+ * Quando la connessione viene persa tutte le richieste in coda o in volo falliscono. I comandi richiedono il
+ * protocollo testuale: se il device attiva quello binario il canale viene chiuso.
+ */
+public final class CommandChannel {
+
+    public static final String QUERY_LOCK = "LOCK"; // risposta: 1 se chiusa a chiave, 0 altrimenti
+    public static final String QUERY_FIRMWARE = "FW"; // risposta: versione del firmware
+    public static final String QUERY_BATTERY = "BATT"; // risposta: tensione della batteria in millivolt
+    public static final String SET_RATE = "RATE"; // argomento: campioni al secondo; risposta: OK
+    public static final String PING = "PING"; // risposta: PONG, usato come heartbeat da ConnectionHandler
+    public static final String PONG = "PONG";
+
+    public static final byte REQUEST_PREFIX = '?';
+    public static final byte RESPONSE_PREFIX = '!';
+    public static final String ERROR = "ERR";
+
+    public static final int MAX_IN_FLIGHT = 8;
+    public static final long DEFAULT_TIMEOUT_MS = 2000;
+
+    /**
+     * Riceve l'esito di una richiesta.
+     */
+    public interface ResponseListener {
+        /**
+         * @param command comando inviato, argomenti compresi
+         * @param response valore restituito dal device
+         */
+        void onResponse(String command, String response);
+
+        /**
+         * @param command comando inviato, argomenti compresi
+         * @param reason risposta di errore del device, timeout o connessione persa
+         */
+        void onFailure(String command, String reason);
+    }
+
+    private final String name;
+    private final ConnectionMetrics metrics;
+
+    // Protetti da this
+    private final ArrayDeque<Request> queue = new ArrayDeque<>(); // richieste non ancora scritte
+    private final Map<Integer, Request> inFlight = new HashMap<>(); // richieste scritte in attesa di risposta
+    private OutputStream output; // null se il canale è chiuso
+    private String closeReason = "Non connesso";
+    private int connectionId; // cambia ad ogni open() e close(): il thread di scrittura di un'altra connessione termina
+    private int nextId = 1;
+
+    /**
+     * @param name nome del device, per il nome del thread di scrittura e per i log
+     * @param metrics metriche in cui registrare comandi, errori e tempi di risposta
+     */
+    CommandChannel(final String name, final ConnectionMetrics metrics) {
+        this.name = name;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Accoda una richiesta. Se il canale è chiuso il listener riceve subito onFailure().
+     * @param command comando con eventuali argomenti separati da spazio, per esempio SET_RATE + " 20"
+     * @param timeoutMs tempo massimo per ricevere la risposta
+     * @param listener
+     * @return l'id di correlazione della richiesta, 0 se il canale è chiuso
+     */
+    public int send(final String command, final long timeoutMs, final ResponseListener listener) {
+        if(command.indexOf('\n') >= 0 || command.indexOf('\r') >= 0) {
+            throw new IllegalArgumentException("Il comando non può contenere terminatori");
+        }
+
+        final Request request;
+        final String reason;
+        synchronized (this) {
+            if(this.output != null) {
+                final int id = this.nextId++;
+                if(this.nextId <= 0) {
+                    this.nextId = 1;
+                }
+                request = new Request(id, command, System.nanoTime(), timeoutMs, listener);
+                this.queue.addLast(request);
+                this.notifyAll();
+                return id;
+            }
+            reason = this.closeReason;
+        }
+
+        this.metrics.commandsFailed.increment();
+        listener.onFailure(command, reason);
+        return 0;
+    }
+
+    /**
+     * @return numero di richieste in coda o in volo
+     */
+    public synchronized int getPending() {
+        return this.queue.size() + this.inFlight.size();
+    }
+
+    /**
+     * @return true se la connessione è aperta e accetta comandi
+     */
+    public synchronized boolean isOpen() {
+        return this.output != null;
+    }
+
+    /* Invocato da ConnectionHandler quando la connessione è stabilita: fa partire il thread di scrittura della
+       connessione */
+    void open(final OutputStream output) {
+        final int connection;
+        synchronized (this) {
+            this.output = output;
+            connection = ++this.connectionId;
+            this.notifyAll();
+        }
+
+        final Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop(output, connection);
+            }
+        }, "CommandWriter-" + this.name);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /* Invocato da ConnectionHandler quando la connessione è persa: fallisce tutte le richieste in sospeso e termina il
+       thread di scrittura */
+    void close(final String reason) {
+        final ArrayDeque<Request> failed = new ArrayDeque<>();
+        synchronized (this) {
+            this.output = null;
+            this.closeReason = reason;
+            this.connectionId++;
+            failed.addAll(this.queue);
+            failed.addAll(this.inFlight.values());
+            this.queue.clear();
+            this.inFlight.clear();
+            this.notifyAll();
+        }
+
+        for(Request request : failed) {
+            this.fail(request, reason);
+        }
+    }
+
+    /**
+     * @param frame frame testuale corrente del decoder
+     * @return true se il frame è una risposta ad un comando
+     */
+    static boolean isResponse(final FrameDecoder frame) {
+        return !frame.isBinary() && frame.length() > 1 && frame.byteAt(0) == RESPONSE_PREFIX;
+    }
+
+    /* Invocato dal thread che legge dallo stream con una risposta (vedi isResponse()) */
+    void onResponse(final FrameDecoder frame) {
+        int separator = frame.indexOf((byte) ' ', 1);
+        if(separator < 0) {
+            separator = frame.length();
+        }
+
+        final int id;
+        try {
+            id = frame.parseInt(1, separator);
+        } catch (NumberFormatException e) {
+            this.metrics.parseFailures.increment();
+            Log.d("AndroidCar", "Risposta senza id valido da " + this.name);
+            return;
+        }
+
+        final Request request;
+        synchronized (this) {
+            request = this.inFlight.remove(id);
+            if(request != null) {
+                this.notifyAll(); // Si è liberato un posto per la prossima richiesta
+            }
+        }
+        if(request == null) {
+            // Risposta arrivata dopo il timeout o ad una richiesta di un'altra connessione
+            this.metrics.commandsUnmatched.increment();
+            Log.d("AndroidCar", "Risposta " + id + " senza richiesta da " + this.name);
+            return;
+        }
+
+        this.metrics.commandRoundTripMs.record((System.nanoTime() - request.sentAt) / 1000000);
+        final String response = separator < frame.length()? frame.toString(separator + 1, frame.length()) : "";
+        if(response.equals(ERROR) || response.startsWith(ERROR + " ")) {
+            this.fail(request, response);
+        } else {
+            request.listener.onResponse(request.command, response);
+        }
+    }
+
+    /* Thread di scrittura della connessione su output: scrive le richieste finchè c'è posto tra quelle in volo e fa
+       scadere quelle senza risposta. Termina quando il canale viene chiuso o riaperto su un'altra connessione */
+    private void writeLoop(final OutputStream output, final int connection) {
+        final ArrayDeque<Request> expired = new ArrayDeque<>();
+
+        while(true) {
+            Request toWrite = null;
+
+            synchronized (this) {
+                if(this.connectionId != connection) {
+                    return;
+                }
+
+                final long now = System.nanoTime();
+                final long waitNanos = Math.min(this.collectExpired(this.queue.iterator(), now, expired),
+                        this.collectExpired(this.inFlight.values().iterator(), now, expired));
+
+                if(expired.isEmpty()) {
+                    if(!this.queue.isEmpty() && this.inFlight.size() < MAX_IN_FLIGHT) {
+                        toWrite = this.queue.pollFirst();
+                        toWrite.sentAt = now;
+                        this.inFlight.put(toWrite.id, toWrite);
+                    } else {
+                        try {
+                            // Senza richieste da far scadere aspetto la prossima send() o close()
+                            this.wait(waitNanos == Long.MAX_VALUE? 0 : Math.max(1, waitNanos / 1000000));
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        continue;
+                    }
+                }
+            }
+
+            // Callback e scrittura fuori dal lock
+            while(!expired.isEmpty()) {
+                final Request request = expired.pollFirst();
+                this.metrics.commandsTimedOut.increment();
+                this.fail(request, "Timeout dopo " + request.timeoutMs + " ms");
+            }
+            if(toWrite != null) {
+                this.write(output, toWrite);
+            }
+        }
+    }
+
+    /* Sposta in expired le richieste scadute e restituisce i nanosecondi che mancano alla scadenza più vicina tra le
+       altre (Long.MAX_VALUE se non ce ne sono) */
+    private long collectExpired(final Iterator<Request> requests, final long now, final ArrayDeque<Request> expired) {
+        long nearest = Long.MAX_VALUE;
+        while(requests.hasNext()) {
+            final Request request = requests.next();
+            final long remaining = request.deadline - now;
+            if(remaining <= 0) {
+                requests.remove();
+                expired.addLast(request);
+            } else {
+                nearest = Math.min(nearest, remaining);
+            }
+        }
+        return nearest;
+    }
+
+    private void write(final OutputStream output, final Request request) {
+        try {
+            Utility.sendToStream(output, (char) REQUEST_PREFIX + Integer.toString(request.id) + ' ' + request.command);
+            this.metrics.commandsSent.increment();
+        } catch (IOException e) {
+            // La connessione è persa: il thread che legge se ne accorgerà e chiuderà il canale
+            final boolean removed;
+            synchronized (this) {
+                removed = this.inFlight.remove(request.id) != null;
+            }
+            if(removed) {
+                this.fail(request, "Scrittura fallita: " + e.getMessage());
+            }
+        }
+    }
+
+    private void fail(final Request request, final String reason) {
+        this.metrics.commandsFailed.increment();
+        Log.d("AndroidCar", "Comando " + request.command + " a " + this.name + " fallito: " + reason);
+        request.listener.onFailure(request.command, reason);
+    }
+
+    private static final class Request {
+        private final int id;
+        private final String command;
+        private final long deadline; // System.nanoTime() oltre il quale la richiesta scade
+        private final long timeoutMs;
+        private final ResponseListener listener;
+        private long sentAt; // System.nanoTime() della scrittura, protetto dal lock del canale fino alla scrittura
+
+        Request(final int id, final String command, final long queuedAt, final long timeoutMs,
+                final ResponseListener listener) {
+            this.id = id;
+            this.command = command;
+            this.deadline = queuedAt + timeoutMs * 1000000;
+            this.timeoutMs = timeoutMs;
+            this.listener = listener;
+        }
+    }
+}
@@ -0,0 +1,540 @@
+package model;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.Future;
+
+import utility.BinaryProtocol;
+import utility.FrameDecoder;
+import utility.MetricsRegistry;
+import utility.Utility;
+
+/**
+ * Gestisce la connessione con un device, scambia/invia i messaggi.
+ * La connessione passa da un Transport: nell'applicazione è un socket bluetooth (RfcommTransport),
+ * ma può essere anche un socket TCP o una pipe in memoria per far girare la pipeline su una JVM.
+ * Non ha un thread proprio: i tentativi di connessione e la gestione della comunicazione vengono eseguiti sui worker
+ * di un ConnectionScheduler condiviso con gli altri device, quindi più handler possono lavorare in parallelo.
+ * Parte con start() e non termina finchè non viene invocato il metodo stopComputing().
+ * Questo handler può trovarsi in 3 stati consecutivi :
+ *
+ * - Tentativo di connessione: continua finchè non riesce a connettersi
+ * - Gestione comunicazione: invia/riceve dati con il dispositivo a cui è connesso.
+ *                           Resta bloccato sullo stream e gestisce i frame appena arrivano; con setMaxReadRate()
+ *                           si può limitare il numero di letture al secondo.
+ *                           Esce da questo stato quando la connessione viene persa
+ *
+ * - Connessione persa: torna subito allo stato 1. Se i tentativi falliscono le attese tra uno e l'altro
+ *                      seguono la ReconnectPolicy (backoff esponenziale con jitter) e non occupano nessun worker;
+ *                      wakeUp() interrompe l'attesa, per esempio quando cambia lo stato del bluetooth o il device
+ *                      torna raggiungibile
+ *
+ * Mentre è connesso si possono mandare comandi al device con getCommandChannel(): le richieste vengono scritte da un
+ * thread dedicato e le risposte riconosciute tra i frame ricevuti.
+ * Con setLiveness() l'handler controlla che il device continui a mandare dati: dopo un po' di silenzio gli manda un
+ * PING e se non riceve niente entro il timeout chiude la connessione e passa allo stato 3 senza aspettare che la lettura
+ * dallo stream fallisca, cosa che su una connessione bluetooth interrotta può richiedere anche decine di secondi.
+ * Il timeout vale solo se il device ha risposto PONG sulla connessione corrente (il primo PING parte appena connesso):
+ * i moduli che non conoscono il PING, o che sono passati al protocollo binario, restano sul rilevamento del socket e
+ * dopo il primo PING senza risposta non ne ricevono altri.
+ * Byte letti, frame, errori, tentativi di connessione, comandi e latenze vengono registrati nelle ConnectionMetrics.
+ */
+public final class ConnectionHandler {
+
+    private static final int LIVENESS_CHECKS = 8; // controlli per timeout di liveness
+    private static final long MIN_LIVENESS_CHECK_MS = 20;
+
+    private final ConnectionListener service;
+    private final Transport transport;
+    private final ConnectionScheduler scheduler;
+    private final FrameDecoder decoder = new FrameDecoder(); // Riutilizzato per tutte le connessioni dell'handler
+    private final FrameDecoder.FrameHandler frameHandler = new MyFrameHandler();
+    private final ReconnectPolicy reconnectPolicy;
+    private final ConnectionMetrics metrics;
+    private final CommandChannel commands;
+    private final Runnable attemptTask = new Runnable() {
+        @Override
+        public void run() {
+            attempt();
+        }
+    };
+    private volatile boolean stop; // Per stoppare l'handler
+
+    // Protetti da this
+    private int failedAttempts; // tentativi consecutivi falliti
+    private Future<?> pendingAttempt; // prossimo tentativo programmato dopo un fallimento, null se non c'è
+
+    private volatile long minReadIntervalNanos; // 0 = nessun limite alla frequenza delle letture
+
+    // Liveness, 0 = disattivata (default)
+    private volatile long heartbeatIntervalNanos;
+    private volatile long livenessTimeoutNanos;
+    private volatile long lastActivity; // System.nanoTime() dell'ultima lettura con dati della connessione corrente
+    private volatile boolean livenessExpired; // la connessione corrente è stata chiusa perchè il device era in silenzio
+    private volatile boolean heartbeatPending; // c'è un PING in attesa di risposta
+    private volatile boolean heartbeatProbed; // è già stato mandato il primo PING della connessione corrente
+    private volatile boolean livenessConfirmed; // il device ha risposto PONG sulla connessione corrente
+    private volatile boolean heartbeatUnsupported; // il primo PING della connessione corrente è fallito senza PONG
+    private volatile int connectionId; // cambia ad ogni connessione, per ignorare i controlli di quella precedente
+    private Future<?> watchdog; // controllo periodico della connessione corrente, usato solo dal worker connesso
+    private final CommandChannel.ResponseListener heartbeatListener = new CommandChannel.ResponseListener() {
+        @Override
+        public void onResponse(String command, String response) {
+            heartbeatPending = false;
+            if(!livenessConfirmed && CommandChannel.PONG.equals(response)) {
+                livenessConfirmed = true;
+                Log.d("AndroidCar", transport.getName() + " risponde al PING, controllo di liveness attivo");
+            }
+        }
+
+        @Override
+        public void onFailure(String command, String reason) {
+            // Un device che non conosce il PING non risponderà mai: fino alla prossima connessione non ne riceve altri
+            if(!livenessConfirmed) {
+                heartbeatUnsupported = true;
+            }
+            heartbeatPending = false;
+        }
+    };
+
+    private long disconnectedAt = -1; // istante in cui è stata persa l'ultima connessione, -1 se non è mai stata persa
+    private volatile long lastReconnectTime = -1;
+
+    public ConnectionHandler(final Transport transport, final ConnectionListener service, final ConnectionScheduler scheduler) {
+        this(transport, service, scheduler, new ReconnectPolicy());
+    }
+
+    public ConnectionHandler(final Transport transport, final ConnectionListener service, final ConnectionScheduler scheduler,
+                             final ReconnectPolicy reconnectPolicy) {
+        this(transport, service, scheduler, reconnectPolicy, new ConnectionMetrics(new MetricsRegistry(), ""));
+    }
+
+    public ConnectionHandler(final Transport transport, final ConnectionListener service, final ConnectionScheduler scheduler,
+                             final ReconnectPolicy reconnectPolicy, final ConnectionMetrics metrics) {
+        this.service = service;
+        this.transport = transport;
+        this.scheduler = scheduler;
+        this.reconnectPolicy = reconnectPolicy;
+        this.metrics = metrics;
+        this.commands = new CommandChannel(transport.getName(), metrics);
+        this.stop = false;
+
+        metrics.registry.gauge(metrics.prefix + "connect.connected", new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                return ConnectionHandler.this.transport.isConnected()? 1 : 0;
+            }
+        });
+        metrics.registry.gauge(metrics.prefix + "frames.corrupted", new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                return decoder.getFramesCorrupted() + decoder.getFramesDiscarded();
+            }
+        });
+    }
+
+    /**
+     * Accoda il primo tentativo di connessione sullo scheduler.
+     */
+    public void start() {
+        this.scheduler.execute(this.attemptTask);
+    }
+
+    /**
+     * Interrompe l'eventuale attesa tra due tentativi di connessione e riparte con un tentativo immediato,
+     * azzerando il backoff. Da invocare quando le condizioni cambiano (bluetooth riattivato, device accoppiato o
+     * di nuovo raggiungibile). Se l'handler è connesso o sta già tentando di connettersi non ha effetto.
+     */
+    public void wakeUp() {
+        synchronized (this) {
+            if(this.pendingAttempt == null || !this.pendingAttempt.cancel(false)) {
+                return;
+            }
+            this.pendingAttempt = null;
+            this.failedAttempts = 0;
+        }
+
+        this.scheduler.execute(this.attemptTask);
+    }
+
+    /**
+     * @return true se l'handler è stato fermato, da stopComputing() o perchè il bluetooth è stato disattivato
+     */
+    public boolean isStopped() {
+        return this.stop;
+    }
+
+    /**
+     * @return millisecondi impiegati dall'ultima riconnessione, dalla perdita della connessione
+     *         a quando è stata ristabilita; -1 se non c'è ancora stata una riconnessione
+     */
+    public long getLastReconnectTime() {
+        return this.lastReconnectTime;
+    }
+
+    /**
+     * Limita la frequenza con cui viene letto lo stream: dopo ogni lettura l'handler aspetta, se serve, in modo che
+     * non ci siano più di readsPerSecond letture al secondo. I frame arrivati nel frattempo restano nel buffer del
+     * socket e vengono gestiti tutti alla lettura successiva.
+     * @param readsPerSecond numero massimo di letture al secondo, 0 per nessun limite (default)
+     */
+    public void setMaxReadRate(final int readsPerSecond) {
+        if(readsPerSecond < 0) {
+            throw new IllegalArgumentException("readsPerSecond non può essere negativo");
+        }
+        this.minReadIntervalNanos = readsPerSecond == 0? 0 : 1000000000L / readsPerSecond;
+    }
+
+    /**
+     * Attiva il controllo di liveness: se il device non manda byte per heartbeatIntervalMs gli viene mandato un PING
+     * (serve il protocollo testuale), se non ne manda per timeoutMs la connessione viene considerata persa.
+     * Per sapere se il device conosce il PING il primo viene mandato appena connesso, e il timeout vale solo dopo che
+     * il device ha risposto PONG e finchè il canale dei comandi è aperto: un device che non risponde non viene mai
+     * disconnesso per il silenzio, quindi attivarlo su tutti i device è sicuro. Se il primo PING scade o fallisce
+     * senza PONG, sulla stessa connessione non ne vengono mandati altri. Ogni PING scade dopo timeoutMs.
+     * Il controllo gira sul thread timer dello scheduler, quindi il tempo di rilevamento è al massimo
+     * timeoutMs * (1 + 1 / LIVENESS_CHECKS) e non dipende dai worker liberi. Vale dalla connessione successiva.
+     * @param heartbeatIntervalMs silenzio dopo il quale mandare un PING, 0 per non mandarlo
+     * @param timeoutMs silenzio dopo il quale chiudere la connessione, 0 per disattivare il controllo (default)
+     */
+    public void setLiveness(final long heartbeatIntervalMs, final long timeoutMs) {
+        if(heartbeatIntervalMs < 0 || timeoutMs < 0) {
+            throw new IllegalArgumentException("heartbeatIntervalMs e timeoutMs non possono essere negativi");
+        }
+        if(timeoutMs > 0 && heartbeatIntervalMs >= timeoutMs) {
+            throw new IllegalArgumentException("heartbeatIntervalMs deve essere minore di timeoutMs");
+        }
+        this.heartbeatIntervalNanos = heartbeatIntervalMs * 1000000;
+        this.livenessTimeoutNanos = timeoutMs * 1000000;
+    }
+
+    /**
+     * @return le metriche della connessione
+     */
+    public ConnectionMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * @return il canale per mandare comandi al device, aperto mentre l'handler è connesso
+     */
+    public CommandChannel getCommandChannel() {
+        return this.commands;
+    }
+
+    /**
+     * @return indirizzo del device gestito da questo handler
+     */
+    public String getAddress() {
+        return this.transport.getAddress();
+    }
+
+    /* Un tentativo di connessione, eseguito su un worker. Se riesce gestisce la comunicazione sullo stesso worker
+       fino alla disconnessione, poi riaccoda subito un nuovo tentativo; se fallisce programma il prossimo tentativo
+       secondo la ReconnectPolicy e libera il worker */
+    private void attempt() {
+        synchronized (this) {
+            this.pendingAttempt = null;
+        }
+
+        if(this.stop) {
+            return;
+        }
+
+        Log.d("AndroidCar", "Provo a connettermi a " + this.transport.getName());
+        service.notifyEvent(Event.TRYING_TO_CONNECT, this.transport.getName());
+        this.metrics.connectAttempts.increment();
+
+        // Se il bluetooth è disattivato fermo l'handler e lo notifico al service
+        if(!this.transport.isAvailable()) {
+            Log.d("AndroidCar", "Bluetooth disattivato mentre tentavo di connettermi");
+            service.notifyEvent(Event.BLUETOOTH_DISABLED, "");
+            this.stopComputing();
+            return;
+        }
+
+        // Tento di creare la connessione
+        final long connectStart = System.currentTimeMillis();
+        try {
+            this.transport.connect();
+        } catch (IOException e) {
+            e.printStackTrace();
+            this.metrics.connectFailures.increment();
+            this.scheduleNextAttempt();
+            return;
+        }
+        final long connectedAt = System.currentTimeMillis();
+        this.metrics.connectLatencyMs.record(connectedAt - connectStart);
+
+        Log.d("AndroidCar", "Connesso a " + this.transport.getName());
+        this.onReconnected();
+        synchronized (this) {
+            this.failedAttempts = 0;
+        }
+
+        this.negotiateProtocol(); // Prima di aprire il canale: da lì in poi sullo stream scrive solo il suo thread
+        this.openCommandChannel();
+        service.notifyEvent(Event.CONNECTION_ESTABLISHED, this.transport.getName());
+        this.startWatchdog();
+        this.handleConnection();
+        this.stopWatchdog();
+        this.disconnectedAt = System.currentTimeMillis();
+        this.metrics.timeConnectedMs.add(this.disconnectedAt - connectedAt);
+
+        // Il primo tentativo dopo la disconnessione parte subito, ma in coda agli altri handler in attesa di un worker
+        if(!this.stop) {
+            this.scheduler.execute(this.attemptTask);
+        }
+    }
+
+    private synchronized void scheduleNextAttempt() {
+        if(this.stop) {
+            return;
+        }
+
+        this.failedAttempts++;
+        this.pendingAttempt = this.scheduler.schedule(this.attemptTask, this.reconnectPolicy.getDelay(this.failedAttempts));
+    }
+
+    private void onReconnected() {
+        if(this.disconnectedAt >= 0) {
+            this.lastReconnectTime = System.currentTimeMillis() - this.disconnectedAt;
+            this.metrics.reconnectTimeMs.record(this.lastReconnectTime);
+            Log.d("AndroidCar", "Riconnesso in " + this.lastReconnectTime + " ms");
+        }
+    }
+
+    private void openCommandChannel() {
+        try {
+            this.commands.open(this.transport.getOutputStream());
+        } catch (IOException e) {
+            Log.d("AndroidCar", "Canale dei comandi non disponibile: " + e.getMessage());
+        }
+    }
+
+    /* Propongo al device il protocollo binario. Se non lo supporta ignora il messaggio e si resta sul protocollo testuale */
+    private void negotiateProtocol() {
+        try {
+            Utility.sendToStream(this.transport.getOutputStream(), BinaryProtocol.HELLO);
+        } catch (IOException e) {
+            Log.d("AndroidCar", "Impossibile proporre il protocollo binario, uso quello testuale");
+        }
+    }
+
+    private void startWatchdog() {
+        this.lastActivity = System.nanoTime();
+        this.livenessExpired = false;
+        this.heartbeatPending = false;
+        this.heartbeatProbed = false;
+        this.livenessConfirmed = false;
+        this.heartbeatUnsupported = false;
+        final int connection = ++this.connectionId;
+
+        final long timeoutMs = this.livenessTimeoutNanos / 1000000;
+        if(timeoutMs > 0) {
+            this.watchdog = this.scheduler.scheduleOnTimer(new Runnable() {
+                @Override
+                public void run() {
+                    checkLiveness(connection);
+                }
+            }, Math.max(MIN_LIVENESS_CHECK_MS, timeoutMs / LIVENESS_CHECKS));
+        }
+    }
+
+    private void stopWatchdog() {
+        if(this.watchdog != null) {
+            this.watchdog.cancel(false);
+            this.watchdog = null;
+        }
+    }
+
+    /* Eseguito sul thread timer: manda il PING o chiude la connessione, così la lettura bloccata fallisce subito */
+    private void checkLiveness(final int connection) {
+        if(this.stop || connection != this.connectionId || this.livenessExpired) {
+            return;
+        }
+
+        final long silence = System.nanoTime() - this.lastActivity;
+        final long timeout = this.livenessTimeoutNanos;
+        // Un device che non risponde al PING può tacere a lungo pur essendo connesso: per lui niente timeout
+        final boolean confirmed = this.livenessConfirmed && this.commands.isOpen();
+        if(timeout > 0 && silence >= timeout && confirmed) {
+            this.livenessExpired = true;
+            this.metrics.livenessTimeouts.increment();
+            Log.d("AndroidCar", "Nessun dato da " + this.transport.getName() + " da " + silence / 1000000 + " ms");
+            this.closeConnection();
+            return;
+        }
+
+        final long heartbeat = this.heartbeatIntervalNanos;
+        if(heartbeat > 0 && (silence >= heartbeat || !this.heartbeatProbed) && !this.heartbeatPending
+                && !this.heartbeatUnsupported && this.commands.isOpen()) {
+            this.heartbeatPending = true;
+            this.heartbeatProbed = true;
+            this.metrics.heartbeatsSent.increment();
+            this.commands.send(CommandChannel.PING, timeout / 1000000, this.heartbeatListener);
+        }
+    }
+
+    private void handleConnection() {
+        boolean stopHandlingConnection = false;
+
+        this.decoder.reset(); // Eventuali frame parziali della connessione precedente non sono più validi
+
+        while(!stop && !stopHandlingConnection) {
+            try {
+                final int count = this.decoder.readFrom(this.transport.getInputStream(), this.frameHandler);
+                if(count < 0) {
+                    throw new IOException("Stream terminato");
+                }
+                this.metrics.bytesRead.add(count);
+                if(count > 0) {
+                    this.lastActivity = this.decoder.getLastReadTime();
+                }
+                this.limitReadRate();
+            } catch (IOException | IllegalStateException e) {
+                this.closeConnection();
+
+                if(!this.stop){
+                    // Silenzio tra l'ultimo byte ricevuto e il momento in cui la perdita è stata rilevata
+                    final long silenceMs = (System.nanoTime() - this.lastActivity) / 1000000;
+                    if(this.livenessExpired) {
+                        this.metrics.livenessDetectionMs.record(silenceMs);
+                        this.commands.close("Nessun dato dal device");
+                    } else {
+                        this.metrics.lossDetectionMs.record(silenceMs);
+                        this.commands.close("Connessione persa");
+                    }
+                    this.metrics.disconnections.increment();
+                    service.notifyEvent(Event.DISCONNECTED, this.transport.getName());
+                }
+
+                stopHandlingConnection = true;
+            } catch (InterruptedException e1) { e1.printStackTrace(); }
+        }
+    }
+
+    /* Se è impostata una frequenza massima di lettura aspetta il tempo che manca alla prossima lettura consentita */
+    private void limitReadRate() throws InterruptedException {
+        final long interval = this.minReadIntervalNanos;
+
+        if(interval > 0) {
+            final long wait = this.decoder.getLastReadTime() + interval - System.nanoTime();
+            if(wait > 0) {
+                Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+            }
+        }
+    }
+
+    private void recordFrameLatency(final long arrivalTime) {
+        this.metrics.framesDecoded.increment();
+        this.metrics.frameLatencyMicros.record((System.nanoTime() - arrivalTime) / 1000);
+    }
+
+    /**
+     * Ferma l'handler, annulla l'eventuale tentativo programmato e chiude la connessione.
+     */
+    public void stopComputing() {
+        this.stop = true;
+
+        synchronized (this) {
+            if(this.pendingAttempt != null) {
+                this.pendingAttempt.cancel(false);
+                this.pendingAttempt = null;
+            }
+        }
+
+        this.closeConnection();
+        this.commands.close("Handler fermato");
+    }
+
+    /**
+     * Consente di sapere se l'handler ha una connessione attiva con un dispositivo avente l'indirizzo fisico passato
+     *
+     * @param address
+     * @return
+     */
+    public boolean isConnectedWith(final String address) {
+        return this.transport.isConnected() && this.transport.getAddress().equals(address);
+    }
+
+    private void closeConnection() {
+        try {
+            this.transport.close();
+        } catch (IOException e) {e.printStackTrace();}
+    }
+
+    /* Riceve i frame completi dal decoder. I payload numerici vengono letti direttamente dai byte senza creare stringhe */
+    private final class MyFrameHandler implements FrameDecoder.FrameHandler {
+        @Override
+        public void onFrame(final FrameDecoder frame) {
+            if(frame.isBinary()) {
+                this.onBinaryFrame(frame);
+            } else if(frame.matches(BinaryProtocol.ACK)) {
+                // Il device ha accettato il protocollo binario: i byte successivi sono frame binari
+                Log.d("AndroidCar", "Protocollo binario attivato");
+                frame.setBinaryMode(true);
+                commands.close("Comandi non disponibili con il protocollo binario");
+                return;
+            } else {
+                this.onTextFrame(frame);
+            }
+
+            recordFrameLatency(frame.getLastReadTime());
+        }
+
+        private void onBinaryFrame(final FrameDecoder frame) {
+            if(frame.type() == BinaryProtocol.TYPE_PROBABILITY) {
+                try {
+                    service.notifyProbability(frame.nextVarint());
+                } catch (NumberFormatException e) {
+                    metrics.parseFailures.increment();
+                    Log.d("AndroidCar", "Frame binario malformato");
+                }
+            } else if(frame.type() == BinaryProtocol.TYPE_TELEMETRY) {
+                if(!this.onTelemetryFrame(frame)) {
+                    metrics.parseFailures.increment();
+                    Log.d("AndroidCar", "Frame di telemetria malformato");
+                }
+            } else {
+                Log.d("AndroidCar", "Frame binario di tipo sconosciuto: " + frame.type());
+            }
+        }
+
+        private void onTextFrame(final FrameDecoder frame) {
+            if(CommandChannel.isResponse(frame)) {
+                commands.onResponse(frame);
+                return;
+            }
+            // Un frame testuale con '=' che non è una telemetria valida può essere un messaggio delle versioni
+            // precedenti del device: prosegue come qualsiasi messaggio non numerico
+            if(Telemetry.isTelemetry(frame) && this.onTelemetryFrame(frame)) {
+                return;
+            }
+
+            try {
+                service.notifyProbability(frame.parseInt());
+            } catch (NumberFormatException e) {
+                metrics.parseFailures.increment();
+                final String receive = frame.toString();
+                Log.d("AndroidCar", "Ricevuto messaggio non numerico: " + receive);
+                service.notifyEvent(Event.MESSAGE_RECEIVED, receive);
+            }
+        }
+
+        /* I campi vengono letti dai byte del decoder in un messaggio preso dal pool, che passa al listener;
+           false se il frame è malformato */
+        private boolean onTelemetryFrame(final FrameDecoder frame) {
+            final Telemetry telemetry = Telemetry.obtain();
+            try {
+                telemetry.read(frame);
+            } catch (NumberFormatException e) {
+                telemetry.recycle();
+                return false;
+            }
+            service.notifyTelemetry(telemetry);
+            return true;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,23 @@
+package model;
+
+/**
+ * Riceve gli eventi prodotti da ConnectionHandler.
+ * Nell'applicazione è implementato da ApplicationService.
+ */
+public interface ConnectionListener {
+
+    void notifyEvent(Event event, String message);
+
+    /**
+     * Notifica una probabilità di chiusura ricevuta dal device, già convertita in intero.
+     * @param probability
+     */
+    void notifyProbability(int probability);
+
+    /**
+     * Notifica un frame di telemetria con più campi ricevuto dal device.
+     * Il listener diventa proprietario del messaggio e deve chiamare telemetry.recycle() quando non gli serve più.
+     * @param telemetry
+     */
+    void notifyTelemetry(Telemetry telemetry);
+}
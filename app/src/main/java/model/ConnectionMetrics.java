@@ -0,0 +1,59 @@
+package model;
+
+import utility.MetricsRegistry;
+
+/**
+ * Metriche della connessione con un device, registrate in un MetricsRegistry con il prefisso passato al costruttore.
+ */
+public final class ConnectionMetrics {
+
+    final String prefix;
+    final MetricsRegistry registry;
+    final MetricsRegistry.Counter bytesRead;
+    final MetricsRegistry.Counter framesDecoded;
+    final MetricsRegistry.Counter parseFailures;
+    final MetricsRegistry.Counter connectAttempts;
+    final MetricsRegistry.Counter connectFailures;
+    final MetricsRegistry.Counter disconnections;
+    final MetricsRegistry.Counter timeConnectedMs; // aggiornato alla fine di ogni connessione
+    final MetricsRegistry.Histogram connectLatencyMs; // durata di transport.connect() riuscite
+    final MetricsRegistry.Histogram reconnectTimeMs; // dalla perdita della connessione a quando è stata ristabilita
+    final MetricsRegistry.Histogram frameLatencyMicros; // dall'arrivo dei byte di un frame alla consegna al listener
+    final MetricsRegistry.Counter commandsSent;
+    final MetricsRegistry.Counter commandsFailed; // risposte di errore, timeout e connessioni perse
+    final MetricsRegistry.Counter commandsTimedOut;
+    final MetricsRegistry.Counter commandsUnmatched; // risposte senza richiesta in volo, per esempio arrivate in ritardo
+    final MetricsRegistry.Histogram commandRoundTripMs; // dalla scrittura della richiesta alla risposta
+    final MetricsRegistry.Counter heartbeatsSent;
+    final MetricsRegistry.Counter livenessTimeouts; // connessioni chiuse perchè il device è rimasto in silenzio
+    final MetricsRegistry.Histogram lossDetectionMs; // dall'ultimo byte ricevuto all'errore del socket
+    final MetricsRegistry.Histogram livenessDetectionMs; // dall'ultimo byte ricevuto alla chiusura per liveness
+
+    /**
+     * @param registry
+     * @param prefix prefisso dei nomi delle metriche, per esempio "device.00112233AABB."
+     */
+    public ConnectionMetrics(final MetricsRegistry registry, final String prefix) {
+        this.prefix = prefix;
+        this.registry = registry;
+        this.bytesRead = registry.counter(prefix + "bytes.read");
+        this.framesDecoded = registry.counter(prefix + "frames.decoded");
+        this.parseFailures = registry.counter(prefix + "frames.parse_failures");
+        this.connectAttempts = registry.counter(prefix + "connect.attempts");
+        this.connectFailures = registry.counter(prefix + "connect.failures");
+        this.disconnections = registry.counter(prefix + "connect.disconnections");
+        this.timeConnectedMs = registry.counter(prefix + "connect.time_connected_ms");
+        this.connectLatencyMs = registry.histogram(prefix + "connect.latency_ms", MetricsRegistry.MILLIS_BUCKETS);
+        this.reconnectTimeMs = registry.histogram(prefix + "connect.reconnect_time_ms", MetricsRegistry.MILLIS_BUCKETS);
+        this.frameLatencyMicros = registry.histogram(prefix + "frames.latency_us", MetricsRegistry.MICROS_BUCKETS);
+        this.commandsSent = registry.counter(prefix + "commands.sent");
+        this.commandsFailed = registry.counter(prefix + "commands.failed");
+        this.commandsTimedOut = registry.counter(prefix + "commands.timeouts");
+        this.commandsUnmatched = registry.counter(prefix + "commands.unmatched");
+        this.commandRoundTripMs = registry.histogram(prefix + "commands.round_trip_ms", MetricsRegistry.MILLIS_BUCKETS);
+        this.heartbeatsSent = registry.counter(prefix + "liveness.heartbeats");
+        this.livenessTimeouts = registry.counter(prefix + "liveness.timeouts");
+        this.lossDetectionMs = registry.histogram(prefix + "connect.loss_detection_ms", MetricsRegistry.MILLIS_BUCKETS);
+        this.livenessDetectionMs = registry.histogram(prefix + "liveness.detection_ms", MetricsRegistry.MILLIS_BUCKETS);
+    }
+}
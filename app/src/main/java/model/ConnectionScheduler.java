@@ -0,0 +1,181 @@
+package model;
+
+import android.util.Log;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread condivisi dai ConnectionHandler di tutti i device monitorati: un worker per ogni device connesso o che sta
+ * tentando di connettersi, più un unico thread timer per le attese tra un tentativo e l'altro.
+ *
+ * Non è un pool di dimensione fissa: i worker crescono con il numero di device. I socket RFCOMM non hanno un'API non
+ * bloccante (niente Selector) e available() non segnala la caduta della connessione, quindi un handler occupa un
+ * worker mentre tenta la connessione e per tutto il tempo in cui è connesso (lettura bloccante), e N device connessi
+ * occupano N worker. Con meno worker che device quelli in eccesso resterebbero in coda per sempre, quindi chi aggiunge
+ * o toglie un device porta i worker a max(DEFAULT_WORKERS, numero di device) con setWorkers().
+ * Il risparmio è sui device non connessi: le attese tra un tentativo e l'altro non occupano nessun worker (alla
+ * scadenza il timer riaccoda il tentativo) e i worker inattivi terminano dopo IDLE_TIMEOUT_MS.
+ * Oltre al worker, ogni connessione ha il thread che scrive le richieste del suo CommandChannel.
+ */
+public final class ConnectionScheduler {
+
+    public static final int DEFAULT_WORKERS = 3;
+    public static final long IDLE_TIMEOUT_MS = 30000;
+
+    private final ThreadPoolExecutor workers;
+    private final ScheduledExecutorService timer;
+
+    public ConnectionScheduler() {
+        this(DEFAULT_WORKERS);
+    }
+
+    /**
+     * @param workers numero massimo di connessioni gestite contemporaneamente, almeno 1
+     */
+    public ConnectionScheduler(final int workers) {
+        this.workers = new ThreadPoolExecutor(workers, workers, IDLE_TIMEOUT_MS, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("ConnectionWorker"));
+        this.workers.allowCoreThreadTimeOut(true);
+        this.timer = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("ConnectionTimer"));
+    }
+
+    /**
+     * Cambia il numero massimo di connessioni gestite contemporaneamente. Se diminuisce, i worker in più terminano
+     * quando finisce il loro task.
+     * @param workers almeno 1
+     */
+    public synchronized void setWorkers(final int workers) {
+        if(workers < 1) {
+            throw new IllegalArgumentException("Serve almeno un worker");
+        }
+        // Il core non può mai superare il massimo, quindi l'ordine dipende dalla direzione
+        if(workers > this.workers.getMaximumPoolSize()) {
+            this.workers.setMaximumPoolSize(workers);
+            this.workers.setCorePoolSize(workers);
+        } else {
+            this.workers.setCorePoolSize(workers);
+            this.workers.setMaximumPoolSize(workers);
+        }
+    }
+
+    /**
+     * @return numero massimo di connessioni gestite contemporaneamente
+     */
+    public int getWorkers() {
+        return this.workers.getMaximumPoolSize();
+    }
+
+    /**
+     * Esegue il task su un worker appena ce n'è uno libero. Dopo shutdown() il task viene ignorato.
+     * @param task
+     */
+    public void execute(final Runnable task) {
+        try {
+            this.workers.execute(task);
+        } catch (RejectedExecutionException e) {
+            Log.d("AndroidCar", "Scheduler terminato, task ignorato");
+        }
+    }
+
+    /**
+     * Accoda il task sul pool dopo delayMs millisecondi, senza occupare un worker durante l'attesa.
+     * @param task
+     * @param delayMs
+     * @return il Future dell'attesa, da usare per annullarla; null se lo scheduler è terminato
+     */
+    public Future<?> schedule(final Runnable task, final long delayMs) {
+        try {
+            return this.timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    execute(task);
+                }
+            }, delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            Log.d("AndroidCar", "Scheduler terminato, task ignorato");
+            return null;
+        }
+    }
+
+    /**
+     * Esegue il task ogni periodMs millisecondi direttamente sul thread timer, senza passare dal pool, quindi anche
+     * quando tutti i worker sono occupati dalle connessioni (per esempio per controllare che una connessione sia viva).
+     * Il task deve essere breve e non bloccante: ritarda le attese di tutti gli handler.
+     * @param task
+     * @param periodMs
+     * @return il Future da usare per fermare il task; null se lo scheduler è terminato
+     */
+    public Future<?> scheduleOnTimer(final Runnable task, final long periodMs) {
+        try {
+            return this.timer.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    // Un'eccezione fermerebbe le esecuzioni successive
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }, periodMs, periodMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            Log.d("AndroidCar", "Scheduler terminato, task ignorato");
+            return null;
+        }
+    }
+
+    /**
+     * Annulla le attese programmate e non accetta nuovi task. I task in esecuzione terminano da soli quando i
+     * rispettivi handler vengono fermati.
+     */
+    public void shutdown() {
+        this.timer.shutdownNow();
+        this.workers.shutdown();
+    }
+
+    /**
+     * Aspetta che tutti i task siano terminati dopo shutdown().
+     * @param timeoutMs
+     * @return true se sono terminati entro il timeout
+     * @throws InterruptedException
+     */
+    public boolean awaitTermination(final long timeoutMs) throws InterruptedException {
+        return this.workers.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return numero di worker che stanno eseguendo un task
+     */
+    public int getActiveWorkers() {
+        return this.workers.getActiveCount();
+    }
+
+    /**
+     * @return numero di task in attesa di un worker libero
+     */
+    public int getQueuedTasks() {
+        return this.workers.getQueue().size();
+    }
+
+    private static final class NamedThreadFactory implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        NamedThreadFactory(final String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, this.name + "-" + this.count.incrementAndGet());
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package model;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Canale tra chi produce gli eventi (il thread di connessione) e chi li consuma (la GUI).
+ *
+ * Le probabilità ricevute dal device (sample) vengono conflate: se il consumatore non ha ancora ricevuto l'ultimo sample,
+ * quello nuovo lo sostituisce invece di accodarsi, quindi un consumatore lento salta i valori intermedi e riceve sempre
+ * il più recente. Gli altri eventi (DISCONNECTED, CAR_NOT_CLOSED ecc) non vengono mai scartati e vengono consegnati
+ * nell'ordine in cui sono stati pubblicati rispetto ai sample.
+ *
+ * La consegna avviene sull'Executor passato al costruttore (tipicamente il main thread): c'è al massimo un task
+ * di consegna in attesa alla volta, che a sua volta consegna solo gli elementi presenti quando è partito.
+ * Pubblicare un sample non alloca memoria.
+ */
+public final class EventChannel {
+
+    /**
+     * Riceve gli elementi del canale, sul thread dell'Executor.
+     */
+    public interface EventConsumer {
+        void onSample(int probability);
+        void onEvent(Event event, String message);
+    }
+
+    private static final int SAMPLE = -1; // tipo di un elemento che contiene un sample
+    private static final Event[] EVENTS = Event.values();
+
+    private final Executor executor;
+    private final EventConsumer consumer;
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    // Coda circolare, cresce solo se si accumulano eventi che non possono essere scartati
+    private int[] types = new int[16];
+    private int[] samples = new int[16];
+    private String[] messages = new String[16];
+    private int head;
+    private int size;
+    private boolean scheduled;
+
+    private long samplesPublished;
+    private long samplesCoalesced;
+    private long samplesDelivered;
+    private long eventsDelivered;
+
+    public EventChannel(final Executor executor, final EventConsumer consumer) {
+        this.executor = executor;
+        this.consumer = consumer;
+    }
+
+    /**
+     * Pubblica una probabilità. Se l'ultimo elemento in coda è un sample non ancora consegnato viene sovrascritto.
+     * @param probability
+     */
+    public void publishSample(final int probability) {
+        final boolean schedule;
+
+        synchronized (this) {
+            this.samplesPublished++;
+
+            if(this.size > 0 && this.types[this.index(this.size - 1)] == SAMPLE) {
+                this.samples[this.index(this.size - 1)] = probability;
+                this.samplesCoalesced++;
+                return;
+            }
+
+            this.enqueue(SAMPLE, probability, null);
+            schedule = this.scheduleIfNeeded();
+        }
+
+        if(schedule) {
+            this.executor.execute(this.drainTask);
+        }
+    }
+
+    /**
+     * Pubblica un evento che non deve essere scartato.
+     * @param event
+     * @param message
+     */
+    public void publishEvent(final Event event, final String message) {
+        final boolean schedule;
+
+        synchronized (this) {
+            this.enqueue(event.ordinal(), 0, message);
+            schedule = this.scheduleIfNeeded();
+        }
+
+        if(schedule) {
+            this.executor.execute(this.drainTask);
+        }
+    }
+
+    /**
+     * @return numero di sample pubblicati
+     */
+    public synchronized long getSamplesPublished() {
+        return this.samplesPublished;
+    }
+
+    /**
+     * @return numero di sample sovrascritti da uno più recente prima di essere consegnati
+     */
+    public synchronized long getSamplesCoalesced() {
+        return this.samplesCoalesced;
+    }
+
+    /**
+     * @return numero di sample consegnati al consumatore
+     */
+    public synchronized long getSamplesDelivered() {
+        return this.samplesDelivered;
+    }
+
+    /**
+     * @return numero di eventi (non sample) consegnati al consumatore
+     */
+    public synchronized long getEventsDelivered() {
+        return this.eventsDelivered;
+    }
+
+    /**
+     * @return numero di elementi in attesa di essere consegnati
+     */
+    public synchronized int getQueueDepth() {
+        return this.size;
+    }
+
+    /* Consegna gli elementi presenti in coda quando il task è partito; se nel frattempo ne arrivano altri si rischedula */
+    private void drain() {
+        int toDeliver;
+        synchronized (this) {
+            toDeliver = this.size;
+        }
+
+        while(toDeliver-- > 0) {
+            final int type;
+            final int sample;
+            final String message;
+
+            synchronized (this) {
+                final int index = this.head;
+                type = this.types[index];
+                sample = this.samples[index];
+                message = this.messages[index];
+                this.messages[index] = null;
+                this.head = this.index(1);
+                this.size--;
+
+                if(type == SAMPLE) {
+                    this.samplesDelivered++;
+                } else {
+                    this.eventsDelivered++;
+                }
+            }
+
+            if(type == SAMPLE) {
+                this.consumer.onSample(sample);
+            } else {
+                this.consumer.onEvent(EVENTS[type], message);
+            }
+        }
+
+        final boolean reschedule;
+        synchronized (this) {
+            this.scheduled = false;
+            reschedule = this.scheduleIfNeeded();
+        }
+
+        if(reschedule) {
+            this.executor.execute(this.drainTask);
+        }
+    }
+
+    private boolean scheduleIfNeeded() {
+        if(this.scheduled || this.size == 0) {
+            return false;
+        }
+        this.scheduled = true;
+        return true;
+    }
+
+    private void enqueue(final int type, final int sample, final String message) {
+        if(this.size == this.types.length) {
+            this.grow();
+        }
+
+        final int index = this.index(this.size);
+        this.types[index] = type;
+        this.samples[index] = sample;
+        this.messages[index] = message;
+        this.size++;
+    }
+
+    private void grow() {
+        final int capacity = this.types.length * 2;
+        final int[] newTypes = new int[capacity];
+        final int[] newSamples = new int[capacity];
+        final String[] newMessages = new String[capacity];
+
+        for(int i = 0; i < this.size; i++) {
+            newTypes[i] = this.types[this.index(i)];
+            newSamples[i] = this.samples[this.index(i)];
+            newMessages[i] = this.messages[this.index(i)];
+        }
+
+        this.types = newTypes;
+        this.samples = newSamples;
+        this.messages = newMessages;
+        this.head = 0;
+    }
+
+    private int index(final int offset) {
+        return (this.head + offset) & (this.types.length - 1);
+    }
+}
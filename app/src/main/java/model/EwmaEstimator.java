@@ -0,0 +1,49 @@
+package model;
+
+/**
+ * Media mobile esponenziale dei sample: stima = alpha * sample + (1 - alpha) * stima precedente.
+ * Con alpha vicino a 1 segue subito l'ultimo sample, con alpha piccolo filtra di più il rumore ma reagisce più lentamente.
+ */
+public final class EwmaEstimator implements ProbabilityEstimator {
+
+    public static final double DEFAULT_ALPHA = 0.3;
+
+    private final double alpha;
+    private double estimate;
+    private boolean empty = true;
+
+    public EwmaEstimator() {
+        this(DEFAULT_ALPHA);
+    }
+
+    /**
+     * @param alpha peso dell'ultimo sample, tra 0 (escluso) e 1
+     */
+    public EwmaEstimator(final double alpha) {
+        if(alpha <= 0 || alpha > 1) {
+            throw new IllegalArgumentException("alpha deve essere tra 0 (escluso) e 1");
+        }
+        this.alpha = alpha;
+    }
+
+    @Override
+    public void update(final int probability, final long time) {
+        if(this.empty) {
+            this.estimate = probability;
+            this.empty = false;
+        } else {
+            this.estimate += this.alpha * (probability - this.estimate);
+        }
+    }
+
+    @Override
+    public double getEstimate() {
+        return this.estimate;
+    }
+
+    @Override
+    public void reset() {
+        this.empty = true;
+        this.estimate = 0;
+    }
+}
@@ -0,0 +1,75 @@
+package model;
+
+/**
+ * Filtro di Kalman scalare: la probabilità viene modellata come un valore che cambia in modo casuale nel tempo
+ * (random walk) e ogni sample come una sua misura rumorosa.
+ *
+ * Rispetto alla media esponenziale il peso dei sample si adatta da solo: dopo una pausa lunga tra due sample
+ * l'incertezza della stima cresce e il nuovo sample conta di più, mentre con sample fitti la stima viene filtrata.
+ */
+public final class KalmanEstimator implements ProbabilityEstimator {
+
+    public static final double DEFAULT_PROCESS_NOISE = 25;      // varianza aggiunta alla stima per ogni secondo
+    public static final double DEFAULT_MEASUREMENT_NOISE = 100; // varianza del rumore di un sample
+
+    private final double processNoise;
+    private final double measurementNoise;
+    private double estimate;
+    private double variance;
+    private long lastTime;
+    private boolean empty = true;
+
+    public KalmanEstimator() {
+        this(DEFAULT_PROCESS_NOISE, DEFAULT_MEASUREMENT_NOISE);
+    }
+
+    /**
+     * @param processNoise varianza di cui cambia la probabilità reale in un secondo, maggiore di 0
+     * @param measurementNoise varianza del rumore di un sample, maggiore di 0
+     */
+    public KalmanEstimator(final double processNoise, final double measurementNoise) {
+        if(processNoise <= 0 || measurementNoise <= 0) {
+            throw new IllegalArgumentException("Le varianze devono essere maggiori di 0");
+        }
+        this.processNoise = processNoise;
+        this.measurementNoise = measurementNoise;
+    }
+
+    @Override
+    public void update(final int probability, final long time) {
+        if(this.empty) {
+            this.estimate = probability;
+            this.variance = this.measurementNoise;
+            this.empty = false;
+        } else {
+            // Predizione: l'incertezza cresce con il tempo passato dall'ultimo sample
+            final long elapsed = Math.max(0, time - this.lastTime);
+            this.variance += this.processNoise * elapsed / 1000.0;
+
+            // Correzione con il nuovo sample
+            final double gain = this.variance / (this.variance + this.measurementNoise);
+            this.estimate += gain * (probability - this.estimate);
+            this.variance *= 1 - gain;
+        }
+        this.lastTime = time;
+    }
+
+    @Override
+    public double getEstimate() {
+        return this.estimate;
+    }
+
+    /**
+     * @return la varianza della stima attuale
+     */
+    public double getVariance() {
+        return this.variance;
+    }
+
+    @Override
+    public void reset() {
+        this.empty = true;
+        this.estimate = 0;
+        this.variance = 0;
+    }
+}
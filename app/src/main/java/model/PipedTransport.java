@@ -0,0 +1,124 @@
+package model;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+
+/**
+ * Transport in memoria: ad ogni connect() viene creata una coppia di pipe e l'altro capo viene passato al DeviceSide,
+ * che simula il device. Serve per far girare la pipeline di connessione in un solo processo, senza rete nè bluetooth.
+ */
+public final class PipedTransport implements Transport {
+
+    public static final int PIPE_SIZE = 64 * 1024;
+
+    /**
+     * Lato device della connessione.
+     */
+    public interface DeviceSide {
+        /**
+         * Invocato ad ogni connect(), sul thread che si sta connettendo: non deve bloccare.
+         * Se lancia IOException la connessione fallisce.
+         * @param fromPhone byte scritti dal telefono
+         * @param toPhone stream su cui scrivere i byte che il telefono leggerà
+         * @throws IOException
+         */
+        void onConnected(InputStream fromPhone, OutputStream toPhone) throws IOException;
+    }
+
+    private final String name;
+    private final String address;
+    private final DeviceSide device;
+    private volatile boolean available = true;
+    private volatile boolean connected;
+    private volatile PipedInputStream input;
+    private volatile PipedOutputStream output;
+    private PipedOutputStream deviceOutput;
+
+    public PipedTransport(final String name, final String address, final DeviceSide device) {
+        this.name = name;
+        this.address = address;
+        this.device = device;
+    }
+
+    /**
+     * Simula l'attivazione/disattivazione del mezzo di comunicazione (come il bluetooth del telefono).
+     * @param available
+     */
+    public void setAvailable(final boolean available) {
+        this.available = available;
+    }
+
+    @Override
+    public String getName() {
+        return this.name;
+    }
+
+    @Override
+    public String getAddress() {
+        return this.address;
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return this.available;
+    }
+
+    @Override
+    public synchronized void connect() throws IOException {
+        if(!this.available) {
+            throw new IOException("Transport non disponibile");
+        }
+
+        final PipedInputStream phoneInput = new PipedInputStream(PIPE_SIZE);
+        final PipedOutputStream deviceOutput = new PipedOutputStream(phoneInput);
+        final PipedInputStream deviceInput = new PipedInputStream(PIPE_SIZE);
+        final PipedOutputStream phoneOutput = new PipedOutputStream(deviceInput);
+
+        this.device.onConnected(deviceInput, deviceOutput);
+
+        this.input = phoneInput;
+        this.output = phoneOutput;
+        this.deviceOutput = deviceOutput;
+        this.connected = true;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return this.connected;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        final InputStream input = this.input;
+        if(input == null) {
+            throw new IOException("Non connesso a " + this.name);
+        }
+        return input;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        final OutputStream output = this.output;
+        if(output == null) {
+            throw new IOException("Non connesso a " + this.name);
+        }
+        return output;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        this.connected = false;
+        if(this.output == null) {
+            return;
+        }
+
+        // PipedInputStream.close() non sblocca una read() in corso: chiudo anche il capo del device,
+        // così la read() del telefono termina restituendo -1
+        this.deviceOutput.close();
+        this.output.close();
+        this.input.close();
+    }
+}
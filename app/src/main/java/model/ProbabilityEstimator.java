@@ -0,0 +1,27 @@
+package model;
+
+/**
+ * Stima della probabilità di chiusura a partire dai sample ricevuti dal device, aggiornata un sample alla volta.
+ *
+ * Le implementazioni devono aggiornare la stima in tempo costante e senza allocare memoria, perchè update() viene
+ * chiamato per ogni messaggio ricevuto.
+ */
+public interface ProbabilityEstimator {
+
+    /**
+     * Aggiunge un sample alla stima.
+     * @param probability probabilità ricevuta (0-100)
+     * @param time istante di ricezione in millisecondi
+     */
+    void update(int probability, long time);
+
+    /**
+     * @return la probabilità stimata all'istante dell'ultimo sample; non definita se non è arrivato nessun sample
+     */
+    double getEstimate();
+
+    /**
+     * Dimentica tutti i sample ricevuti.
+     */
+    void reset();
+}
@@ -0,0 +1,81 @@
+package model;
+
+import java.util.Random;
+
+/**
+ * Politica dei tentativi di riconnessione di ConnectionHandler.
+ *
+ * Dopo che la connessione è stata persa il primo tentativo parte subito; se fallisce si aspetta firstRetryDelayMs
+ * (breve, per recuperare in fretta le interruzioni momentanee), poi l'attesa cresce in modo esponenziale
+ * partendo da baseDelayMs e moltiplicando per multiplier ad ogni tentativo, fino a maxDelayMs.
+ * Ad ogni attesa viene applicato un jitter casuale (± jitter * attesa) perchè più tentativi non restino sincronizzati.
+ */
+public final class ReconnectPolicy {
+
+    public static final long DEFAULT_FIRST_RETRY_DELAY_MS = 500;
+    public static final long DEFAULT_BASE_DELAY_MS = 1000;
+    public static final long DEFAULT_MAX_DELAY_MS = 30000;
+    public static final double DEFAULT_MULTIPLIER = 2;
+    public static final double DEFAULT_JITTER = 0.2;
+
+    private final long firstRetryDelayMs;
+    private final long baseDelayMs;
+    private final long maxDelayMs;
+    private final double multiplier;
+    private final double jitter;
+    private final Random random;
+
+    public ReconnectPolicy() {
+        this(DEFAULT_FIRST_RETRY_DELAY_MS, DEFAULT_BASE_DELAY_MS, DEFAULT_MAX_DELAY_MS, DEFAULT_MULTIPLIER, DEFAULT_JITTER);
+    }
+
+    /**
+     * @param firstRetryDelayMs attesa dopo il primo tentativo fallito
+     * @param baseDelayMs attesa dopo il secondo tentativo fallito, da cui parte la crescita esponenziale
+     * @param maxDelayMs attesa massima (jitter escluso)
+     * @param multiplier fattore di crescita dell'attesa ad ogni tentativo, almeno 1
+     * @param jitter frazione dell'attesa da variare casualmente, tra 0 e 1
+     */
+    public ReconnectPolicy(final long firstRetryDelayMs, final long baseDelayMs, final long maxDelayMs,
+                           final double multiplier, final double jitter) {
+        this(firstRetryDelayMs, baseDelayMs, maxDelayMs, multiplier, jitter, new Random());
+    }
+
+    /**
+     * Come il costruttore precedente, con il generatore di numeri casuali da usare per il jitter
+     * (per esempio con un seme fisso per avere attese riproducibili).
+     */
+    public ReconnectPolicy(final long firstRetryDelayMs, final long baseDelayMs, final long maxDelayMs,
+                           final double multiplier, final double jitter, final Random random) {
+        if(firstRetryDelayMs < 0 || baseDelayMs < 0 || maxDelayMs < baseDelayMs) {
+            throw new IllegalArgumentException("Attese non valide");
+        }
+        if(multiplier < 1 || jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("multiplier deve essere >= 1, jitter tra 0 e 1");
+        }
+
+        this.firstRetryDelayMs = firstRetryDelayMs;
+        this.baseDelayMs = baseDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        this.multiplier = multiplier;
+        this.jitter = jitter;
+        this.random = random;
+    }
+
+    /**
+     * @param failedAttempts numero di tentativi consecutivi falliti, almeno 1
+     * @return quanto aspettare, in millisecondi, prima del prossimo tentativo
+     */
+    public long getDelay(final int failedAttempts) {
+        final double delay;
+
+        if(failedAttempts <= 1) {
+            delay = this.firstRetryDelayMs;
+        } else {
+            delay = Math.min(this.maxDelayMs, this.baseDelayMs * Math.pow(this.multiplier, failedAttempts - 2));
+        }
+
+        final double variation = delay * this.jitter * (2 * this.random.nextDouble() - 1);
+        return Math.max(0, Math.round(delay + variation));
+    }
+}
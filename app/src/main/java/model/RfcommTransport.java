@@ -0,0 +1,77 @@
+package model;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import utility.Settings;
+
+/**
+ * Transport su socket bluetooth RFCOMM verso un device accoppiato, usando il servizio seriale (SPP) Settings.MY_UUID.
+ */
+public final class RfcommTransport implements Transport {
+
+    private final BluetoothDevice device;
+    private volatile BluetoothSocket socket;
+
+    public RfcommTransport(final BluetoothDevice device) {
+        this.device = device;
+    }
+
+    @Override
+    public String getName() {
+        return this.device.getName();
+    }
+
+    @Override
+    public String getAddress() {
+        return this.device.getAddress();
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return BluetoothAdapter.getDefaultAdapter().isEnabled();
+    }
+
+    @Override
+    public void connect() throws IOException {
+        this.socket = this.device.createRfcommSocketToServiceRecord(Settings.MY_UUID);
+        this.socket.connect();
+    }
+
+    @Override
+    public boolean isConnected() {
+        final BluetoothSocket socket = this.socket;
+        return socket != null && socket.isConnected();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return this.openSocket().getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return this.openSocket().getOutputStream();
+    }
+
+    @Override
+    public void close() throws IOException {
+        final BluetoothSocket socket = this.socket;
+        if(socket != null) {
+            socket.close();
+        }
+    }
+
+    private BluetoothSocket openSocket() throws IOException {
+        final BluetoothSocket socket = this.socket;
+        if(socket == null) {
+            throw new IOException("Non connesso a " + this.device.getName());
+        }
+        return socket;
+    }
+}
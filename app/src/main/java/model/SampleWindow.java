@@ -0,0 +1,151 @@
+package model;
+
+/**
+ * Finestra degli ultimi sample ricevuti, in un buffer circolare di primitivi di dimensione fissa.
+ *
+ * Mantiene le somme necessarie per la retta di regressione (minimi quadrati) dei sample rispetto al tempo, quindi
+ * l'andamento della probabilità si ottiene in tempo costante. Le somme sono calcolate rispetto al sample più vecchio
+ * e vengono ricalcolate da zero ogni volta che il buffer ha fatto un giro completo, così gli errori di arrotondamento
+ * non si accumulano (costo ammortizzato costante per sample).
+ */
+public final class SampleWindow {
+
+    private final int[] values;
+    private final long[] times;
+    private int head;  // indice del sample più vecchio
+    private int size;
+    private int writesSinceRebase;
+
+    private long origin; // istante rispetto a cui sono calcolate le somme
+    private double sumT;
+    private double sumV;
+    private double sumTT;
+    private double sumTV;
+
+    /**
+     * @param capacity numero massimo di sample mantenuti, almeno 2
+     */
+    public SampleWindow(final int capacity) {
+        if(capacity < 2) {
+            throw new IllegalArgumentException("La finestra deve contenere almeno 2 sample");
+        }
+        this.values = new int[capacity];
+        this.times = new long[capacity];
+    }
+
+    /**
+     * Aggiunge un sample, eliminando il più vecchio se la finestra è piena.
+     * @param value
+     * @param time istante in millisecondi
+     */
+    public void add(final int value, final long time) {
+        if(this.size == 0) {
+            this.origin = time;
+        }
+
+        if(this.size == this.values.length) {
+            this.subtract(this.values[this.head], this.times[this.head]);
+            this.values[this.head] = value;
+            this.times[this.head] = time;
+            this.head = (this.head + 1) % this.values.length;
+        } else {
+            final int index = (this.head + this.size) % this.values.length;
+            this.values[index] = value;
+            this.times[index] = time;
+            this.size++;
+        }
+        this.sum(value, time);
+
+        if(++this.writesSinceRebase == this.values.length) {
+            this.rebase();
+        }
+    }
+
+    /**
+     * @return numero di sample nella finestra
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * @return il sample più recente; la finestra non deve essere vuota
+     */
+    public int getLast() {
+        return this.values[(this.head + this.size - 1) % this.values.length];
+    }
+
+    /**
+     * @return l'istante del sample più recente; la finestra non deve essere vuota
+     */
+    public long getLastTime() {
+        return this.times[(this.head + this.size - 1) % this.values.length];
+    }
+
+    /**
+     * @return media dei sample nella finestra, 0 se è vuota
+     */
+    public double getAverage() {
+        return this.size == 0? 0 : this.sumV / this.size;
+    }
+
+    /**
+     * @return pendenza della retta di regressione dei sample, in punti percentuali al millisecondo;
+     *         0 se ci sono meno di due sample o se sono tutti nello stesso istante
+     */
+    public double getSlope() {
+        if(this.size < 2) {
+            return 0;
+        }
+
+        final double denominator = this.size * this.sumTT - this.sumT * this.sumT;
+        if(denominator <= 0) {
+            return 0;
+        }
+        return (this.size * this.sumTV - this.sumT * this.sumV) / denominator;
+    }
+
+    /**
+     * Svuota la finestra.
+     */
+    public void clear() {
+        this.head = 0;
+        this.size = 0;
+        this.writesSinceRebase = 0;
+        this.sumT = 0;
+        this.sumV = 0;
+        this.sumTT = 0;
+        this.sumTV = 0;
+    }
+
+    private void sum(final int value, final long time) {
+        final double t = time - this.origin;
+        this.sumT += t;
+        this.sumV += value;
+        this.sumTT += t * t;
+        this.sumTV += t * value;
+    }
+
+    private void subtract(final int value, final long time) {
+        final double t = time - this.origin;
+        this.sumT -= t;
+        this.sumV -= value;
+        this.sumTT -= t * t;
+        this.sumTV -= t * value;
+    }
+
+    /* Ricalcola le somme rispetto al sample più vecchio */
+    private void rebase() {
+        this.writesSinceRebase = 0;
+        this.origin = this.times[this.head];
+        this.sumT = 0;
+        this.sumV = 0;
+        this.sumTT = 0;
+        this.sumTV = 0;
+
+        for(int i = 0; i < this.size; i++) {
+            final int index = (this.head + i) % this.values.length;
+            this.sum(this.values[index], this.times[index]);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package model;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Transport su socket TCP, per esempio verso un emulatore del device in ascolto su localhost.
+ * Parla lo stesso protocollo del socket bluetooth, quindi permette di provare la pipeline di connessione su una JVM.
+ */
+public final class TcpTransport implements Transport {
+
+    public static final int CONNECT_TIMEOUT_MS = 5000;
+
+    private final String host;
+    private final int port;
+    private volatile Socket socket;
+
+    public TcpTransport(final String host, final int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    @Override
+    public String getName() {
+        return this.host + ":" + this.port;
+    }
+
+    @Override
+    public String getAddress() {
+        return this.host + ":" + this.port;
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return true;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        final Socket socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress(this.host, this.port), CONNECT_TIMEOUT_MS);
+        this.socket = socket;
+    }
+
+    @Override
+    public boolean isConnected() {
+        final Socket socket = this.socket;
+        return socket != null && socket.isConnected() && !socket.isClosed();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return this.openSocket().getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return this.openSocket().getOutputStream();
+    }
+
+    @Override
+    public void close() throws IOException {
+        final Socket socket = this.socket;
+        if(socket != null) {
+            socket.close();
+        }
+    }
+
+    private Socket openSocket() throws IOException {
+        final Socket socket = this.socket;
+        if(socket == null) {
+            throw new IOException("Non connesso a " + this.getName());
+        }
+        return socket;
+    }
+}
@@ -0,0 +1,299 @@
+package model;
+
+import utility.BinaryProtocol;
+import utility.FrameDecoder;
+
+/**
+ * Frame di telemetria con più campi tipizzati mandato dal device: probabilità di chiusura, porte, serratura,
+ * finestrini e batteria. Ogni campo è facoltativo: has*() indica se il device lo ha mandato.
+ *
+ * Formato testuale: coppie chiave=valore separate da ',' e terminate da '\n', per esempio "p=87,d=0,l=1,w=0,b=12540".
+ * La chiave è una lettera (vedi le costanti KEY_*), il valore un intero decimale.
+ * Formato binario: frame di tipo BinaryProtocol.TYPE_TELEMETRY con il payload fatto di coppie di varint
+ * (FIELD_*, valore).
+ * In entrambi i formati i campi sconosciuti vengono ignorati, quindi un device può aggiungere campi senza rompere
+ * le versioni precedenti dell'applicazione.
+ *
+ * I messaggi vengono riusati: obtain() prende un messaggio dal pool (o ne crea uno se il pool è vuoto) e recycle()
+ * ce lo rimette, quindi la ricezione di un frame non alloca memoria. Chi riceve un messaggio da
+ * ConnectionListener.notifyTelemetry() ne è proprietario e deve chiamare recycle() quando non gli serve più;
+ * dopo recycle() il messaggio non va più usato. Un messaggio da conservare a lungo (per esempio l'ultimo stato
+ * della macchina) va creato con il costruttore, fuori dal pool, e non va riciclato.
+ */
+public final class Telemetry {
+
+    // Campi del frame binario
+    public static final int FIELD_PROBABILITY = 1; // probabilità di chiusura (0-100)
+    public static final int FIELD_DOORS = 2; // porte aperte, un bit per porta (0 = tutte chiuse)
+    public static final int FIELD_LOCKED = 3; // 1 se la macchina è chiusa a chiave
+    public static final int FIELD_WINDOWS = 4; // finestrini aperti, un bit per finestrino (0 = tutti chiusi)
+    public static final int FIELD_BATTERY = 5; // tensione della batteria in millivolt
+
+    // Chiavi del frame testuale, nello stesso ordine dei campi
+    public static final byte KEY_PROBABILITY = 'p';
+    public static final byte KEY_DOORS = 'd';
+    public static final byte KEY_LOCKED = 'l';
+    public static final byte KEY_WINDOWS = 'w';
+    public static final byte KEY_BATTERY = 'b';
+
+    public static final int MAX_POOL_SIZE = 16;
+
+    private static final int FIELD_COUNT = 5;
+    private static final Object POOL_LOCK = new Object();
+    private static Telemetry pool; // lista dei messaggi liberi, protetta da POOL_LOCK
+    private static int poolSize;
+
+    private final int[] values = new int[FIELD_COUNT + 1];
+    private int present; // un bit per campo ricevuto
+    private long arrivalTime;
+    private Telemetry next; // successivo nel pool
+    private boolean recycled;
+
+    /**
+     * Crea un messaggio vuoto che non viene dal pool e non va riciclato.
+     */
+    public Telemetry() { }
+
+    /**
+     * @return un messaggio vuoto, preso dal pool se possibile
+     */
+    public static Telemetry obtain() {
+        synchronized (POOL_LOCK) {
+            if(pool != null) {
+                final Telemetry telemetry = pool;
+                pool = telemetry.next;
+                telemetry.next = null;
+                telemetry.recycled = false;
+                poolSize--;
+                return telemetry;
+            }
+        }
+        return new Telemetry();
+    }
+
+    /**
+     * Svuota il messaggio e lo rimette nel pool.
+     * @throws IllegalStateException se il messaggio era già stato riciclato
+     */
+    public void recycle() {
+        if(this.recycled) {
+            throw new IllegalStateException("Messaggio già riciclato");
+        }
+        this.clear();
+        this.recycled = true;
+
+        synchronized (POOL_LOCK) {
+            if(poolSize < MAX_POOL_SIZE) {
+                this.next = pool;
+                pool = this;
+                poolSize++;
+            }
+        }
+    }
+
+    /**
+     * Rimuove tutti i campi.
+     */
+    public void clear() {
+        this.present = 0;
+        this.arrivalTime = 0;
+    }
+
+    /**
+     * Copia i campi di un altro messaggio, per esempio per conservare l'ultimo stato ricevuto prima di riciclarlo.
+     * @param other
+     */
+    public void copyFrom(final Telemetry other) {
+        System.arraycopy(other.values, 0, this.values, 0, this.values.length);
+        this.present = other.present;
+        this.arrivalTime = other.arrivalTime;
+    }
+
+    /**
+     * Aggiunge ai campi del messaggio quelli dell'altro messaggio, sovrascrivendo quelli presenti in entrambi.
+     * @param other
+     */
+    public void mergeFrom(final Telemetry other) {
+        for(int field = 1; field <= FIELD_COUNT; field++) {
+            if(other.has(field)) {
+                this.set(field, other.values[field]);
+            }
+        }
+        this.arrivalTime = other.arrivalTime;
+    }
+
+    /**
+     * @param field una delle costanti FIELD_*
+     * @return true se il device ha mandato il campo
+     */
+    public boolean has(final int field) {
+        return field > 0 && field <= FIELD_COUNT && (this.present & (1 << field)) != 0;
+    }
+
+    /**
+     * @param field una delle costanti FIELD_*
+     * @return il valore del campo
+     * @throws IllegalStateException se il campo non è presente
+     */
+    public int get(final int field) {
+        if(!this.has(field)) {
+            throw new IllegalStateException("Campo " + field + " non presente");
+        }
+        return this.values[field];
+    }
+
+    /**
+     * Imposta un campo; i campi sconosciuti vengono ignorati.
+     * @param field una delle costanti FIELD_*
+     * @param value
+     */
+    public void set(final int field, final int value) {
+        if(field > 0 && field <= FIELD_COUNT) {
+            this.values[field] = value;
+            this.present |= 1 << field;
+        }
+    }
+
+    public boolean hasProbability() {
+        return this.has(FIELD_PROBABILITY);
+    }
+
+    public int getProbability() {
+        return this.get(FIELD_PROBABILITY);
+    }
+
+    public boolean hasDoors() {
+        return this.has(FIELD_DOORS);
+    }
+
+    /**
+     * @return le porte aperte, un bit per porta
+     */
+    public int getOpenDoors() {
+        return this.get(FIELD_DOORS);
+    }
+
+    public boolean hasLocked() {
+        return this.has(FIELD_LOCKED);
+    }
+
+    public boolean isLocked() {
+        return this.get(FIELD_LOCKED) != 0;
+    }
+
+    public boolean hasWindows() {
+        return this.has(FIELD_WINDOWS);
+    }
+
+    /**
+     * @return i finestrini aperti, un bit per finestrino
+     */
+    public int getOpenWindows() {
+        return this.get(FIELD_WINDOWS);
+    }
+
+    public boolean hasBattery() {
+        return this.has(FIELD_BATTERY);
+    }
+
+    public int getBatteryMillivolts() {
+        return this.get(FIELD_BATTERY);
+    }
+
+    /**
+     * @return System.nanoTime() all'arrivo dei byte del frame
+     */
+    public long getArrivalTime() {
+        return this.arrivalTime;
+    }
+
+    /**
+     * @param frame frame corrente del decoder
+     * @return true se il frame è un frame di telemetria: binario di tipo TYPE_TELEMETRY o testuale con almeno una
+     *         coppia chiave=valore
+     */
+    public static boolean isTelemetry(final FrameDecoder frame) {
+        return frame.isBinary()? frame.type() == BinaryProtocol.TYPE_TELEMETRY : frame.indexOf((byte) '=', 0) >= 0;
+    }
+
+    /**
+     * Sostituisce i campi del messaggio con quelli del frame corrente del decoder, letti direttamente dai byte.
+     * @param frame frame di telemetria (vedi isTelemetry())
+     * @throws NumberFormatException se il frame è malformato
+     */
+    public void read(final FrameDecoder frame) {
+        this.clear();
+        this.arrivalTime = frame.getLastReadTime();
+
+        if(frame.isBinary()) {
+            this.readBinary(frame);
+        } else {
+            this.readText(frame);
+        }
+    }
+
+    private void readText(final FrameDecoder frame) {
+        final int length = frame.length();
+        int start = 0;
+        while(start < length) {
+            int end = frame.indexOf((byte) ',', start);
+            if(end < 0) {
+                end = length;
+            }
+
+            final int separator = frame.indexOf((byte) '=', start);
+            if(separator < 0 || separator >= end) {
+                throw new NumberFormatException("coppia senza '='");
+            }
+            int keyStart = start;
+            int keyEnd = separator;
+            while(keyStart < keyEnd && frame.byteAt(keyStart) == ' ') keyStart++;
+            while(keyEnd > keyStart && frame.byteAt(keyEnd - 1) == ' ') keyEnd--;
+            if(keyStart == keyEnd) {
+                throw new NumberFormatException("chiave vuota");
+            }
+
+            final int value = frame.parseInt(separator + 1, end);
+            if(keyEnd - keyStart == 1) {
+                this.set(fieldForKey(frame.byteAt(keyStart)), value);
+            }
+            start = end + 1;
+        }
+    }
+
+    private void readBinary(final FrameDecoder frame) {
+        while(frame.hasNextField()) {
+            final int field = frame.nextVarint();
+            this.set(field, frame.nextVarint());
+        }
+    }
+
+    /* 0 per le chiavi sconosciute */
+    private static int fieldForKey(final byte key) {
+        switch (key) {
+            case KEY_PROBABILITY:
+                return FIELD_PROBABILITY;
+            case KEY_DOORS:
+                return FIELD_DOORS;
+            case KEY_LOCKED:
+                return FIELD_LOCKED;
+            case KEY_WINDOWS:
+                return FIELD_WINDOWS;
+            case KEY_BATTERY:
+                return FIELD_BATTERY;
+            default:
+                return 0;
+        }
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder("Telemetry{");
+        if(this.hasProbability()) builder.append(" probabilità=").append(this.getProbability());
+        if(this.hasDoors()) builder.append(" porte=").append(Integer.toBinaryString(this.getOpenDoors()));
+        if(this.hasLocked()) builder.append(" chiusa a chiave=").append(this.isLocked());
+        if(this.hasWindows()) builder.append(" finestrini=").append(Integer.toBinaryString(this.getOpenWindows()));
+        if(this.hasBattery()) builder.append(" batteria=").append(this.getBatteryMillivolts()).append("mV");
+        return builder.append(" }").toString();
+    }
+}
@@ -0,0 +1,472 @@
+package model;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Statistiche per finestre di tempo (minimo, massimo, media e numero di sample) sullo storico delle probabilità,
+ * per poter disegnare giorni di storico senza leggere tutti i sample.
+ *
+ * Ad ogni sample vengono aggiornati, in tempo costante e senza allocare memoria, dei livelli di aggregati
+ * precalcolati (di default per secondo, minuto e ora). Ogni livello è un buffer circolare di dimensione fissa in cui
+ * l'aggregato di un intervallo sta nella posizione (intervallo % capacità), quindi la memoria è limitata e gli
+ * intervalli più vecchi vengono sovrascritti da quelli nuovi.
+ *
+ * Una query usa il livello più grossolano che divide esattamente la finestra richiesta e che contiene ancora l'inizio
+ * dell'intervallo, quindi un mese a finestre di un giorno legge 744 aggregati orari. Se nessun livello va bene
+ * (finestra più piccola di un secondo o intervallo troppo vecchio) i sample vengono letti dal TelemetryLog.
+ *
+ * Il TelemetryLog tiene solo le ultime ore di sample (16 segmenti da 65536 record, circa 29 ore a 10 Hz), mentre i
+ * livelli di default coprono un'ora, una settimana e un anno: per non perdere i livelli al riavvio gli aggregati
+ * possono stare in un file mappato in memoria (costruttore con File), aggiornato ad ogni sample come i buffer in
+ * memoria. Il file viene dichiarato valido solo alla fine di rebuild(): se manca, è di un'altra configurazione o
+ * rebuild() è stato interrotto, i livelli vengono ricostruiti dal registro come la prima volta.
+ *
+ * Vengono ricordate anche le ultime disconnessioni, con l'ultimo sample ricevuto prima di ognuna.
+ */
+public final class TelemetryHistory {
+
+    /**
+     * Riceve le statistiche di una finestra che contiene almeno un sample, in ordine di tempo.
+     */
+    public interface WindowVisitor {
+        void onWindow(long start, long length, int min, int max, double average, int count);
+    }
+
+    /**
+     * Riceve una disconnessione con l'ultimo sample ricevuto prima di essa (-1 e 0 se non ce n'erano).
+     */
+    public interface DisconnectVisitor {
+        void onDisconnect(long time, int lastProbability, long lastSampleTime);
+    }
+
+    public static final long[] DEFAULT_RESOLUTIONS = {1000, 60000, 3600000};
+    public static final int[] DEFAULT_CAPACITIES = {3600, 10080, 8784}; // un'ora, una settimana, un anno
+    public static final int DEFAULT_DISCONNECT_CAPACITY = 256;
+
+    public static final int MAGIC = 0x4D594348; // "MYCH"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 16;
+    public static final int SLOT_SIZE = 32;
+
+    private volatile TelemetryLog log;
+    private final RollupTier[] tiers;
+    private final ByteBuffer storage; // header e aggregati di tutti i livelli, in memoria o mappati da file
+    private final long layout;
+    private final boolean restored; // true se i livelli sono stati letti da un file valido
+
+    // Ultime disconnessioni, in un buffer circolare
+    private final long[] disconnectTimes;
+    private final int[] disconnectProbabilities;
+    private final long[] disconnectSampleTimes;
+    private int disconnectHead;
+    private int disconnectCount;
+
+    private int lastProbability = -1;
+    private long lastSampleTime;
+
+    /**
+     * @param log registro da cui leggere i sample che non sono nei livelli aggregati, può essere null
+     */
+    public TelemetryHistory(final TelemetryLog log) {
+        this(log, DEFAULT_RESOLUTIONS, DEFAULT_CAPACITIES, DEFAULT_DISCONNECT_CAPACITY);
+    }
+
+    /**
+     * @param log registro da cui leggere i sample che non sono nei livelli aggregati, può essere null
+     * @param resolutions durata in millisecondi di un aggregato per ogni livello, in ordine crescente
+     * @param capacities numero di aggregati mantenuti per ogni livello
+     * @param disconnectCapacity numero di disconnessioni ricordate
+     */
+    public TelemetryHistory(final TelemetryLog log, final long[] resolutions, final int[] capacities,
+                            final int disconnectCapacity) {
+        this(log, resolutions, capacities, disconnectCapacity, ByteBuffer.allocate(storageSize(capacities)));
+    }
+
+    /**
+     * @param log registro da cui leggere i sample che non sono nei livelli aggregati, può essere null
+     * @param file file in cui mantenere i livelli aggregati, viene creato se non esiste
+     * @throws IOException se non è possibile aprire o creare il file
+     */
+    public TelemetryHistory(final TelemetryLog log, final File file) throws IOException {
+        this(log, file, DEFAULT_RESOLUTIONS, DEFAULT_CAPACITIES, DEFAULT_DISCONNECT_CAPACITY);
+    }
+
+    /**
+     * @param log registro da cui leggere i sample che non sono nei livelli aggregati, può essere null
+     * @param file file in cui mantenere i livelli aggregati, viene creato se non esiste
+     * @param resolutions durata in millisecondi di un aggregato per ogni livello, in ordine crescente
+     * @param capacities numero di aggregati mantenuti per ogni livello
+     * @param disconnectCapacity numero di disconnessioni ricordate
+     * @throws IOException se non è possibile aprire o creare il file
+     */
+    public TelemetryHistory(final TelemetryLog log, final File file, final long[] resolutions, final int[] capacities,
+                            final int disconnectCapacity) throws IOException {
+        this(log, resolutions, capacities, disconnectCapacity, map(file, storageSize(capacities)));
+    }
+
+    private TelemetryHistory(final TelemetryLog log, final long[] resolutions, final int[] capacities,
+                             final int disconnectCapacity, final ByteBuffer storage) {
+        if(resolutions.length != capacities.length || disconnectCapacity < 1) {
+            throw new IllegalArgumentException("Configurazione dei livelli non valida");
+        }
+
+        this.log = log;
+        this.storage = storage;
+        this.layout = layout(resolutions, capacities);
+        this.restored = storage.getInt(0) == MAGIC && storage.getShort(4) == VERSION
+                && storage.getShort(6) == resolutions.length && storage.getLong(8) == this.layout;
+        if(!this.restored) {
+            // File nuovo, di un'altra configurazione o di un rebuild() interrotto: si riparte da zero
+            for(int position = 0; position < storage.capacity(); position += 8) {
+                storage.putLong(position, 0);
+            }
+        }
+
+        this.tiers = new RollupTier[resolutions.length];
+        int offset = HEADER_SIZE;
+        for(int i = 0; i < resolutions.length; i++) {
+            if(i > 0 && resolutions[i] <= resolutions[i - 1]) {
+                throw new IllegalArgumentException("Le risoluzioni devono essere crescenti");
+            }
+            this.tiers[i] = new RollupTier(resolutions[i], capacities[i], storage, offset);
+            offset += capacities[i] * SLOT_SIZE;
+        }
+
+        this.disconnectTimes = new long[disconnectCapacity];
+        this.disconnectProbabilities = new int[disconnectCapacity];
+        this.disconnectSampleTimes = new long[disconnectCapacity];
+    }
+
+    /**
+     * Ricostruisce gli aggregati leggendo tutto il TelemetryLog; se i livelli sono stati letti dal file, dal registro
+     * vengono ripresi solo le disconnessioni e l'ultimo sample. Va chiamato prima di aggiungere nuovi sample.
+     * @throws IOException
+     */
+    public void rebuild() throws IOException {
+        final TelemetryLog log = this.log;
+        if(log != null) {
+            log.read(new TelemetryLog.RecordVisitor() {
+                @Override
+                public void onRecord(long time, int kind, int value) {
+                    if(kind != TelemetryLog.KIND_SAMPLE) {
+                        addEvent(time, TelemetryLog.eventOf(kind));
+                    } else if(restored) {
+                        setLastSample(time, value);
+                    } else {
+                        addSample(time, value);
+                    }
+                }
+            });
+        }
+
+        synchronized (this) {
+            // Il MAGIC per ultimo: finchè non c'è, il file non viene considerato valido
+            this.storage.putShort(4, (short) VERSION);
+            this.storage.putShort(6, (short) this.tiers.length);
+            this.storage.putLong(8, this.layout);
+            this.storage.putInt(0, MAGIC);
+        }
+        this.force();
+    }
+
+    /**
+     * Sostituisce il registro da cui leggere i sample che non sono nei livelli aggregati, quando il registro dello
+     * stesso device viene chiuso e riaperto: lo storico continua con i livelli che ha, senza un altro rebuild().
+     * @param log il registro riaperto, può essere null
+     */
+    public void setLog(final TelemetryLog log) {
+        this.log = log;
+    }
+
+    /**
+     * @return true se i livelli aggregati sono stati letti da un file invece che ricostruiti dal registro
+     */
+    public boolean isRestored() {
+        return this.restored;
+    }
+
+    /**
+     * Forza la scrittura su disco dei livelli aggregati, se stanno in un file. Come per TelemetryLog.force() serve
+     * solo in caso di spegnimento improvviso.
+     */
+    public synchronized void force() {
+        if(this.storage instanceof MappedByteBuffer) {
+            ((MappedByteBuffer) this.storage).force();
+        }
+    }
+
+    /**
+     * Aggiunge una probabilità ricevuta dal device a tutti i livelli.
+     * @param time istante di ricezione in millisecondi
+     * @param probability
+     */
+    public synchronized void addSample(final long time, final int probability) {
+        for(RollupTier tier : this.tiers) {
+            tier.add(time, probability);
+        }
+        this.setLastSample(time, probability);
+    }
+
+    /**
+     * Registra un evento della connessione: per le disconnessioni ricorda l'ultimo sample ricevuto.
+     * @param time istante dell'evento in millisecondi
+     * @param event
+     */
+    public synchronized void addEvent(final long time, final Event event) {
+        if(event != Event.DISCONNECTED) {
+            return;
+        }
+
+        final int index = (this.disconnectHead + this.disconnectCount) % this.disconnectTimes.length;
+        this.disconnectTimes[index] = time;
+        this.disconnectProbabilities[index] = this.lastProbability;
+        this.disconnectSampleTimes[index] = this.lastSampleTime;
+
+        if(this.disconnectCount < this.disconnectTimes.length) {
+            this.disconnectCount++;
+        } else {
+            this.disconnectHead = (this.disconnectHead + 1) % this.disconnectTimes.length;
+        }
+    }
+
+    /**
+     * Calcola le statistiche delle finestre di durata window, allineate a multipli di window, che intersecano
+     * [from, to). Le finestre senza sample non vengono passate al visitor.
+     * @param from istante iniziale in millisecondi
+     * @param to istante finale in millisecondi
+     * @param window durata di una finestra in millisecondi
+     * @param visitor
+     * @throws IOException se serve leggere il registro e non è possibile
+     */
+    public void query(final long from, final long to, final long window, final WindowVisitor visitor) throws IOException {
+        if(window <= 0 || to <= from) {
+            throw new IllegalArgumentException("Intervallo o finestra non validi");
+        }
+
+        final long start = floor(from, window) * window;
+        final long end = (floor(to - 1, window) + 1) * window;
+
+        synchronized (this) {
+            for(int i = this.tiers.length - 1; i >= 0; i--) {
+                final RollupTier tier = this.tiers[i];
+                if(window % tier.resolution == 0 && tier.covers(start)) {
+                    tier.query(start, end, window, visitor);
+                    return;
+                }
+            }
+        }
+
+        final TelemetryLog log = this.log;
+        if(log != null) {
+            final WindowAccumulator accumulator = new WindowAccumulator(window, visitor);
+            log.read(start, end, accumulator);
+            accumulator.flush();
+        }
+    }
+
+    /**
+     * Passa al visitor le disconnessioni ricordate avvenute in [from, to), in ordine di tempo.
+     * @param from istante iniziale in millisecondi
+     * @param to istante finale in millisecondi
+     * @param visitor
+     */
+    public synchronized void queryDisconnects(final long from, final long to, final DisconnectVisitor visitor) {
+        for(int i = 0; i < this.disconnectCount; i++) {
+            final int index = (this.disconnectHead + i) % this.disconnectTimes.length;
+            final long time = this.disconnectTimes[index];
+            if(time >= from && time < to) {
+                visitor.onDisconnect(time, this.disconnectProbabilities[index], this.disconnectSampleTimes[index]);
+            }
+        }
+    }
+
+    private synchronized void setLastSample(final long time, final int probability) {
+        this.lastProbability = probability;
+        this.lastSampleTime = time;
+    }
+
+    private static int storageSize(final int[] capacities) {
+        long size = HEADER_SIZE;
+        for(int capacity : capacities) {
+            size += (long) capacity * SLOT_SIZE;
+        }
+        if(size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Livelli troppo grandi");
+        }
+        return (int) size;
+    }
+
+    /* Identifica la configurazione dei livelli, per non leggere un file scritto con risoluzioni o capacità diverse */
+    private static long layout(final long[] resolutions, final int[] capacities) {
+        long hash = resolutions.length;
+        for(int i = 0; i < resolutions.length && i < capacities.length; i++) {
+            hash = hash * 31 + resolutions[i];
+            hash = hash * 31 + capacities[i];
+        }
+        return hash;
+    }
+
+    /* La mappatura resta valida anche dopo la chiusura del file */
+    private static MappedByteBuffer map(final File file, final int size) throws IOException {
+        final RandomAccessFile output = new RandomAccessFile(file, "rw");
+        try {
+            if(output.length() != size) {
+                output.setLength(0);
+                output.setLength(size);
+            }
+            return output.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            output.close();
+        }
+    }
+
+    /* Divisione arrotondata verso il basso anche per valori negativi */
+    private static long floor(final long value, final long divisor) {
+        final long quotient = value / divisor;
+        return value % divisor < 0? quotient - 1 : quotient;
+    }
+
+    /* Aggregati di un livello: l'aggregato dell'intervallo n sta nella posizione n % capacità. Ogni posizione occupa
+       SLOT_SIZE byte del buffer: ID (8) | SUM (8) | MIN (4) | MAX (4) | COUNT (4), ed è vuota se COUNT vale 0 */
+    private static final class RollupTier {
+        private final long resolution;
+        private final int capacity;
+        private final ByteBuffer data;
+        private final int offset;
+        private long latestId = Long.MIN_VALUE;
+
+        RollupTier(final long resolution, final int capacity, final ByteBuffer data, final int offset) {
+            if(resolution <= 0 || capacity < 1) {
+                throw new IllegalArgumentException("Risoluzione e capacità devono essere positive");
+            }
+            this.resolution = resolution;
+            this.capacity = capacity;
+            this.data = data;
+            this.offset = offset;
+
+            // Aggregati letti da file: l'intervallo più recente è il massimo tra quelli presenti
+            for(int i = 0; i < capacity; i++) {
+                final int position = this.position(i);
+                if(data.getInt(position + 24) > 0 && data.getLong(position) > this.latestId) {
+                    this.latestId = data.getLong(position);
+                }
+            }
+        }
+
+        void add(final long time, final int value) {
+            final long id = floor(time, this.resolution);
+            if(this.latestId != Long.MIN_VALUE && id <= this.latestId - this.capacity) {
+                return; // Troppo vecchio per questo livello
+            }
+
+            final int position = this.position(this.index(id));
+            final int count = this.data.getInt(position + 24);
+            if(count == 0 || this.data.getLong(position) != id) {
+                this.data.putLong(position, id);
+                this.data.putLong(position + 8, value);
+                this.data.putInt(position + 16, value);
+                this.data.putInt(position + 20, value);
+                this.data.putInt(position + 24, 1);
+            } else {
+                this.data.putLong(position + 8, this.data.getLong(position + 8) + value);
+                this.data.putInt(position + 16, Math.min(this.data.getInt(position + 16), value));
+                this.data.putInt(position + 20, Math.max(this.data.getInt(position + 20), value));
+                this.data.putInt(position + 24, count + 1);
+            }
+
+            if(id > this.latestId) {
+                this.latestId = id;
+            }
+        }
+
+        /* true se il livello contiene dei sample e gli aggregati dall'istante start in poi non sono stati sovrascritti */
+        boolean covers(final long start) {
+            return this.latestId != Long.MIN_VALUE && floor(start, this.resolution) > this.latestId - this.capacity;
+        }
+
+        void query(final long start, final long end, final long window, final WindowVisitor visitor) {
+            final long perWindow = window / this.resolution;
+            final long lastId = Math.min(floor(end - 1, this.resolution), this.latestId);
+
+            for(long windowId = floor(start, this.resolution); windowId <= lastId; windowId += perWindow) {
+                int min = Integer.MAX_VALUE;
+                int max = Integer.MIN_VALUE;
+                long sum = 0;
+                int count = 0;
+
+                for(long id = windowId; id < windowId + perWindow && id <= lastId; id++) {
+                    final int position = this.position(this.index(id));
+                    final int slotCount = this.data.getInt(position + 24);
+                    if(slotCount > 0 && this.data.getLong(position) == id) {
+                        min = Math.min(min, this.data.getInt(position + 16));
+                        max = Math.max(max, this.data.getInt(position + 20));
+                        sum += this.data.getLong(position + 8);
+                        count += slotCount;
+                    }
+                }
+
+                if(count > 0) {
+                    visitor.onWindow(windowId * this.resolution, window, min, max, (double) sum / count, count);
+                }
+            }
+        }
+
+        private int index(final long id) {
+            return (int) (((id % this.capacity) + this.capacity) % this.capacity);
+        }
+
+        private int position(final int index) {
+            return this.offset + index * SLOT_SIZE;
+        }
+    }
+
+    /* Aggrega per finestre i sample letti dal registro */
+    private static final class WindowAccumulator implements TelemetryLog.RecordVisitor {
+        private final long window;
+        private final WindowVisitor visitor;
+        private long windowId = Long.MIN_VALUE;
+        private int min = Integer.MAX_VALUE;
+        private int max = Integer.MIN_VALUE;
+        private long sum;
+        private int count;
+
+        WindowAccumulator(final long window, final WindowVisitor visitor) {
+            this.window = window;
+            this.visitor = visitor;
+        }
+
+        @Override
+        public void onRecord(long time, int kind, int value) {
+            if(kind != TelemetryLog.KIND_SAMPLE) {
+                return;
+            }
+
+            final long id = floor(time, this.window);
+            if(id != this.windowId) {
+                this.flush();
+                this.windowId = id;
+            }
+
+            this.min = Math.min(this.min, value);
+            this.max = Math.max(this.max, value);
+            this.sum += value;
+            this.count++;
+        }
+
+        void flush() {
+            if(this.count > 0) {
+                this.visitor.onWindow(this.windowId * this.window, this.window, this.min, this.max,
+                        (double) this.sum / this.count, this.count);
+            }
+            this.min = Integer.MAX_VALUE;
+            this.max = Integer.MIN_VALUE;
+            this.sum = 0;
+            this.count = 0;
+        }
+    }
+}
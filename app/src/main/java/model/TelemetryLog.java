@@ -0,0 +1,456 @@
+package model;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Registro append-only di tutte le probabilità ricevute e degli eventi della connessione, per poter analizzare
+ * a posteriori i falsi allarmi.
+ *
+ * Il registro è diviso in segmenti (file "NNNNNNNN.seg" nella cartella passata al costruttore) di dimensione fissa,
+ * mappati in memoria: aggiungere un record è una scrittura nel MappedByteBuffer, senza chiamate di sistema nè
+ * allocazioni. Quando un segmento è pieno se ne crea uno nuovo e, oltre maxSegments, si cancella il più vecchio.
+ *
+ * Formato di un segmento: un header di HEADER_SIZE byte (MAGIC, VERSION, RECORD_SIZE) seguito da record di
+ * RECORD_SIZE byte:
+ *
+ *   TIME (8 byte, millisecondi) | VALUE (4 byte) | KIND (2 byte) | CHECK (2 byte)
+ *
+ * KIND vale KIND_SAMPLE per una probabilità (in VALUE) oppure KIND_EVENT + ordinal dell'evento.
+ * CHECK è calcolato dagli altri campi e un record di soli zeri non è mai valido: il file viene creato pieno di zeri,
+ * quindi all'avvio il primo record con CHECK errato indica la fine dei dati validi (anche se il processo è terminato
+ * a metà di una scrittura) e le scritture ripartono da lì.
+ *
+ * TIME è l'ora di sistema, che può tornare indietro (cambio manuale, sincronizzazione di rete): i segmenti in cui
+ * gli istanti non sono crescenti vengono riconosciuti e letti per intero invece che per bisezione.
+ */
+public final class TelemetryLog {
+
+    /**
+     * Riceve i record letti dal registro, in ordine di scrittura.
+     */
+    public interface RecordVisitor {
+        void onRecord(long time, int kind, int value);
+    }
+
+    public static final int KIND_SAMPLE = 0;
+    public static final int KIND_EVENT = 1;
+
+    public static final int MAGIC = 0x4D594354; // "MYCT"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 16;
+    public static final int RECORD_SIZE = 16;
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final Event[] EVENTS = Event.values();
+
+    private final File directory;
+    private final int segmentRecords;
+    private final int maxSegments;
+
+    private long[] segments; // numeri dei segmenti presenti, in ordine crescente; l'ultimo è quello attivo
+    private RandomAccessFile file;
+    private MappedByteBuffer buffer;
+    private int records; // record scritti nel segmento attivo
+    private long lastTime; // istante dell'ultimo record del segmento attivo
+    private boolean ordered; // true se gli istanti del segmento attivo sono crescenti
+    private final Map<Long, Boolean> orderedSegments = new HashMap<>(); // lo stesso per i segmenti chiusi già letti
+
+    private long recordsWritten;
+    private long recordsRecovered;
+    private long segmentsRolled;
+    private boolean closed;
+
+    /**
+     * Apre il registro, recuperando i record validi dell'ultimo segmento.
+     * @param directory cartella dei segmenti, viene creata se non esiste
+     * @param segmentRecords numero di record per segmento
+     * @param maxSegments numero massimo di segmenti da mantenere, almeno 1
+     * @throws IOException se non è possibile aprire o creare il segmento attivo
+     */
+    public TelemetryLog(final File directory, final int segmentRecords, final int maxSegments) throws IOException {
+        if(segmentRecords < 1 || maxSegments < 1) {
+            throw new IllegalArgumentException("Servono almeno un segmento e un record per segmento");
+        }
+        if(!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Impossibile creare " + directory);
+        }
+
+        this.directory = directory;
+        this.segmentRecords = segmentRecords;
+        this.maxSegments = maxSegments;
+        this.segments = this.listSegments();
+
+        if(this.segments.length == 0) {
+            this.openSegment(1, true);
+        } else {
+            this.recover(this.segments[this.segments.length - 1]);
+        }
+    }
+
+    /**
+     * @param kind tipo di un record
+     * @return l'evento registrato in un record di tipo kind, null se il record è un sample
+     */
+    public static Event eventOf(final int kind) {
+        return kind >= KIND_EVENT && kind - KIND_EVENT < EVENTS.length? EVENTS[kind - KIND_EVENT] : null;
+    }
+
+    /**
+     * Aggiunge una probabilità ricevuta dal device.
+     * @param time istante di ricezione in millisecondi
+     * @param probability
+     */
+    public void appendSample(final long time, final int probability) {
+        this.append(time, KIND_SAMPLE, probability);
+    }
+
+    /**
+     * Aggiunge un evento della connessione.
+     * @param time istante dell'evento in millisecondi
+     * @param event
+     * @param value valore associato all'evento (per esempio la probabilità stimata quando è arrivato)
+     */
+    public void appendEvent(final long time, final Event event, final int value) {
+        this.append(time, KIND_EVENT + event.ordinal(), value);
+    }
+
+    /**
+     * Legge tutti i record presenti, dal segmento più vecchio al più recente.
+     * @param visitor
+     * @throws IOException
+     */
+    public void read(final RecordVisitor visitor) throws IOException {
+        this.read(Long.MIN_VALUE, Long.MAX_VALUE, visitor);
+    }
+
+    /**
+     * Legge i record con istante compreso in [from, to), dal segmento più vecchio al più recente.
+     * Il primo record di ogni segmento fa da indice: i segmenti che iniziano dopo to non vengono letti e dentro un
+     * segmento il primo record utile viene cercato per bisezione, quindi il costo dipende dai record letti e non
+     * dalla dimensione del registro. Se l'ora di sistema è tornata indietro durante un segmento, quel segmento viene
+     * letto tutto e i record fuori da [from, to) vengono saltati; la verifica di un segmento chiuso si fa una volta.
+     * @param from istante iniziale in millisecondi, incluso
+     * @param to istante finale in millisecondi, escluso
+     * @param visitor
+     * @throws IOException
+     */
+    public void read(final long from, final long to, final RecordVisitor visitor) throws IOException {
+        final long[] segments;
+        final int activeRecords;
+        final boolean activeOrdered;
+
+        synchronized (this) {
+            segments = this.segments;
+            activeRecords = this.records;
+            activeOrdered = this.ordered;
+        }
+
+        for(int i = 0; i < segments.length; i++) {
+            final boolean active = i == segments.length - 1;
+            final RandomAccessFile segment;
+            try {
+                segment = new RandomAccessFile(this.segmentFile(segments[i]), "r");
+            } catch (IOException e) {
+                continue; // Segmento cancellato nel frattempo
+            }
+
+            try {
+                final int length = (int) Math.min(segment.length(), HEADER_SIZE + (long) this.segmentRecords * RECORD_SIZE);
+                if(length < HEADER_SIZE) {
+                    continue;
+                }
+                final ByteBuffer data = segment.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+                final int maxRecords = active? activeRecords : (length - HEADER_SIZE) / RECORD_SIZE;
+                if(data.getInt(0) != MAGIC || maxRecords == 0 || !isValid(data, 0)) {
+                    continue;
+                }
+                if(!(active? activeOrdered : this.isOrdered(segments[i], data, maxRecords))) {
+                    filter(data, maxRecords, from, to, visitor);
+                } else if(data.getLong(HEADER_SIZE) < to) {
+                    // Un segmento che inizia dopo to viene saltato ma non interrompe la lettura: se l'ora è tornata
+                    // indietro i segmenti successivi possono contenere istanti precedenti
+                    scan(data, lowerBound(data, maxRecords, from), maxRecords, to, visitor);
+                }
+            } finally {
+                segment.close();
+            }
+        }
+    }
+
+    /**
+     * Forza la scrittura su disco del segmento attivo. Non serve per sopravvivere alla terminazione del processo,
+     * solo a uno spegnimento improvviso: va chiamato fuori dal thread di ricezione.
+     */
+    public synchronized void force() {
+        if(!this.closed) {
+            this.buffer.force();
+        }
+    }
+
+    /**
+     * Scrive su disco e chiude il segmento attivo. I record aggiunti dopo vengono ignorati.
+     */
+    public synchronized void close() {
+        if(this.closed) {
+            return;
+        }
+        this.closed = true;
+        this.buffer.force();
+        try {
+            this.file.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        this.buffer = null;
+    }
+
+    /**
+     * @return numero di record aggiunti dall'apertura del registro
+     */
+    public synchronized long getRecordsWritten() {
+        return this.recordsWritten;
+    }
+
+    /**
+     * @return numero di record validi trovati nell'ultimo segmento all'apertura
+     */
+    public synchronized long getRecordsRecovered() {
+        return this.recordsRecovered;
+    }
+
+    /**
+     * @return numero di segmenti creati perchè il precedente era pieno
+     */
+    public synchronized long getSegmentsRolled() {
+        return this.segmentsRolled;
+    }
+
+    private synchronized void append(final long time, final int kind, final int value) {
+        if(this.closed) {
+            return;
+        }
+
+        if(this.records == this.segmentRecords) {
+            try {
+                this.roll();
+            } catch (IOException e) {
+                Log.d("AndroidCar", "Impossibile creare un nuovo segmento: " + e.getMessage());
+                return;
+            }
+        }
+
+        final int position = HEADER_SIZE + this.records * RECORD_SIZE;
+        this.buffer.putLong(position, time);
+        this.buffer.putInt(position + 8, value);
+        this.buffer.putShort(position + 12, (short) kind);
+        this.buffer.putShort(position + 14, (short) check(time, kind, value));
+        if(this.records > 0 && time < this.lastTime) {
+            this.ordered = false;
+        }
+        this.lastTime = time;
+        this.records++;
+        this.recordsWritten++;
+    }
+
+    /* Chiude il segmento attivo, ne crea uno nuovo e cancella i più vecchi oltre maxSegments */
+    private void roll() throws IOException {
+        final long next = this.segments[this.segments.length - 1] + 1;
+
+        this.orderedSegments.put(next - 1, this.ordered);
+        this.buffer.force();
+        this.file.close();
+        this.openSegment(next, true);
+        this.segmentsRolled++;
+
+        while(this.segments.length > this.maxSegments) {
+            if(!this.segmentFile(this.segments[0]).delete()) {
+                Log.d("AndroidCar", "Impossibile cancellare il segmento " + this.segments[0]);
+            }
+            this.orderedSegments.remove(this.segments[0]);
+            this.segments = Arrays.copyOfRange(this.segments, 1, this.segments.length);
+        }
+    }
+
+    /* Riapre l'ultimo segmento e riparte dopo l'ultimo record valido; se è pieno o illeggibile ne crea uno nuovo */
+    private void recover(final long number) throws IOException {
+        final File segment = this.segmentFile(number);
+
+        if(segment.length() == HEADER_SIZE + (long) this.segmentRecords * RECORD_SIZE) {
+            this.openSegment(number, false);
+            if(this.buffer.getInt(0) == MAGIC && this.buffer.getShort(4) == VERSION) {
+                this.records = scan(this.buffer, 0, this.segmentRecords, Long.MAX_VALUE, null);
+                this.recordsRecovered = this.records;
+                if(this.records < this.segmentRecords) {
+                    this.ordered = ordered(this.buffer, this.records);
+                    if(this.records > 0) {
+                        this.lastTime = this.buffer.getLong(HEADER_SIZE + (this.records - 1) * RECORD_SIZE);
+                    }
+                    return;
+                }
+            }
+            this.file.close();
+        }
+
+        // Segmento pieno, di un'altra dimensione o di un'altra versione: non lo tocco e ne creo uno nuovo
+        this.openSegment(number + 1, true);
+    }
+
+    private void openSegment(final long number, final boolean create) throws IOException {
+        final long length = HEADER_SIZE + (long) this.segmentRecords * RECORD_SIZE;
+
+        this.file = new RandomAccessFile(this.segmentFile(number), "rw");
+        if(create) {
+            this.file.setLength(0);
+            this.file.setLength(length);
+        }
+        this.buffer = this.file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+        this.records = 0;
+        this.ordered = true;
+
+        if(create) {
+            this.buffer.putInt(0, MAGIC);
+            this.buffer.putShort(4, (short) VERSION);
+            this.buffer.putShort(6, (short) RECORD_SIZE);
+            this.buffer.putLong(8, System.currentTimeMillis());
+
+            if(this.segments.length == 0 || this.segments[this.segments.length - 1] != number) {
+                this.segments = Arrays.copyOf(this.segments, this.segments.length + 1);
+                this.segments[this.segments.length - 1] = number;
+            }
+        }
+    }
+
+    private long[] listSegments() {
+        final String[] names = this.directory.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+
+        final long[] numbers = new long[names == null? 0 : names.length];
+        int count = 0;
+        for(int i = 0; i < numbers.length; i++) {
+            try {
+                numbers[count] = Long.parseLong(names[i].substring(0, names[i].length() - SEGMENT_SUFFIX.length()));
+                count++;
+            } catch (NumberFormatException e) {
+                Log.d("AndroidCar", "File ignorato nel registro: " + names[i]);
+            }
+        }
+
+        final long[] segments = Arrays.copyOf(numbers, count);
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    private File segmentFile(final long number) {
+        return new File(this.directory, String.format("%08d", number) + SEGMENT_SUFFIX);
+    }
+
+    /* Passa al visitor (se non è null) i record validi a partire da first e con istante minore di to,
+       fermandosi al primo con CHECK errato; ritorna l'indice del primo record non passato */
+    private static int scan(final ByteBuffer data, final int first, final int maxRecords, final long to,
+                            final RecordVisitor visitor) {
+        int index = first;
+
+        while(index < maxRecords && isValid(data, index)) {
+            final int position = HEADER_SIZE + index * RECORD_SIZE;
+            final long time = data.getLong(position);
+            if(time >= to) {
+                break;
+            }
+            if(visitor != null) {
+                visitor.onRecord(time, data.getShort(position + 12) & 0xFFFF, data.getInt(position + 8));
+            }
+            index++;
+        }
+
+        return index;
+    }
+
+    /* Passa al visitor tutti i record validi con istante in [from, to), senza assumere che siano in ordine */
+    private static void filter(final ByteBuffer data, final int maxRecords, final long from, final long to,
+                               final RecordVisitor visitor) {
+        for(int index = 0; index < maxRecords && isValid(data, index); index++) {
+            final int position = HEADER_SIZE + index * RECORD_SIZE;
+            final long time = data.getLong(position);
+            if(time >= from && time < to) {
+                visitor.onRecord(time, data.getShort(position + 12) & 0xFFFF, data.getInt(position + 8));
+            }
+        }
+    }
+
+    /* true se gli istanti dei record validi di un segmento chiuso sono crescenti; il risultato viene ricordato */
+    private boolean isOrdered(final long number, final ByteBuffer data, final int maxRecords) {
+        synchronized (this) {
+            final Boolean known = this.orderedSegments.get(number);
+            if(known != null) {
+                return known;
+            }
+        }
+
+        final boolean result = ordered(data, maxRecords);
+        synchronized (this) {
+            if(number >= this.segments[0]) { // Non ancora cancellato da roll()
+                this.orderedSegments.put(number, result);
+            }
+        }
+        return result;
+    }
+
+    private static boolean ordered(final ByteBuffer data, final int maxRecords) {
+        long previous = Long.MIN_VALUE;
+        for(int index = 0; index < maxRecords && isValid(data, index); index++) {
+            final long time = data.getLong(HEADER_SIZE + index * RECORD_SIZE);
+            if(time < previous) {
+                return false;
+            }
+            previous = time;
+        }
+        return true;
+    }
+
+    /* Indice del primo record con istante maggiore o uguale a from (i record non validi sono tutti in fondo) */
+    private static int lowerBound(final ByteBuffer data, final int maxRecords, final long from) {
+        int low = 0;
+        int high = maxRecords;
+
+        while(low < high) {
+            final int middle = (low + high) >>> 1;
+            if(isValid(data, middle) && data.getLong(HEADER_SIZE + middle * RECORD_SIZE) < from) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+
+    private static boolean isValid(final ByteBuffer data, final int index) {
+        final int position = HEADER_SIZE + index * RECORD_SIZE;
+        return (data.getShort(position + 14) & 0xFFFF)
+                == check(data.getLong(position), data.getShort(position + 12) & 0xFFFF, data.getInt(position + 8));
+    }
+
+    /* 16 bit calcolati dai campi del record, diversi da 0 per un record di soli zeri */
+    private static int check(final long time, final int kind, final int value) {
+        int hash = (int) time ^ (int) (time >>> 32);
+        hash = hash * 31 + value;
+        hash = hash * 31 + kind;
+        hash ^= hash >>> 16;
+        return (hash ^ 0x5A5A) & 0xFFFF;
+    }
+}
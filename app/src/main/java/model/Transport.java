@@ -0,0 +1,52 @@
+package model;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Canale di comunicazione con il device usato da ConnectionHandler.
+ * Ogni chiamata a connect() apre una nuova connessione, che resta valida finchè non viene invocato close().
+ *
+ * L'implementazione usata dall'applicazione è RfcommTransport (socket bluetooth); PipedTransport e TcpTransport
+ * permettono di far girare la stessa pipeline di connessione su una JVM senza bluetooth.
+ */
+public interface Transport {
+
+    /**
+     * @return nome leggibile del device, mostrato all'utente
+     */
+    String getName();
+
+    /**
+     * @return indirizzo che identifica il device
+     */
+    String getAddress();
+
+    /**
+     * @return false se il mezzo di comunicazione non è disponibile (per esempio bluetooth disattivato):
+     *         in tal caso è inutile provare a connettersi
+     */
+    boolean isAvailable();
+
+    /**
+     * Apre una nuova connessione con il device. Bloccante.
+     * @throws IOException se la connessione non riesce
+     */
+    void connect() throws IOException;
+
+    /**
+     * @return true se la connessione aperta con connect() è ancora attiva
+     */
+    boolean isConnected();
+
+    InputStream getInputStream() throws IOException;
+
+    OutputStream getOutputStream() throws IOException;
+
+    /**
+     * Chiude la connessione. Un'eventuale read() bloccata sullo stream termina con una IOException.
+     * @throws IOException
+     */
+    void close() throws IOException;
+}
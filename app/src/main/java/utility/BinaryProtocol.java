@@ -0,0 +1,129 @@
+package utility;
+
+/**
+ * Costanti e funzioni del protocollo binario opzionale tra telefono e device.
+ *
+ * Il protocollo di default è testuale: interi ASCII terminati da '\n' (o frame di telemetria, vedi model.Telemetry).
+ * Appena connesso il telefono manda la stringa HELLO;
+ * un device che supporta il protocollo binario risponde con la stringa (testuale) ACK e da quel momento manda solo frame binari.
+ * Un device che non lo supporta ignora HELLO e continua a mandare testo, quindi non serve nessuna configurazione.
+ *
+ * Formato di un frame binario:
+ *
+ *   SYNC (1 byte) | LENGTH (1 byte) | TYPE (1 byte) | PAYLOAD (LENGTH - 1 byte) | CRC (2 byte, big endian)
+ *
+ * - LENGTH comprende TYPE e PAYLOAD, quindi vale almeno 1
+ * - il PAYLOAD è una sequenza di campi codificati come varint (LEB128 senza segno, 7 bit per byte)
+ * - il CRC è un CRC-16/CCITT (polinomio 0x1021, valore iniziale 0xFFFF) calcolato su LENGTH, TYPE e PAYLOAD
+ *
+ * Un frame con CRC errato viene scartato e il decoder si risincronizza cercando il SYNC successivo.
+ */
+public final class BinaryProtocol {
+
+    private BinaryProtocol() { }
+
+    public static final String HELLO = "BIN?";
+    public static final String ACK = "BIN1";
+
+    public static final byte SYNC = (byte) 0xA5;
+
+    // Tipi di frame
+    public static final byte TYPE_PROBABILITY = 0x01; // un campo: probabilità di chiusura (0-100)
+    public static final byte TYPE_TELEMETRY = 0x02; // coppie (campo, valore), campi definiti in model.Telemetry
+
+    public static final int HEADER_SIZE = 3; // SYNC + LENGTH + TYPE
+    public static final int CRC_SIZE = 2;
+    public static final int MAX_PAYLOAD_SIZE = 254; // LENGTH è un byte e comprende TYPE
+    public static final int MAX_FRAME_SIZE = HEADER_SIZE + MAX_PAYLOAD_SIZE + CRC_SIZE;
+
+    private static final int CRC_INITIAL_VALUE = 0xFFFF;
+
+    /**
+     * @return il valore iniziale da passare al primo crc16Update
+     */
+    public static int crc16Start() {
+        return CRC_INITIAL_VALUE;
+    }
+
+    /**
+     * Aggiorna un CRC-16/CCITT con un byte.
+     * @param crc valore corrente
+     * @param b byte da aggiungere
+     * @return il nuovo valore del CRC
+     */
+    public static int crc16Update(final int crc, final byte b) {
+        int value = crc ^ ((b & 0xFF) << 8);
+        for(int i = 0; i < 8; i++) {
+            value = (value & 0x8000) != 0? (value << 1) ^ 0x1021 : value << 1;
+        }
+        return value & 0xFFFF;
+    }
+
+    /**
+     * @return numero di byte necessari per codificare value come varint
+     */
+    public static int varintSize(final int value) {
+        int size = 1;
+        int rest = value >>> 7;
+        while(rest != 0) {
+            size++;
+            rest >>>= 7;
+        }
+        return size;
+    }
+
+    /**
+     * Scrive value come varint.
+     * @param value
+     * @param out
+     * @param offset
+     * @return posizione successiva all'ultimo byte scritto
+     */
+    public static int writeVarint(final int value, final byte[] out, final int offset) {
+        int position = offset;
+        int rest = value;
+
+        while((rest & ~0x7F) != 0) {
+            out[position++] = (byte) ((rest & 0x7F) | 0x80);
+            rest >>>= 7;
+        }
+        out[position++] = (byte) rest;
+        return position;
+    }
+
+    /**
+     * Codifica un frame binario completo (SYNC, LENGTH, TYPE, campi varint, CRC).
+     * @param type tipo del frame
+     * @param fields valori dei campi, in ordine
+     * @param out array di destinazione, deve contenere almeno MAX_FRAME_SIZE byte a partire da offset
+     * @param offset
+     * @return numero di byte scritti
+     * @throws IllegalArgumentException se i campi non entrano in un frame
+     */
+    public static int encodeFrame(final byte type, final int[] fields, final byte[] out, final int offset) {
+        int payloadSize = 0;
+        for(int field : fields) {
+            payloadSize += varintSize(field);
+        }
+        if(payloadSize > MAX_PAYLOAD_SIZE) {
+            throw new IllegalArgumentException("Payload troppo grande: " + payloadSize + " byte");
+        }
+
+        int position = offset;
+        out[position++] = SYNC;
+        out[position++] = (byte) (payloadSize + 1);
+        out[position++] = type;
+        for(int field : fields) {
+            position = writeVarint(field, out, position);
+        }
+
+        int crc = crc16Start();
+        for(int i = offset + 1; i < position; i++) {
+            crc = crc16Update(crc, out[i]);
+        }
+        out[position++] = (byte) (crc >>> 8);
+        out[position++] = (byte) crc;
+
+        return position - offset;
+    }
+}
@@ -0,0 +1,163 @@
+package utility;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Registro in memoria dei device accoppiati con il telefono, condiviso da tutto il processo.
+ *
+ * BluetoothAdapter.getBondedDevices() è una chiamata IPC al servizio bluetooth che copia ogni volta l'insieme dei
+ * device; il registro la esegue una sola volta e indicizza i device per indirizzo e per nome, quindi le ricerche
+ * sono accessi ad una HashMap senza IPC.
+ * L'elenco viene invalidato quando arriva un ACTION_BOND_STATE_CHANGED (device accoppiato o disaccoppiato) o un
+ * ACTION_STATE_CHANGED (bluetooth attivato o disattivato) e ricaricato alla prima ricerca successiva, così una
+ * raffica di Intent costa una sola IPC.
+ */
+public final class DeviceRegistry {
+
+    private static volatile DeviceRegistry instance;
+
+    private final AtomicInteger generation = new AtomicInteger(); // incrementato ad ogni invalidazione
+    private volatile Snapshot snapshot; // null finchè non viene caricato la prima volta
+    private volatile long reloads;
+
+    private DeviceRegistry() { }
+
+    /**
+     * Restituisce il registro, registrando alla prima richiesta il receiver che lo invalida.
+     * @param context
+     * @return
+     */
+    public static DeviceRegistry getInstance(final Context context) {
+        DeviceRegistry registry = instance;
+
+        if(registry == null) {
+            synchronized (DeviceRegistry.class) {
+                registry = instance;
+                if(registry == null) {
+                    registry = new DeviceRegistry();
+                    final IntentFilter filter = new IntentFilter(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
+                    filter.addAction(BluetoothAdapter.ACTION_STATE_CHANGED);
+                    // Il registro vive quanto il processo, quindi uso il contesto dell'applicazione
+                    context.getApplicationContext().registerReceiver(new InvalidationReceiver(registry), filter);
+                    instance = registry;
+                }
+            }
+        }
+
+        return registry;
+    }
+
+    /**
+     * @param address indirizzo fisico del device
+     * @return il device accoppiato con quell'indirizzo, null se non c'è
+     */
+    public BluetoothDevice getDeviceByAddress(final String address) {
+        return this.getSnapshot().byAddress.get(address);
+    }
+
+    /**
+     * @param name nome del device
+     * @return il primo device accoppiato con quel nome, null se non c'è
+     */
+    public BluetoothDevice getDeviceByName(final String name) {
+        return this.getSnapshot().byName.get(name);
+    }
+
+    /**
+     * @return i device accoppiati, in una lista non modificabile (vuota se il bluetooth è disattivato)
+     */
+    public List<BluetoothDevice> getDevices() {
+        return this.getSnapshot().devices;
+    }
+
+    /**
+     * Forza il caricamento dei device alla prossima ricerca.
+     */
+    public void invalidate() {
+        this.generation.incrementAndGet();
+    }
+
+    /**
+     * @return numero di volte che l'elenco è stato chiesto al servizio bluetooth
+     */
+    public long getReloads() {
+        return this.reloads;
+    }
+
+    private Snapshot getSnapshot() {
+        final Snapshot current = this.snapshot;
+        if(current != null && current.generation == this.generation.get()) {
+            return current;
+        }
+        return this.reload();
+    }
+
+    /* Un solo thread alla volta fa l'IPC, gli altri trovano l'elenco già aggiornato */
+    private synchronized Snapshot reload() {
+        final int generation = this.generation.get();
+        final Snapshot current = this.snapshot;
+        if(current != null && current.generation == generation) {
+            return current;
+        }
+
+        // Se nel frattempo arriva un'invalidazione la generazione non corrisponde e la ricerca successiva ricarica
+        final Snapshot loaded = new Snapshot(generation, BluetoothAdapter.getDefaultAdapter().getBondedDevices());
+        this.snapshot = loaded;
+        this.reloads++;
+        Log.d("AndroidCar", "Device accoppiati caricati: " + loaded.devices.size());
+        return loaded;
+    }
+
+    /* Elenco immutabile dei device accoppiati con i suoi indici */
+    private static final class Snapshot {
+        private final int generation;
+        private final List<BluetoothDevice> devices;
+        private final Map<String, BluetoothDevice> byAddress = new HashMap<>();
+        private final Map<String, BluetoothDevice> byName = new HashMap<>();
+
+        Snapshot(final int generation, final Set<BluetoothDevice> bonded) {
+            this.generation = generation;
+
+            final List<BluetoothDevice> devices = new ArrayList<>();
+            if(bonded != null) {
+                for(BluetoothDevice device : bonded) {
+                    devices.add(device);
+                    this.byAddress.put(device.getAddress(), device);
+
+                    final String name = device.getName(); // null se il nome non è ancora disponibile
+                    if(name != null && !this.byName.containsKey(name)) {
+                        this.byName.put(name, device);
+                    }
+                }
+            }
+            this.devices = Collections.unmodifiableList(devices);
+        }
+    }
+
+    private static final class InvalidationReceiver extends BroadcastReceiver {
+        private final DeviceRegistry registry;
+
+        InvalidationReceiver(final DeviceRegistry registry) {
+            this.registry = registry;
+        }
+
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            this.registry.invalidate();
+        }
+    }
+}
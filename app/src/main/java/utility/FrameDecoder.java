@@ -0,0 +1,492 @@
+package utility;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Decoder dei messaggi ricevuti dal device, pensato per essere riutilizzato per tutta la durata di una connessione.
+ * Ogni messaggio (frame) è una sequenza di byte terminata da '\n' o '\r'; frame vuoti (per esempio tra '\r' e '\n')
+ * vengono ignorati.
+ *
+ * I byte letti vengono accumulati in un buffer circolare che sopravvive tra una lettura e l'altra, quindi:
+ * - se una lettura contiene più frame vengono emessi tutti, nell'ordine in cui sono arrivati
+ * - se una lettura contiene solo una parte di un frame, il resto viene atteso nelle letture successive
+ *
+ * Il decoder non alloca memoria per ogni frame: il frame viene passato al FrameHandler come "vista" sul buffer,
+ * valida solo durante la chiamata a onFrame(). I payload numerici possono essere letti direttamente dai byte con parseInt().
+ * Un frame più lungo della capacità del buffer viene scartato fino al terminatore successivo.
+ *
+ * Se il device supporta il protocollo binario (vedi BinaryProtocol) il decoder può essere portato in modalità binaria con
+ * setBinaryMode(true), anche dall'interno di onFrame(): i byte successivi al frame corrente vengono interpretati come
+ * frame binari. In questa modalità i frame con CRC errato vengono scartati e il decoder si risincronizza da solo;
+ * il payload si legge con type(), hasNextField() e nextVarint().
+ *
+ * Non è thread safe: va usato dal solo thread che legge dallo stream.
+ */
+public final class FrameDecoder {
+
+    /**
+     * Riceve i frame completi riconosciuti dal decoder.
+     */
+    public interface FrameHandler {
+        /**
+         * @param frame il decoder stesso, posizionato sul frame appena riconosciuto.
+         *              I metodi length(), byteAt(), indexOf(), parseInt(), type(), nextVarint() e toString() fanno riferimento a questo frame
+         *              e sono validi solo fino al ritorno da questo metodo.
+         */
+        void onFrame(FrameDecoder frame);
+    }
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private final byte[] buffer;
+    private final int mask;
+    private final byte[] scratch; // usato solo da toString() quando il frame attraversa la fine del buffer
+
+    private long frameStart; // posizione assoluta del primo byte del frame in costruzione
+    private long scanPosition; // posizione assoluta del prossimo byte da esaminare in modalità testuale
+    private long writePosition; // posizione assoluta del prossimo byte da scrivere
+    private boolean discarding; // true se il frame corrente ha superato la capacità e va scartato
+    private boolean binary; // true se i byte vanno interpretati come frame binari
+
+    // Frame corrente, valido durante onFrame()
+    private int currentOffset;
+    private int currentLength;
+    private boolean currentBinary;
+    private byte currentType;
+    private int cursor; // prossimo byte del payload letto da nextVarint()
+
+    private long lastReadTime; // System.nanoTime() all'arrivo dei byte dell'ultima lettura
+
+    private long framesDecoded;
+    private long framesDiscarded;
+    private long framesCorrupted;
+    private long garbageBytes;
+
+    public FrameDecoder() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity dimensione del buffer, viene arrotondata alla potenza di 2 successiva.
+     *                 Un frame (terminatore escluso) può essere lungo al massimo capacity - 1 byte
+     */
+    public FrameDecoder(final int capacity) {
+        if(capacity <= 0) {
+            throw new IllegalArgumentException("capacity deve essere positiva");
+        }
+        final int size = Integer.highestOneBit(capacity) == capacity? capacity : Integer.highestOneBit(capacity) << 1;
+        this.buffer = new byte[size];
+        this.mask = size - 1;
+        this.scratch = new byte[size];
+    }
+
+    /**
+     * Effettua una singola lettura dallo stream (bloccante, come InputStream.read) e passa all'handler
+     * tutti i frame completati da questa lettura.
+     * @param input stream da cui leggere
+     * @param handler
+     * @return numero di byte letti, -1 se lo stream è terminato
+     * @throws IOException
+     */
+    public int readFrom(final InputStream input, final FrameHandler handler) throws IOException {
+        if(this.writePosition - this.frameStart == this.buffer.length) {
+            // Buffer pieno senza terminatore: il frame è troppo lungo, lo scarto e ricomincio
+            this.discardCurrentFrame();
+        }
+
+        final int writeIndex = (int) (this.writePosition & this.mask);
+        final int free = this.buffer.length - (int) (this.writePosition - this.frameStart);
+        final int count = input.read(this.buffer, writeIndex, Math.min(free, this.buffer.length - writeIndex));
+        this.lastReadTime = System.nanoTime();
+
+        if(count > 0) {
+            this.scan(count, handler);
+        }
+
+        return count;
+    }
+
+    /**
+     * Passa al decoder un blocco di byte già letto, emettendo tutti i frame completati.
+     * @param bytes
+     * @param offset
+     * @param length
+     * @param handler
+     */
+    public void decode(final byte[] bytes, final int offset, final int length, final FrameHandler handler) {
+        int position = offset;
+        final int end = offset + length;
+        this.lastReadTime = System.nanoTime();
+
+        while(position < end) {
+            if(this.writePosition - this.frameStart == this.buffer.length) {
+                this.discardCurrentFrame();
+            }
+
+            final int writeIndex = (int) (this.writePosition & this.mask);
+            final int free = this.buffer.length - (int) (this.writePosition - this.frameStart);
+            final int count = Math.min(end - position, Math.min(free, this.buffer.length - writeIndex));
+            System.arraycopy(bytes, position, this.buffer, writeIndex, count);
+            position += count;
+            this.scan(count, handler);
+        }
+    }
+
+    /**
+     * Scarta il frame parziale eventualmente accumulato e torna in modalità testuale,
+     * per esempio quando la connessione viene persa.
+     */
+    public void reset() {
+        this.frameStart = this.writePosition;
+        this.scanPosition = this.writePosition;
+        this.discarding = false;
+        this.binary = false;
+    }
+
+    /**
+     * Cambia il formato con cui vengono interpretati i byte successivi al frame corrente.
+     * @param binary true per i frame binari di BinaryProtocol, false per il protocollo testuale
+     */
+    public void setBinaryMode(final boolean binary) {
+        this.binary = binary;
+        this.scanPosition = this.frameStart;
+        this.discarding = false;
+    }
+
+    /**
+     * @return true se il decoder sta interpretando i byte come frame binari
+     */
+    public boolean isBinaryMode() {
+        return this.binary;
+    }
+
+    /**
+     * @return true se il frame corrente è un frame binario
+     */
+    public boolean isBinary() {
+        return this.currentBinary;
+    }
+
+    /**
+     * @return il tipo del frame binario corrente (vedi le costanti TYPE_* di BinaryProtocol), 0 per i frame testuali
+     */
+    public byte type() {
+        return this.currentType;
+    }
+
+    /**
+     * @return true se nel payload del frame corrente ci sono ancora campi da leggere con nextVarint()
+     */
+    public boolean hasNextField() {
+        return this.cursor < this.currentLength;
+    }
+
+    /**
+     * Legge il prossimo campo varint del payload del frame corrente.
+     * @return il valore del campo
+     * @throws NumberFormatException se il payload è terminato o il varint è malformato
+     */
+    public int nextVarint() {
+        int result = 0;
+        int shift = 0;
+
+        while(true) {
+            if(this.cursor >= this.currentLength || shift > 28) {
+                throw new NumberFormatException("varint malformato");
+            }
+            final byte b = this.byteAt(this.cursor++);
+            result |= (b & 0x7F) << shift;
+            if((b & 0x80) == 0) {
+                return result;
+            }
+            shift += 7;
+        }
+    }
+
+    /**
+     * @return lunghezza in byte del frame corrente (terminatore escluso)
+     */
+    public int length() {
+        return this.currentLength;
+    }
+
+    /**
+     * @param index posizione all'interno del frame corrente
+     * @return il byte in quella posizione
+     */
+    public byte byteAt(final int index) {
+        if(index < 0 || index >= this.currentLength) {
+            throw new IndexOutOfBoundsException("index: " + index + ", length: " + this.currentLength);
+        }
+        return this.buffer[(this.currentOffset + index) & this.mask];
+    }
+
+    /**
+     * Cerca un byte nel frame corrente.
+     * @param b byte da cercare
+     * @param from posizione da cui iniziare la ricerca
+     * @return la posizione della prima occorrenza a partire da from, -1 se non c'è
+     */
+    public int indexOf(final byte b, final int from) {
+        for(int i = Math.max(0, from); i < this.currentLength; i++) {
+            if(this.buffer[(this.currentOffset + i) & this.mask] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Confronta il frame corrente con una stringa ASCII senza creare stringhe.
+     * @param ascii
+     * @return true se il frame contiene esattamente i caratteri di ascii
+     */
+    public boolean matches(final String ascii) {
+        if(ascii.length() != this.currentLength) {
+            return false;
+        }
+        for(int i = 0; i < this.currentLength; i++) {
+            if(this.byteAt(i) != ascii.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Interpreta il frame corrente come intero decimale con segno opzionale, senza creare stringhe.
+     * Spazi iniziali e finali vengono ignorati.
+     * @return il valore letto
+     * @throws NumberFormatException se il frame non contiene un intero valido
+     */
+    public int parseInt() {
+        return this.parseInt(0, this.currentLength);
+    }
+
+    /**
+     * Come parseInt(), limitato ai byte del frame corrente da start (incluso) a end (escluso), per esempio il valore
+     * di un campo di un frame con più campi.
+     * @param from
+     * @param to
+     * @return il valore letto
+     * @throws NumberFormatException se l'intervallo non contiene un intero valido
+     */
+    public int parseInt(final int from, final int to) {
+        if(from < 0 || to > this.currentLength || from > to) {
+            throw new IndexOutOfBoundsException("from: " + from + ", to: " + to + ", length: " + this.currentLength);
+        }
+
+        int start = from;
+        int end = to;
+
+        while(start < end && this.byteAt(start) == ' ') start++;
+        while(end > start && this.byteAt(end - 1) == ' ') end--;
+
+        if(start == end) {
+            throw new NumberFormatException("frame vuoto");
+        }
+
+        boolean negative = false;
+        final byte first = this.byteAt(start);
+        if(first == '-' || first == '+') {
+            negative = first == '-';
+            start++;
+            if(start == end) {
+                throw new NumberFormatException("frame senza cifre");
+            }
+        }
+
+        // Accumulo in negativo come Integer.parseInt per poter rappresentare Integer.MIN_VALUE
+        final int limit = negative? Integer.MIN_VALUE : -Integer.MAX_VALUE;
+        final int multiplyLimit = limit / 10;
+        int result = 0;
+
+        for(int i = start; i < end; i++) {
+            final int digit = this.byteAt(i) - '0';
+            if(digit < 0 || digit > 9) {
+                throw new NumberFormatException("carattere non numerico nel frame");
+            }
+            if(result < multiplyLimit || result * 10 < limit + digit) {
+                throw new NumberFormatException("valore fuori dal range di int");
+            }
+            result = result * 10 - digit;
+        }
+
+        return negative? result : -result;
+    }
+
+    /**
+     * @return il frame corrente decodificato come stringa UTF-8. A differenza degli altri accessori alloca memoria.
+     */
+    @Override
+    public String toString() {
+        return this.toString(0, this.currentLength);
+    }
+
+    /**
+     * @param from
+     * @param to
+     * @return i byte del frame corrente da from (incluso) a to (escluso) decodificati come stringa UTF-8
+     */
+    public String toString(final int from, final int to) {
+        if(from < 0 || to > this.currentLength || from > to) {
+            throw new IndexOutOfBoundsException("from: " + from + ", to: " + to + ", length: " + this.currentLength);
+        }
+
+        final int start = (this.currentOffset + from) & this.mask;
+        final int length = to - from;
+
+        if(start + length <= this.buffer.length) {
+            return new String(this.buffer, start, length, CHARSET);
+        }
+
+        final int firstPart = this.buffer.length - start;
+        System.arraycopy(this.buffer, start, this.scratch, 0, firstPart);
+        System.arraycopy(this.buffer, 0, this.scratch, firstPart, length - firstPart);
+        return new String(this.scratch, 0, length, CHARSET);
+    }
+
+    /**
+     * @return il valore di System.nanoTime() quando sono arrivati i byte dell'ultima lettura (o dell'ultimo decode()).
+     *         Durante onFrame() è l'istante di arrivo del frame corrente
+     */
+    public long getLastReadTime() {
+        return this.lastReadTime;
+    }
+
+    /**
+     * @return numero di frame emessi dalla creazione del decoder
+     */
+    public long getFramesDecoded() {
+        return this.framesDecoded;
+    }
+
+    /**
+     * @return numero di frame scartati perchè più lunghi della capacità del buffer
+     */
+    public long getFramesDiscarded() {
+        return this.framesDiscarded;
+    }
+
+    /**
+     * @return numero di frame binari scartati perchè con CRC errato o lunghezza non valida
+     */
+    public long getFramesCorrupted() {
+        return this.framesCorrupted;
+    }
+
+    /**
+     * @return numero di byte ignorati in modalità binaria mentre il decoder cercava il SYNC
+     */
+    public long getGarbageBytes() {
+        return this.garbageBytes;
+    }
+
+    /* Rende disponibili gli ultimi count byte scritti nel buffer ed emette tutti i frame completi */
+    private void scan(final int count, final FrameHandler handler) {
+        this.writePosition += count;
+
+        // Il formato può cambiare dopo ogni frame, quindi ricontrollo la modalità ad ogni iterazione
+        while(this.binary? this.scanBinary(handler) : this.scanText(handler)) { }
+    }
+
+    /* Cerca il prossimo terminatore. Restituisce false se servono altri byte per proseguire */
+    private boolean scanText(final FrameHandler handler) {
+        for(long position = this.scanPosition; position < this.writePosition; position++) {
+            final byte b = this.get(position);
+
+            if(b == '\n' || b == '\r') {
+                final long start = this.frameStart;
+                final int length = (int) (position - start);
+                this.frameStart = position + 1;
+                this.scanPosition = position + 1;
+
+                if(this.discarding) {
+                    this.discarding = false;
+                } else if(length > 0) {
+                    this.emit(handler, start, length, false, (byte) 0);
+                }
+                return true;
+            }
+        }
+
+        this.scanPosition = this.writePosition;
+        return false;
+    }
+
+    /* Prova a riconoscere un frame binario a partire da frameStart. Restituisce false se servono altri byte per proseguire */
+    private boolean scanBinary(final FrameHandler handler) {
+        final long available = this.writePosition - this.frameStart;
+
+        if(available < 1) {
+            return false;
+        }
+        if(this.get(this.frameStart) != BinaryProtocol.SYNC) {
+            this.garbageBytes++;
+            this.frameStart++;
+            return true;
+        }
+        if(available < 2) {
+            return false;
+        }
+
+        final int length = this.get(this.frameStart + 1) & 0xFF;
+        final int total = 2 + length + BinaryProtocol.CRC_SIZE;
+
+        if(length == 0 || total > this.buffer.length) {
+            // Il SYNC era in realtà un byte qualsiasi: riprendo la ricerca dal byte successivo
+            this.framesCorrupted++;
+            this.frameStart++;
+            return true;
+        }
+        if(available < total) {
+            return false;
+        }
+
+        int crc = BinaryProtocol.crc16Start();
+        for(long position = this.frameStart + 1; position < this.frameStart + 2 + length; position++) {
+            crc = BinaryProtocol.crc16Update(crc, this.get(position));
+        }
+        final int receivedCrc = (this.get(this.frameStart + 2 + length) & 0xFF) << 8
+                | (this.get(this.frameStart + 3 + length) & 0xFF);
+
+        if(crc != receivedCrc) {
+            this.framesCorrupted++;
+            this.frameStart++;
+            return true;
+        }
+
+        final long start = this.frameStart;
+        this.frameStart += total;
+        this.scanPosition = this.frameStart;
+        this.emit(handler, start + BinaryProtocol.HEADER_SIZE, length - 1, true, this.get(start + 2));
+        return true;
+    }
+
+    private void emit(final FrameHandler handler, final long start, final int length, final boolean binary, final byte type) {
+        this.currentOffset = (int) (start & this.mask);
+        this.currentLength = length;
+        this.currentBinary = binary;
+        this.currentType = type;
+        this.cursor = 0;
+        this.framesDecoded++;
+        handler.onFrame(this);
+    }
+
+    private byte get(final long position) {
+        return this.buffer[(int) (position & this.mask)];
+    }
+
+    private void discardCurrentFrame() {
+        if(!this.discarding) {
+            this.framesDiscarded++;
+        }
+        this.discarding = !this.binary;
+        this.frameStart = this.writePosition;
+        this.scanPosition = this.writePosition;
+    }
+}
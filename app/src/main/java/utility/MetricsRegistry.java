@@ -0,0 +1,248 @@
+package utility;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Registro di metriche leggero per osservare la pipeline di connessione sotto carico (per esempio con
+ * "adb shell dumpsys activity service ApplicationService").
+ *
+ * Le metriche hanno un nome gerarchico separato da punti (es. "device.00112233AABB.bytes.read") e sono di tre tipi:
+ * - Counter: valore che cresce, aggiornato con operazioni atomiche senza lock
+ * - Gauge: valore letto solo quando serve (al momento del dump) da un oggetto che lo calcola
+ * - Histogram: distribuzione di valori in bucket fissi, con numero di valori, somma e massimo
+ *
+ * Registrare una metrica alloca memoria, aggiornarla no: i riferimenti vanno ottenuti una volta e conservati.
+ * Service e activity registrano le metriche nel registro condiviso dal processo (getInstance()), così un unico dump
+ * le contiene tutte.
+ */
+public final class MetricsRegistry {
+
+    private static final MetricsRegistry INSTANCE = new MetricsRegistry();
+
+    /**
+     * Bucket per latenze in millisecondi (connessione al device, riconnessione).
+     */
+    public static final long[] MILLIS_BUCKETS = {10, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000};
+
+    /**
+     * Bucket per latenze in microsecondi (elaborazione di un frame).
+     */
+    public static final long[] MICROS_BUCKETS = {1, 5, 10, 50, 100, 500, 1000, 5000, 10000, 50000, 100000};
+
+    /**
+     * Valore calcolato al momento della lettura.
+     */
+    public interface Gauge {
+        long getValue();
+    }
+
+    private final Map<String, Object> metrics = new ConcurrentSkipListMap<>();
+
+    /**
+     * @return il registro condiviso da tutto il processo
+     */
+    public static MetricsRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param name
+     * @return il contatore con quel nome, creato se non esiste
+     */
+    public Counter counter(final String name) {
+        final Object metric = this.metrics.get(name);
+        if(metric != null) {
+            return (Counter) metric;
+        }
+        return (Counter) this.register(name, new Counter());
+    }
+
+    /**
+     * @param name
+     * @param bounds limiti superiori (inclusi) dei bucket, crescenti; i valori oltre l'ultimo finiscono in un bucket a parte
+     * @return l'istogramma con quel nome, creato se non esiste
+     */
+    public Histogram histogram(final String name, final long[] bounds) {
+        final Object metric = this.metrics.get(name);
+        if(metric != null) {
+            return (Histogram) metric;
+        }
+        return (Histogram) this.register(name, new Histogram(bounds));
+    }
+
+    /**
+     * Registra un gauge, sostituendo quello con lo stesso nome.
+     * @param name
+     * @param gauge
+     */
+    public void gauge(final String name, final Gauge gauge) {
+        this.metrics.put(name, gauge);
+    }
+
+    /**
+     * Rimuove tutte le metriche il cui nome inizia con prefix (per esempio quelle di un device non più monitorato).
+     * @param prefix
+     */
+    public void removeAll(final String prefix) {
+        for(String name : this.metrics.keySet()) {
+            if(name.startsWith(prefix)) {
+                this.metrics.remove(name);
+            }
+        }
+    }
+
+    /**
+     * Scrive tutte le metriche, in ordine di nome, una per riga.
+     * @param writer
+     */
+    public void dump(final PrintWriter writer) {
+        for(Map.Entry<String, Object> entry : this.metrics.entrySet()) {
+            final Object metric = entry.getValue();
+            writer.print(entry.getKey());
+            writer.print(" = ");
+
+            if(metric instanceof Counter) {
+                writer.println(((Counter) metric).get());
+            } else if(metric instanceof Gauge) {
+                writer.println(((Gauge) metric).getValue());
+            } else {
+                writer.println(metric);
+            }
+        }
+    }
+
+    private Object register(final String name, final Object metric) {
+        synchronized (this.metrics) {
+            final Object existing = this.metrics.get(name);
+            if(existing != null) {
+                return existing;
+            }
+            this.metrics.put(name, metric);
+            return metric;
+        }
+    }
+
+    /**
+     * Contatore senza lock.
+     */
+    public static final class Counter {
+        private final AtomicLong value = new AtomicLong();
+
+        public void increment() {
+            this.value.incrementAndGet();
+        }
+
+        public void add(final long delta) {
+            this.value.addAndGet(delta);
+        }
+
+        public long get() {
+            return this.value.get();
+        }
+    }
+
+    /**
+     * Istogramma a bucket fissi senza lock: registrare un valore è una ricerca binaria sui limiti e qualche
+     * operazione atomica.
+     */
+    public static final class Histogram {
+        private final long[] bounds;
+        private final AtomicLongArray counts;
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+        Histogram(final long[] bounds) {
+            if(bounds.length == 0) {
+                throw new IllegalArgumentException("Serve almeno un bucket");
+            }
+            for(int i = 1; i < bounds.length; i++) {
+                if(bounds[i] <= bounds[i - 1]) {
+                    throw new IllegalArgumentException("I limiti dei bucket devono essere crescenti");
+                }
+            }
+            this.bounds = bounds.clone();
+            this.counts = new AtomicLongArray(bounds.length + 1);
+        }
+
+        public void record(final long value) {
+            int bucket = Arrays.binarySearch(this.bounds, value);
+            if(bucket < 0) {
+                bucket = -bucket - 1; // primo limite maggiore del valore
+            }
+            this.counts.incrementAndGet(bucket);
+            this.count.incrementAndGet();
+            this.sum.addAndGet(value);
+
+            long current = this.max.get();
+            while(value > current && !this.max.compareAndSet(current, value)) {
+                current = this.max.get();
+            }
+        }
+
+        public long getCount() {
+            return this.count.get();
+        }
+
+        public long getSum() {
+            return this.sum.get();
+        }
+
+        /**
+         * @return il valore massimo registrato, 0 se non ce ne sono
+         */
+        public long getMax() {
+            return this.count.get() == 0? 0 : this.max.get();
+        }
+
+        /**
+         * @return la media dei valori registrati, 0 se non ce ne sono
+         */
+        public long getAverage() {
+            final long count = this.count.get();
+            return count == 0? 0 : this.sum.get() / count;
+        }
+
+        /**
+         * @param quantile tra 0 e 1
+         * @return il limite superiore del bucket che contiene il quantile, al più il massimo registrato
+         */
+        public long getQuantile(final double quantile) {
+            final long target = (long) Math.ceil(quantile * this.count.get());
+            long seen = 0;
+
+            for(int i = 0; i < this.bounds.length; i++) {
+                seen += this.counts.get(i);
+                if(seen >= target && seen > 0) {
+                    return Math.min(this.bounds[i], this.getMax());
+                }
+            }
+            return this.getMax();
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder builder = new StringBuilder();
+            builder.append("count=").append(this.getCount())
+                    .append(" avg=").append(this.getAverage())
+                    .append(" p50=").append(this.getQuantile(0.5))
+                    .append(" p99=").append(this.getQuantile(0.99))
+                    .append(" max=").append(this.getMax())
+                    .append(" [");
+
+            for(int i = 0; i <= this.bounds.length; i++) {
+                if(i > 0) {
+                    builder.append(' ');
+                }
+                builder.append(i < this.bounds.length? "<=" + this.bounds[i] : ">" + this.bounds[i - 1])
+                        .append(':').append(this.counts.get(i));
+            }
+            return builder.append(']').toString();
+        }
+    }
+}
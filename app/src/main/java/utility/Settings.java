@@ -26,6 +26,39 @@ public final class Settings {
     // File dove segnare il fatto che ho inviato la notifica
     public static final String NOTIFICATION_FILENAME = "notifica.bin";
 
+    // Cartella del registro delle probabilità ricevute, dimensione di un segmento (1 MB) e numero massimo di segmenti
+    public static final String TELEMETRY_DIRECTORY = "telemetry";
+    public static final int TELEMETRY_SEGMENT_RECORDS = 65536;
+    public static final int TELEMETRY_MAX_SEGMENTS = 16;
+
+    // File, nella cartella del registro, con gli aggregati per secondo, minuto e ora dello storico: il registro tiene
+    // circa 29 ore a 10 Hz, gli aggregati una settimana (minuti) e un anno (ore)
+    public static final String TELEMETRY_HISTORY_FILENAME = "history.bin";
+
+    // Cattura dei byte ricevuti dai device per riprodurli con benchmark.ReplayHarness (solo per raccogliere tracce):
+    // cartella, un file per connessione, e numero massimo di file per device
+    public static final boolean CAPTURE_ENABLED = false;
+    public static final String CAPTURE_DIRECTORY = "captures";
+    public static final int CAPTURE_MAX_FILES = 50;
+
+    // Liveness della connessione: dopo HEARTBEAT_INTERVAL_MS senza byte dal device gli viene mandato un PING, dopo
+    // LIVENESS_TIMEOUT_MS la connessione viene considerata persa senza aspettare l'errore del socket. Il timeout vale
+    // solo per i device che hanno risposto PONG (vedi ConnectionHandler.setLiveness), gli altri non ne risentono
+    public static final long HEARTBEAT_INTERVAL_MS = 1500;
+    public static final long LIVENESS_TIMEOUT_MS = 4000;
+
+    // Intervallo minimo tra due notifiche di macchina non chiusa dello stesso device
+    public static final long ALARM_WINDOW_MS = 5 * 60 * 1000;
+
+    // Stima della chiusura (vedi model.ClosureEvaluator): stimatore ("kalman" o "ewma") e suoi parametri, numero di
+    // sample usati per l'andamento e per quanto tempo proiettarlo dopo l'ultimo sample
+    public static final String CLOSURE_ESTIMATOR = "kalman";
+    public static final double KALMAN_PROCESS_NOISE = 25;
+    public static final double KALMAN_MEASUREMENT_NOISE = 100;
+    public static final double EWMA_ALPHA = 0.3;
+    public static final int CLOSURE_WINDOW_SIZE = 16;
+    public static final long CLOSURE_TREND_HORIZON_MS = 2000;
+
     public static final int DEFAULT_MINIMUM_PROBABILITY = 40;
     public static final List<String> DEFAULT_DEVICE_NAMES = getDefaultDeviceNames();
     public static final UUID MY_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
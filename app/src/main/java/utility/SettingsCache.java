@@ -0,0 +1,188 @@
+package utility;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache in memoria delle impostazioni salvate dall'utente, condivisa da tutto il processo.
+ * Il file delle impostazioni viene letto una sola volta, al primo accesso; tutte le letture successive
+ * vengono servite dalla memoria senza aprire file.
+ * Quando un'impostazione viene salvata attraverso Utility la cache viene aggiornata e i listener registrati
+ * vengono avvisati del cambiamento.
+ *
+ * Ogni impostazione viene modificata singolarmente sotto lock, quindi salvataggi concorrenti di impostazioni diverse
+ * non si sovrascrivono a vicenda. Il file viene scritto dal SettingsStore su un thread dedicato: le modifiche che
+ * arrivano mentre una scrittura è in coda o in corso finiscono tutte nella scrittura successiva.
+ * Al primo caricamento un file nel vecchio formato viene subito riscritto nel nuovo.
+ */
+public final class SettingsCache {
+
+    /**
+     * Listener per essere avvisati quando l'utente modifica un'impostazione.
+     * I metodi vengono invocati sul thread che ha salvato l'impostazione.
+     */
+    public interface OnSettingsChangedListener {
+        void onMinimumProbabilityChanged(int probability);
+        void onDefaultDeviceAddressChanged(String address);
+    }
+
+    private static volatile SettingsCache instance;
+
+    private final List<OnSettingsChangedListener> listeners = new CopyOnWriteArrayList<>();
+    private final SettingsStore store;
+    private final ThreadPoolExecutor writer;
+    private final MetricsRegistry.Counter changes = MetricsRegistry.getInstance().counter("settings.changes");
+    private final MetricsRegistry.Counter writes = MetricsRegistry.getInstance().counter("settings.writes");
+    private final Runnable writeTask = new Runnable() {
+        @Override
+        public void run() {
+            write();
+        }
+    };
+    private volatile int minimumProbability;
+    private volatile String defaultDeviceAddress;
+    private boolean writeScheduled; // protetto dal lock della cache
+
+    private SettingsCache(final SettingsStore store, final int minimumProbability, final String defaultDeviceAddress) {
+        this.store = store;
+        this.minimumProbability = minimumProbability;
+        this.defaultDeviceAddress = defaultDeviceAddress;
+
+        // Un solo thread, che termina quando non ci sono scritture da fare
+        this.writer = new ThreadPoolExecutor(1, 1, 5, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        this.writer.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Restituisce la cache delle impostazioni, caricandola dal file solo la prima volta che viene richiesta.
+     * @param context
+     * @return
+     */
+    public static SettingsCache getInstance(final Context context) {
+        SettingsCache cache = instance;
+
+        if(cache == null) {
+            synchronized (SettingsCache.class) {
+                cache = instance;
+                if(cache == null) {
+                    final SettingsStore store = new SettingsStore(context.getApplicationContext().getFilesDir(),
+                            Settings.SETTINGS_FILENAME);
+                    final SettingsStore.Values values = store.load();
+                    cache = new SettingsCache(store, values.getMinimumProbability(), values.getDefaultDeviceAddress());
+                    if(store.wasMigrated()) {
+                        Log.d("AndroidCar", "Impostazioni convertite nel nuovo formato");
+                        synchronized (cache) {
+                            cache.scheduleWrite();
+                        }
+                    }
+                    instance = cache;
+                }
+            }
+        }
+
+        return cache;
+    }
+
+    /**
+     * @return la probabilità minima di allarme salvata dall'utente, quella di default altrimenti
+     */
+    public int getMinimumProbability() {
+        return this.minimumProbability;
+    }
+
+    /**
+     * @return l'indirizzo salvato dall'utente come default, stringa vuota se non è mai stato salvato.
+     *         Non viene controllato che il device sia ancora accoppiato con il telefono.
+     */
+    public String getDefaultDeviceAddress() {
+        return this.defaultDeviceAddress == null? "" : this.defaultDeviceAddress;
+    }
+
+    public void addListener(final OnSettingsChangedListener listener) {
+        this.listeners.add(listener);
+    }
+
+    public void removeListener(final OnSettingsChangedListener listener) {
+        this.listeners.remove(listener);
+    }
+
+    /**
+     * Cambia la probabilità minima di allarme e programma il salvataggio su file.
+     * @param probability
+     */
+    public synchronized void setMinimumProbability(final int probability) {
+        this.update(this.getDefaultDeviceAddress(), probability);
+    }
+
+    /**
+     * Cambia l'indirizzo del device di default e programma il salvataggio su file.
+     * @param address
+     */
+    public synchronized void setDefaultDeviceAddress(final String address) {
+        this.update(address, this.minimumProbability);
+    }
+
+    /**
+     * Cambia entrambe le impostazioni con un'unica scrittura su file.
+     * Avvisa i listener solo dei valori cambiati.
+     * @param address
+     * @param probability
+     */
+    public synchronized void update(final String address, final int probability) {
+        final boolean probabilityChanged = this.minimumProbability != probability;
+        final boolean addressChanged = !this.getDefaultDeviceAddress().equals(address == null? "" : address);
+
+        if(!probabilityChanged && !addressChanged) {
+            return;
+        }
+
+        this.minimumProbability = probability;
+        this.defaultDeviceAddress = address;
+        this.changes.increment();
+        this.scheduleWrite();
+
+        for(OnSettingsChangedListener listener : this.listeners) {
+            if(probabilityChanged) {
+                listener.onMinimumProbabilityChanged(probability);
+            }
+            if(addressChanged) {
+                listener.onDefaultDeviceAddressChanged(address);
+            }
+        }
+    }
+
+    /* Va chiamato tenendo il lock della cache */
+    private void scheduleWrite() {
+        if(!this.writeScheduled) {
+            this.writeScheduled = true;
+            this.writer.execute(this.writeTask);
+        }
+    }
+
+    /* Eseguito sul thread di scrittura: copia i valori sotto lock e scrive il file fuori dal lock */
+    private void write() {
+        final int probability;
+        final String address;
+
+        synchronized (this) {
+            this.writeScheduled = false;
+            probability = this.minimumProbability;
+            address = this.getDefaultDeviceAddress();
+        }
+
+        try {
+            this.store.write(probability, address);
+            this.writes.increment();
+        } catch (IOException e) {
+            // Il valore in memoria resta valido, il file verrà riscritto alla prossima modifica
+            Log.d("AndroidCar", "Impossibile salvare le impostazioni: " + e.getMessage());
+        }
+    }
+}
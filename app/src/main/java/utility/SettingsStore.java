@@ -0,0 +1,231 @@
+package utility;
+
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.zip.CRC32;
+
+/**
+ * File delle impostazioni dell'utente in formato binario compatto e versionato.
+ *
+ * Formato (big endian):
+ * - intestazione: MAGIC (4 byte), VERSION (2 byte), numero di campi (2 byte)
+ * - per ogni campo: tag (2 byte), lunghezza (2 byte), valore
+ * - CRC32 di tutti i byte precedenti (4 byte)
+ * I campi con un tag sconosciuto vengono saltati, quindi una versione più vecchia dell'applicazione legge ancora i
+ * campi che conosce; quelli mancanti prendono il valore di default.
+ *
+ * Il file viene scritto su un file temporaneo, sincronizzato sul disco e poi rinominato al posto di quello vecchio:
+ * la rinomina è atomica, quindi dopo un crash c'è sempre o il file vecchio o quello nuovo, mai uno scritto a metà.
+ *
+ * Il file scritto dalle versioni precedenti (ObjectOutputStream con indirizzo e probabilità) viene riconosciuto e
+ * letto; wasMigrated() indica che va riscritto nel nuovo formato.
+ */
+public final class SettingsStore {
+
+    public static final int MAGIC = 0x4D594353; // "MYCS"
+    public static final int VERSION = 1;
+
+    static final int TAG_MINIMUM_PROBABILITY = 1; // int
+    static final int TAG_DEFAULT_ADDRESS = 2; // stringa UTF-8
+
+    private static final int HEADER_SIZE = 8;
+    private static final int CRC_SIZE = 4;
+    private static final int LEGACY_MAGIC = 0xACED; // intestazione di ObjectOutputStream
+
+    /**
+     * Impostazioni lette dal file.
+     */
+    public static final class Values {
+        private final int minimumProbability;
+        private final String defaultDeviceAddress;
+
+        Values(final int minimumProbability, final String defaultDeviceAddress) {
+            this.minimumProbability = minimumProbability;
+            this.defaultDeviceAddress = defaultDeviceAddress;
+        }
+
+        public int getMinimumProbability() {
+            return this.minimumProbability;
+        }
+
+        /**
+         * @return l'indirizzo del device di default, stringa vuota se non è mai stato salvato
+         */
+        public String getDefaultDeviceAddress() {
+            return this.defaultDeviceAddress;
+        }
+    }
+
+    private final File file;
+    private final File temporaryFile;
+    private boolean migrated;
+
+    /**
+     * @param directory cartella del file (per esempio Context.getFilesDir())
+     * @param filename
+     */
+    public SettingsStore(final File directory, final String filename) {
+        this.file = new File(directory, filename);
+        this.temporaryFile = new File(directory, filename + ".tmp");
+    }
+
+    /**
+     * Legge le impostazioni. Se il file manca o è danneggiato restituisce i valori di default.
+     * @return
+     */
+    public Values load() {
+        // Un file temporaneo rimasto da una scrittura interrotta non è mai stato rinominato: non è valido
+        if(this.temporaryFile.exists() && !this.temporaryFile.delete()) {
+            Log.d("AndroidCar", "Impossibile cancellare " + this.temporaryFile);
+        }
+        if(!this.file.exists()) {
+            return defaults();
+        }
+
+        try {
+            final byte[] bytes = readFully(this.file);
+
+            if(bytes.length >= 2 && ((bytes[0] & 0xFF) << 8 | (bytes[1] & 0xFF)) == LEGACY_MAGIC) {
+                this.migrated = true;
+                return decodeLegacy(bytes);
+            }
+            return decode(bytes);
+        } catch (IOException e) {
+            Log.d("AndroidCar", "Impostazioni non leggibili, uso quelle di default: " + e.getMessage());
+            return defaults();
+        }
+    }
+
+    /**
+     * @return true se l'ultimo load() ha letto il file nel formato delle versioni precedenti
+     */
+    public boolean wasMigrated() {
+        return this.migrated;
+    }
+
+    /**
+     * Scrive le impostazioni in modo atomico (file temporaneo, sync, rinomina).
+     * @param minimumProbability
+     * @param defaultDeviceAddress
+     * @throws IOException
+     */
+    public void write(final int minimumProbability, final String defaultDeviceAddress) throws IOException {
+        final byte[] bytes = encode(minimumProbability, defaultDeviceAddress);
+
+        final FileOutputStream output = new FileOutputStream(this.temporaryFile);
+        try {
+            output.write(bytes);
+            output.getFD().sync();
+        } finally {
+            output.close();
+        }
+
+        if(!this.temporaryFile.renameTo(this.file)) {
+            throw new IOException("Impossibile rinominare " + this.temporaryFile);
+        }
+        this.migrated = false;
+    }
+
+    static byte[] encode(final int minimumProbability, final String defaultDeviceAddress) throws IOException {
+        final byte[] address = (defaultDeviceAddress == null? "" : defaultDeviceAddress).getBytes("UTF-8");
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream(HEADER_SIZE + 16 + address.length + CRC_SIZE);
+        final DataOutputStream output = new DataOutputStream(buffer);
+
+        output.writeInt(MAGIC);
+        output.writeShort(VERSION);
+        output.writeShort(2);
+
+        output.writeShort(TAG_MINIMUM_PROBABILITY);
+        output.writeShort(4);
+        output.writeInt(minimumProbability);
+
+        output.writeShort(TAG_DEFAULT_ADDRESS);
+        output.writeShort(address.length);
+        output.write(address);
+
+        final CRC32 crc = new CRC32();
+        crc.update(buffer.toByteArray());
+        output.writeInt((int) crc.getValue());
+        output.close();
+        return buffer.toByteArray();
+    }
+
+    static Values decode(final byte[] bytes) throws IOException {
+        if(bytes.length < HEADER_SIZE + CRC_SIZE) {
+            throw new IOException("File troppo corto");
+        }
+
+        final CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - CRC_SIZE);
+        final DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes));
+        input.skipBytes(bytes.length - CRC_SIZE);
+        if(input.readInt() != (int) crc.getValue()) {
+            throw new IOException("CRC non valido");
+        }
+
+        final DataInputStream fields = new DataInputStream(new ByteArrayInputStream(bytes, 0, bytes.length - CRC_SIZE));
+        if(fields.readInt() != MAGIC) {
+            throw new IOException("Formato sconosciuto");
+        }
+        fields.readUnsignedShort(); // versione: i campi sono etichettati, quindi basta saltare quelli sconosciuti
+        final int count = fields.readUnsignedShort();
+
+        int minimumProbability = Settings.DEFAULT_MINIMUM_PROBABILITY;
+        String defaultDeviceAddress = "";
+
+        for(int i = 0; i < count; i++) {
+            final int tag = fields.readUnsignedShort();
+            final byte[] value = new byte[fields.readUnsignedShort()];
+            fields.readFully(value);
+
+            switch (tag) {
+                case TAG_MINIMUM_PROBABILITY:
+                    minimumProbability = new DataInputStream(new ByteArrayInputStream(value)).readInt();
+                    break;
+                case TAG_DEFAULT_ADDRESS:
+                    defaultDeviceAddress = new String(value, "UTF-8");
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        return new Values(minimumProbability, defaultDeviceAddress);
+    }
+
+    /* Formato delle versioni precedenti: ObjectOutputStream con writeUTF(indirizzo) e writeInt(probabilità) */
+    private static Values decodeLegacy(final byte[] bytes) throws IOException {
+        final ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(bytes));
+        try {
+            final String address = input.readUTF();
+            final int probability = input.readInt();
+            return new Values(probability, address);
+        } finally {
+            input.close();
+        }
+    }
+
+    private static Values defaults() {
+        return new Values(Settings.DEFAULT_MINIMUM_PROBABILITY, "");
+    }
+
+    private static byte[] readFully(final File file) throws IOException {
+        final byte[] bytes = new byte[(int) file.length()];
+        final DataInputStream input = new DataInputStream(new FileInputStream(file));
+        try {
+            input.readFully(bytes);
+        } finally {
+            input.close();
+        }
+        return bytes;
+    }
+}
@@ -1,14 +1,10 @@
 package utility;
 
-import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.content.Context;
-import android.os.Bundle;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 
 
@@ -18,9 +14,6 @@ import java.io.OutputStream;
  */
 public final class Utility {
 
-    private static final String minimumProbabilityKey = "probability";
-    private static final String defaultAddressKey = "address";
-
     private Utility() { }
 
     /**
@@ -39,6 +32,8 @@ public final class Utility {
     /**
      * Legge da uno stream di dati una stringa. La funzione riconosce come terminatore il carattere '\n',
      * se manca il metodo entra in un loop infinito.
+     * Per la ricezione continua dei messaggi dal device usare FrameDecoder, che riconosce correttamente più messaggi
+     * arrivati con una sola lettura e non alloca memoria ad ogni chiamata.
      * @param input stream di dati da cui leggere la stringa
      * @return la stringa letta
      * @throws IOException
@@ -72,28 +67,22 @@ public final class Utility {
 
     /**
      * Viene memorizzato l'indirizzo del device settato dall'utente come default.
+     * La SettingsCache viene aggiornata subito, il file viene scritto in background.
      * @param context
      * @param address
-     * @throws IOException
      */
-    public static void saveDefaultDeviceAddress(final Context context, final String address) throws IOException {
-        final Bundle settings = new Bundle();
-        settings.putInt(minimumProbabilityKey, getMinimumProbability(context));
-        settings.putString(defaultAddressKey, address);
-        writeSettings(context, settings);
+    public static void saveDefaultDeviceAddress(final Context context, final String address) {
+        SettingsCache.getInstance(context).setDefaultDeviceAddress(address);
     }
 
     /**
      * Viene memorizzata la probabilità minima di allarme settata come default.
+     * La SettingsCache viene aggiornata subito, il file viene scritto in background.
      * @param context
      * @param probabilità
-     * @throws IOException
      */
-    public static void saveDefaultProbability(final Context context, final int probabilità) throws IOException {
-        final Bundle settings = new Bundle();
-        settings.putInt(minimumProbabilityKey, probabilità);
-        settings.putString(defaultAddressKey, getDefaultDeviceAddress(context));
-        writeSettings(context, settings);
+    public static void saveDefaultProbability(final Context context, final int probabilità) {
+        SettingsCache.getInstance(context).setMinimumProbability(probabilità);
     }
 
     /**
@@ -106,22 +95,22 @@ public final class Utility {
      * - Altrimenti significa che l'utente ha disaccoppiato il device, quindi
      *   carica i nomi dei dispositivi di default e controlla se sono accoppiati
      * - Se anche questa ricerca fallisce, resituisce stringa vuota, altrimenti resituisce l'indirizzo del device.
+     * Le ricerche usano il DeviceRegistry, quindi non fanno IPC con il servizio bluetooth.
      *
      * @param context
      * @return
      */
     public static String getDefaultDeviceAddress(final Context context) {
-        final Bundle settings = readSettings(context);
+        final String address = SettingsCache.getInstance(context).getDefaultDeviceAddress();
 
-        if(!settings.isEmpty()) {
-            final String address = settings.getString(defaultAddressKey);
-            if (getDeviceByAddress(address) != null) {
-                return address;
-            }
+        final DeviceRegistry registry = DeviceRegistry.getInstance(context);
+
+        if(!address.isEmpty() && registry.getDeviceByAddress(address) != null) {
+            return address;
         }
 
         for (String s : Settings.DEFAULT_DEVICE_NAMES) {
-            BluetoothDevice device = getDeviceByName(s);
+            BluetoothDevice device = registry.getDeviceByName(s);
             if(device != null) {
                 return device.getAddress();
             }
@@ -133,65 +122,36 @@ public final class Utility {
     /**
      * Viene restuita la probabilità minima di allarme con lui l'utente deve essere avvisato in caso di "non chiusura della macchina".
      * Restituisce il valore salvato dall'utente, il valore di default altrimenti.
+     * Il valore viene letto dalla SettingsCache, quindi la chiamata non accede mai al file delle impostazioni.
      * @param context
      * @return
      */
     public static int getMinimumProbability(final Context context) {
-        final Bundle settings = readSettings(context);
-        return settings.isEmpty()? Settings.DEFAULT_MINIMUM_PROBABILITY : settings.getInt(minimumProbabilityKey);
+        return SettingsCache.getInstance(context).getMinimumProbability();
     }
 
     /**
      * Funzione che trova un device accoppiato a partire dal suo nome.
      * Occore prima effettuare l'operazione di pairing, questa funzione non effettua discovery di device nelle vicinanze per trovare
      * quello cercato!
+     * Il device viene cercato nel DeviceRegistry, senza IPC con il servizio bluetooth.
+     * @param context
      * @param name Nome del device che si vuole cercare
      * @return device trovato, null altrimenti
      */
-    public static BluetoothDevice getDeviceByName(final String name) {
-        for(BluetoothDevice b : BluetoothAdapter.getDefaultAdapter().getBondedDevices()) {
-            if(b.getName().equals(name)) {
-                return b;
-            }
-        }
-
-        return null;
+    public static BluetoothDevice getDeviceByName(final Context context, final String name) {
+        return DeviceRegistry.getInstance(context).getDeviceByName(name);
     }
 
     /**
      * Trova un device accoppiato a partire dal suo indirizzo fisico.
      * Occore prima effettuare l'operazione di pairing, questa funzione non effettua discovery!
+     * Il device viene cercato nel DeviceRegistry, senza IPC con il servizio bluetooth.
+     * @param context
      * @param address Indirizzo fisico del device che si vuole cercare
      * @return device trovato, null altrimenti
      */
-    public static BluetoothDevice getDeviceByAddress(final String address){
-        for(BluetoothDevice b : BluetoothAdapter.getDefaultAdapter().getBondedDevices()) {
-            if(b.getAddress().equals(address)) {
-                return b;
-            }
-        }
-        return null;
-    }
-
-    /* Scrive su file le impostazioni salvate dall'utente */
-    private static void writeSettings(final Context context, final Bundle settings) throws IOException {
-        final ObjectOutputStream output = new ObjectOutputStream(context.openFileOutput(Settings.SETTINGS_FILENAME, Context.MODE_PRIVATE));
-        output.writeUTF(settings.getString(defaultAddressKey));
-        output.writeInt(settings.getInt(minimumProbabilityKey));
-        output.close();
-    }
-
-    /* Legge le impostazioni salvate sul file. */
-    private static Bundle readSettings(final Context context) {
-        try {
-            final ObjectInputStream input = new ObjectInputStream(context.openFileInput(Settings.SETTINGS_FILENAME));
-            final Bundle settings = new Bundle();
-            settings.putString(defaultAddressKey, input.readUTF());
-            settings.putInt(minimumProbabilityKey, input.readInt());
-            input.close();
-            return settings;
-        } catch (IOException e) {e.printStackTrace();}
-
-        return Bundle.EMPTY;
+    public static BluetoothDevice getDeviceByAddress(final Context context, final String address){
+        return DeviceRegistry.getInstance(context).getDeviceByAddress(address);
     }
-}
\ No newline at end of file
+}
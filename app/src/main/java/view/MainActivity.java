@@ -9,6 +9,7 @@ import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.support.v4.content.LocalBroadcastManager;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.Toolbar;
@@ -16,6 +17,7 @@ import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
+import android.view.ViewTreeObserver;
 import android.widget.CheckBox;
 import android.widget.ProgressBar;
 import android.widget.TextView;
@@ -23,14 +25,20 @@ import android.widget.Toast;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import mindyourcar.mindyourcar.R;
 import model.Event;
 import model.ApplicationService;
+import utility.DeviceRegistry;
+import utility.MetricsRegistry;
 import utility.Settings;
+import utility.SettingsCache;
 import utility.Utility;
 import static model.MyIntentFilter.CLOSE_CONNECTION;
 import static model.MyIntentFilter.SET_DEVICE;
@@ -51,6 +59,14 @@ import static model.MyIntentFilter.SET_DEVICE;
  *  Questa activity ha registrato un LocalBroadcastReceiver per poter ricevere messaggi dal Service allo scopo di modificare la GUI
  *  Gli IntentFilter registrati con il receiver sono i nomi della enum Event (per esempio MESSAGE_RECEIVED, CONNECTION_ESTABLISHED ecc)
  *  Per mandare un dato insieme all'Intent usare il metodo putStringExtra("messaggio", stringa)
+ *  Il service può monitorare più device: gli Intent contengono l'indirizzo del device in getStringExtra("address")
+ *  e vengono mostrati solo quelli del device scelto dall'utente (quello di default o l'ultimo scelto con "Connect to")
+ *
+ *  All'avvio il primo frame viene disegnato subito con l'ultimo stato noto della GUI (se il processo era già vivo),
+ *  mentre su un thread in background vengono letti lo stato salvato su file e la notifica pendente e viene cercato il
+ *  device di default; il service viene fatto partire in parallelo. Il tempo dal onCreate al primo frame, alla
+ *  risoluzione del device e alla prima connessione viene registrato nel MetricsRegistry
+ *  ("startup.cold.*" per il primo avvio del processo, "startup.warm.*" per i successivi).
  *
  *  N.B usare un LocalBroadcastReceiver per mandare gli Intent!!!!
  */
@@ -58,28 +74,136 @@ public class MainActivity extends AppCompatActivity {
 
     private static final int ENABLE_BLUETOOTH_ACTION = 1;
     private static final String savedInstanceFilename = "savedInstance.bin";
+    private static final String SELECTED_ADDRESS_KEY = "selectedAddress";
+    private static final Event[] EVENTS = Event.values();
+    private static final Map<String, Event> EVENTS_BY_ACTION = getEventsByAction();
+    private static boolean coldStart = true; // false dopo la prima activity creata nel processo
 
     private final MyBroadcastReceiver myBroadcastReceiver = new MyBroadcastReceiver();
+    private final MySettingsListener mySettingsListener = new MySettingsListener();
+    private final Map<Event, EventHandler> eventHandlers = new EnumMap<>(Event.class);
 
     private ProgressBar connecting; // icona di caricamento che viene mostrata durante la connessione ad un dipositivo
     private TextView eventLogger; // Campo testuale per mostrare alcune frasi all'utente
     private CheckBox checkBox; // checkBox che indica che si è connessi ad un dispositivo
     private com.github.lzyzsd.circleprogress.DonutProgress progressBar;
     private int progressBarTextColor; // colore di default di progressBar
+    private UiStateStore uiState; // stato della GUI, salvato su file in modo asincrono
+    private String selectedAddress; // device di cui vengono mostrati gli eventi, null finchè non è stato scelto
+    private final ExecutorService startupExecutor = Executors.newSingleThreadExecutor();
+    private long startTime; // SystemClock.elapsedRealtime() all'ingresso in onCreate
+    private String startupPrefix; // prefisso delle metriche di avvio
+    private boolean connectedRecorded; // true dopo aver registrato il tempo alla prima connessione
+    private boolean eventShown; // true dopo il primo evento mostrato, lo stato salvato non va più ripristinato
+    private boolean uiStateCached; // true se in onCreate è stato mostrato l'ultimo stato rimasto in memoria
+    private boolean destroyed;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        this.startTime = SystemClock.elapsedRealtime();
+        this.startupPrefix = coldStart? "startup.cold." : "startup.warm.";
+        coldStart = false;
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
         Toolbar toolbar = (Toolbar) findViewById(R.id.toolbar);
         setSupportActionBar(toolbar);
 
+        if(savedInstanceState != null) {
+            this.selectedAddress = savedInstanceState.getString(SELECTED_ADDRESS_KEY);
+        }
+
+        this.setupEventHandlers();
         this.setupBroadcastReceiver();
         this.setupGUI();
-        this.startApplication();
+        SettingsCache.getInstance(getApplicationContext()).addListener(this.mySettingsListener);
+        this.startApplication(true);
+    }
+
+    @Override
+    protected void onDestroy() {
+        LocalBroadcastManager.getInstance(getApplicationContext()).unregisterReceiver(this.myBroadcastReceiver);
+        SettingsCache.getInstance(getApplicationContext()).removeListener(this.mySettingsListener);
+        this.saveUiState();
+        this.uiState.close();
+        this.startupExecutor.shutdown();
+        this.destroyed = true;
+        super.onDestroy();
+    }
+
+    private static Map<String, Event> getEventsByAction() {
+        final Map<String, Event> map = new HashMap<>();
+        for(Event e : Event.values()) {
+            map.put(e.name(), e);
+        }
+        return Collections.unmodifiableMap(map);
+    }
+
+    /* Fa partire il service e, su un thread in background, cerca il device di default ed eventualmente legge lo stato
+       salvato; il risultato viene applicato sul main thread da onStartupResolved */
+    private void startApplication(final boolean restore) {
+        // Il service viene creato mentre cerco il device di default, l'indirizzo gli arriva con un secondo Intent
+        startService(new Intent(this, ApplicationService.class));
+
+        final Context context = getApplicationContext();
+        this.startupExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final StartupState state = resolveStartupState(context, restore);
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        onStartupResolved(state);
+                    }
+                });
+            }
+        });
+    }
+
+    /* Eseguito in background: tutte le operazioni di avvio che fanno IPC o accedono al disco */
+    private StartupState resolveStartupState(final Context context, final boolean restore) {
+        final StartupState state = new StartupState();
+
+        if(restore) {
+            try {
+                final FileInputStream inputStream = context.openFileInput(Settings.NOTIFICATION_FILENAME);
+                state.notification = inputStream.read() == 1;
+                inputStream.close();
+            } catch (IOException e) {
+                Log.d("AndroidCar", "Nessuna notifica pendente");
+            }
+            context.deleteFile(Settings.NOTIFICATION_FILENAME);
+
+            // Se l'ultimo stato era già in memoria è stato mostrato in onCreate
+            state.uiStateLoaded = !this.uiStateCached && this.uiState.load();
+        }
+
+        state.bluetoothEnabled = BluetoothAdapter.getDefaultAdapter().isEnabled();
+        if(state.bluetoothEnabled) {
+            state.devicesPaired = !DeviceRegistry.getInstance(context).getDevices().isEmpty();
+            if(state.devicesPaired) {
+                state.defaultAddress = Utility.getDefaultDeviceAddress(context);
+            }
+        }
+
+        return state;
     }
 
-    private void startApplication() {
+    private void onStartupResolved(final StartupState state) {
+        if(this.destroyed) {
+            return;
+        }
+        this.recordStartupTime("resolved_ms");
+
+        // Lo stato salvato è più vecchio di qualsiasi evento arrivato dal service nel frattempo
+        if(state.uiStateLoaded && !this.eventShown) {
+            this.showUiState();
+        }
+        if(state.notification) {
+            this.checkBox.setVisibility(View.INVISIBLE);
+            this.connecting.setVisibility(View.INVISIBLE);
+            Toast.makeText(this.getApplicationContext(), "Non hai chiuso la macchina!", Toast.LENGTH_LONG).show();
+        }
+
         /*
             Casi:
 
@@ -88,91 +212,125 @@ public class MainActivity extends AppCompatActivity {
             - Device di default non accoppiato: indico all'utente di scegliere un device con cui connettersi dalle impostazioni
             - Device di default trovato: provo a connettermi
          */
-        if(BluetoothAdapter.getDefaultAdapter().isEnabled()) {
-            final Intent intent = new Intent(this, ApplicationService.class);
-
-            if(BluetoothAdapter.getDefaultAdapter().getBondedDevices().isEmpty()) {
-                this.showEvent(Event.NO_DEVICES_PAIRED, "");
-            } else {
-                final String defaultAddress = Utility.getDefaultDeviceAddress(getApplicationContext());
-
-                if(defaultAddress.isEmpty()) {
-                    // Device di default non accoppiato
-                    this.showEvent(Event.DEVICE_NOT_FOUND, "");
-                } else {
-                    intent.putExtra("address", defaultAddress); // Inserisco nell'Intent l'indirizzo del dispositivo di default
-                }
-            }
-            startService(intent); // Faccio partire il service. Se era già partito non succede niente
-        } else {
+        if(!state.bluetoothEnabled) {
             // Chiedo all'utente di attivare il bluetooth
             this.showEvent(Event.BLUETOOTH_DISABLED, "");
             startActivityForResult(new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE), ENABLE_BLUETOOTH_ACTION);
+        } else if(!state.devicesPaired) {
+            this.showEvent(Event.NO_DEVICES_PAIRED, "");
+        } else if(state.defaultAddress.isEmpty()) {
+            // Device di default non accoppiato
+            this.showEvent(Event.DEVICE_NOT_FOUND, "");
+        } else {
+            if(this.selectedAddress == null) {
+                this.selectedAddress = state.defaultAddress;
+            }
+            final Intent intent = new Intent(this, ApplicationService.class);
+            intent.putExtra("address", state.defaultAddress); // Inserisco nell'Intent l'indirizzo del dispositivo di default
+            startService(intent);
         }
     }
 
+    /* Registra il tempo trascorso dall'ingresso in onCreate */
+    private void recordStartupTime(final String name) {
+        final long elapsed = SystemClock.elapsedRealtime() - this.startTime;
+        MetricsRegistry.getInstance().histogram(this.startupPrefix + name, MetricsRegistry.MILLIS_BUCKETS).record(elapsed);
+        Log.d("AndroidCar", "Avvio: " + this.startupPrefix + name + " = " + elapsed);
+    }
+
+    /* Aggiorna la GUI in base all'evento. Va chiamato sul main thread (il receiver locale viene eseguito sul main thread) */
     private void showEvent(final Event event, final String message) {
-        runOnUiThread(new Runnable() {
+        final EventHandler handler = this.eventHandlers.get(event);
+
+        if(handler != null) {
+            handler.handle(message);
+        } else {
+            Log.d("AndroidCar", event.toString() + " " + message);
+        }
+
+        this.modifyGUI(event);
+        this.saveUiState();
+        this.eventShown = true;
+    }
+
+    /* Tabella di dispatch evento -> handler. Gli eventi senza handler vengono solo scritti nel log */
+    private void setupEventHandlers() {
+        this.eventHandlers.put(Event.BLUETOOTH_DISABLED, new EventHandler() {
             @Override
-            public void run() {
-                switch (event) {
-                    case BLUETOOTH_DISABLED:
-                        eventLogger.setText("Bluetooth disabilitato");
-                        Log.d("AndroidCar", "Bluetooth disabilitato");
-                        break;
-
-                    case NO_DEVICES_PAIRED:
-                        Log.d("AndroidCar", "Nessun device accoppiato al telefono");
-                        eventLogger.setText("Nessun device accoppiato");
-                        progressBar.setTextColor(progressBarTextColor);
-                        break;
-
-                    case APPPLICATION_STOPPED:
-                        if(BluetoothAdapter.getDefaultAdapter().isEnabled()) {
-                            eventLogger.setText("Disconnesso");
-                        } else {
-                            eventLogger.setText("Bluetooth disattivato");
-                        }
-                        break;
-
-                    case DEVICE_NOT_FOUND:
-                        eventLogger.setText("Scegli dispositivo a cui connettersi");
-                        Log.d("AndroidCar", "Device di default non trovato");
-                        break;
-
-
-                    case CAR_NOT_CLOSED:
-                        eventLogger.setText("Non hai chiuso la macchina!");
-                        break;
-
-                    case TRYING_TO_CONNECT:
-                        eventLogger.setText(message);
-                        break;
-
-                    case CONNECTION_ESTABLISHED:
-                        eventLogger.setText(message);
-                        updateProgressBar(0);
-                        break;
-
-                    case MESSAGE_RECEIVED:
-                        try {
-                            final int progress = Integer.parseInt(message);
-                            updateProgressBar(progress);
-                        } catch (Exception e) { e.printStackTrace();}
-                        break;
-
-                    case CAR_CLOSED:
-                        try {
-                            final int probability = Integer.parseInt(message);
-                            updateProgressBar(probability);
-                            eventLogger.setText("Macchina chiusa");
-                        } catch (Exception e) {e.printStackTrace();}
-                        break;
-
-                    default: Log.d("AndroidCar", event.toString() + " " + message); break;
+            public void handle(String message) {
+                eventLogger.setText("Bluetooth disabilitato");
+                Log.d("AndroidCar", "Bluetooth disabilitato");
+            }
+        });
+
+        this.eventHandlers.put(Event.NO_DEVICES_PAIRED, new EventHandler() {
+            @Override
+            public void handle(String message) {
+                Log.d("AndroidCar", "Nessun device accoppiato al telefono");
+                eventLogger.setText("Nessun device accoppiato");
+                progressBar.setTextColor(progressBarTextColor);
+            }
+        });
+
+        this.eventHandlers.put(Event.APPPLICATION_STOPPED, new EventHandler() {
+            @Override
+            public void handle(String message) {
+                if(BluetoothAdapter.getDefaultAdapter().isEnabled()) {
+                    eventLogger.setText("Disconnesso");
+                } else {
+                    eventLogger.setText("Bluetooth disattivato");
                 }
-                modifyGUI(event);
-                onSaveInstanceState(Bundle.EMPTY);
+            }
+        });
+
+        this.eventHandlers.put(Event.DEVICE_NOT_FOUND, new EventHandler() {
+            @Override
+            public void handle(String message) {
+                eventLogger.setText("Scegli dispositivo a cui connettersi");
+                Log.d("AndroidCar", "Device di default non trovato");
+            }
+        });
+
+        this.eventHandlers.put(Event.CAR_NOT_CLOSED, new EventHandler() {
+            @Override
+            public void handle(String message) {
+                eventLogger.setText("Non hai chiuso la macchina!");
+            }
+        });
+
+        this.eventHandlers.put(Event.TRYING_TO_CONNECT, new EventHandler() {
+            @Override
+            public void handle(String message) {
+                eventLogger.setText(message);
+            }
+        });
+
+        this.eventHandlers.put(Event.CONNECTION_ESTABLISHED, new EventHandler() {
+            @Override
+            public void handle(String message) {
+                eventLogger.setText(message);
+                updateProgressBar(0);
+            }
+        });
+
+        this.eventHandlers.put(Event.MESSAGE_RECEIVED, new EventHandler() {
+            @Override
+            public void handle(String message) {
+                try {
+                    final int progress = Integer.parseInt(message);
+                    updateProgressBar(progress);
+                } catch (Exception e) { e.printStackTrace();}
+            }
+        });
+
+        this.eventHandlers.put(Event.CAR_CLOSED, new EventHandler() {
+            @Override
+            public void handle(String message) {
+                try {
+                    final int probability = Integer.parseInt(message);
+                    updateProgressBar(probability);
+                    eventLogger.setText("Macchina chiusa");
+                } catch (Exception e) {e.printStackTrace();}
             }
         });
     }
@@ -203,7 +361,22 @@ public class MainActivity extends AppCompatActivity {
         this.checkBox.setChecked(true);
         this.progressBar = (com.github.lzyzsd.circleprogress.DonutProgress)findViewById(R.id.donut_progress);
         this.progressBarTextColor = this.progressBar.getTextColor();
-        this.onRestoreInstanceState(Bundle.EMPTY);
+        this.uiState = new UiStateStore(this, savedInstanceFilename);
+
+        // Se il processo era già vivo l'ultimo stato è in memoria e finisce già nel primo frame
+        this.uiStateCached = this.uiState.loadCached();
+        if(this.uiStateCached) {
+            this.showUiState();
+        }
+
+        this.eventLogger.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                eventLogger.getViewTreeObserver().removeOnPreDrawListener(this);
+                recordStartupTime("first_frame_ms");
+                return true;
+            }
+        });
     }
 
     @Override
@@ -244,43 +417,30 @@ public class MainActivity extends AppCompatActivity {
 
     @Override
     public void onSaveInstanceState(final Bundle savedInstanceState) {
-        try {
-            final ObjectOutputStream objectOutputStream = new ObjectOutputStream(openFileOutput(savedInstanceFilename, MODE_PRIVATE));
-            objectOutputStream.writeUTF(this.eventLogger.getText().toString());
-            objectOutputStream.writeInt(this.progressBar.getProgress());
-            objectOutputStream.writeInt(this.checkBox.getVisibility());
-            objectOutputStream.writeInt(this.connecting.getVisibility());
-            objectOutputStream.close();
-        } catch (IOException e) {e.printStackTrace();}
+        savedInstanceState.putString(SELECTED_ADDRESS_KEY, this.selectedAddress);
+        this.saveUiState();
+        this.uiState.flush();
     }
 
     @Override
-    public void onRestoreInstanceState(final Bundle savedInstanceState) {
-        boolean notifica = false;
-        try {
-            final FileInputStream inputStream = openFileInput(Settings.NOTIFICATION_FILENAME);
-            notifica = inputStream.read() == 1;
-            inputStream.close();
-        } catch (IOException e) {e.printStackTrace();}
-
-
-        try {
-            final ObjectInputStream inputStream = new ObjectInputStream(openFileInput(savedInstanceFilename));
-            this.eventLogger.setText(inputStream.readUTF());
-            this.updateProgressBar(inputStream.readInt());
-            this.checkBox.setVisibility(inputStream.readInt() == View.INVISIBLE? View.INVISIBLE : View.VISIBLE);
-            this.connecting.setVisibility(inputStream.readInt() == View.INVISIBLE? View.INVISIBLE : View.VISIBLE);
-            inputStream.close();
-
-            if(notifica) {
-                this.checkBox.setVisibility(View.INVISIBLE);
-                this.connecting.setVisibility(View.INVISIBLE);
-                Toast.makeText(this.getApplicationContext(), "Non hai chiuso la macchina!", Toast.LENGTH_LONG).show();
-            }
-        } catch (IOException e) {e.printStackTrace();}
+    protected void onPause() {
+        super.onPause();
+        // Il processo può essere terminato da qui in poi: salvo subito lo stato della GUI (su un altro thread)
+        this.uiState.flush();
+    }
 
-        this.getApplicationContext().deleteFile(Settings.NOTIFICATION_FILENAME);
-        this.getApplicationContext().deleteFile(savedInstanceFilename);
+    /* Copia lo stato della GUI nello UiStateStore. Non accede al disco, il salvataggio su file viene raggruppato */
+    private void saveUiState() {
+        this.uiState.update(this.eventLogger.getText().toString(), this.progressBar.getProgress(),
+                this.checkBox.getVisibility(), this.connecting.getVisibility());
+    }
+
+    /* Mostra lo stato della GUI letto dallo UiStateStore */
+    private void showUiState() {
+        this.eventLogger.setText(this.uiState.getText());
+        this.updateProgressBar(this.uiState.getProgress());
+        this.checkBox.setVisibility(this.uiState.getCheckBoxVisibility());
+        this.connecting.setVisibility(this.uiState.getConnectingVisibility());
     }
 
     @Override
@@ -304,7 +464,7 @@ public class MainActivity extends AppCompatActivity {
                     startService(new Intent(this, ApplicationService.class));
                     showDeviceList();
                 } else {
-                    this.startApplication();
+                    this.startApplication(false);
                 }
             }
         }
@@ -320,7 +480,7 @@ public class MainActivity extends AppCompatActivity {
         bundle.putInt("selected", 0);
 
         // Creo array di CharSequence da inserire nel Dialog
-        final List<BluetoothDevice> devices = new ArrayList<>(BluetoothAdapter.getDefaultAdapter().getBondedDevices());
+        final List<BluetoothDevice> devices = DeviceRegistry.getInstance(getApplicationContext()).getDevices();
         final CharSequence[] array = new CharSequence[devices.size()];
         for (int i = 0; i < devices.size(); i++) {
             array[i] = devices.get(i).getName();
@@ -343,6 +503,7 @@ public class MainActivity extends AppCompatActivity {
                  */
                 final int position = bundle.getInt("selected");
                 final BluetoothDevice device = devices.get(position);
+                selectedAddress = device.getAddress(); // Da ora mostro gli eventi del device scelto
                 final Intent intent = new Intent(SET_DEVICE.name());
                 intent.putExtra("address", device.getAddress());
                 LocalBroadcastManager.getInstance(getApplicationContext()).sendBroadcast(intent);
@@ -370,24 +531,63 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private void setupBroadcastReceiver() {
-        // Uso un LocalBroadcastReceiver per poter gestire gli intent all'interno dell'applicazione
-        final LocalBroadcastManager localBroadcastManager = LocalBroadcastManager.getInstance(getApplicationContext());
-
-        for(Event e : Event.values()) {
-            localBroadcastManager.registerReceiver(this.myBroadcastReceiver, new IntentFilter(e.name()));
+        // Uso un LocalBroadcastReceiver per poter gestire gli intent all'interno dell'applicazione.
+        // Un solo IntentFilter con tutte le azioni: il receiver viene registrato una volta sola e rimosso in onDestroy
+        final IntentFilter filter = new IntentFilter();
+        for(Event e : EVENTS) {
+            filter.addAction(e.name());
         }
+        LocalBroadcastManager.getInstance(getApplicationContext()).registerReceiver(this.myBroadcastReceiver, filter);
+    }
+
+    /* Gestisce un evento in arrivo dal service */
+    private interface EventHandler {
+        void handle(String message);
     }
 
     private final class MyBroadcastReceiver extends BroadcastReceiver {
         @Override
         public void onReceive(Context context, Intent intent) {
-            final String action = intent.getAction();
+            final Event event = EVENTS_BY_ACTION.get(intent.getAction());
+            final String address = intent.getStringExtra("address");
 
-            for(Event e : Event.values()) {
-                if(e.name().equals(action)) {
-                    showEvent(Event.valueOf(intent.getAction()), intent.getStringExtra("message"));
+            // Ignoro gli eventi degli altri device monitorati dal service
+            if(address != null && selectedAddress != null && !address.equals(selectedAddress)) {
+                return;
+            }
+
+            if(event != null) {
+                if(event == Event.CONNECTION_ESTABLISHED && !connectedRecorded) {
+                    connectedRecorded = true;
+                    recordStartupTime("connected_ms");
                 }
+                showEvent(event, intent.getStringExtra("message"));
             }
         }
     }
+
+    /* Risultato delle operazioni di avvio eseguite in background */
+    private static final class StartupState {
+        private boolean notification; // l'ultima volta è stata mandata la notifica di macchina non chiusa
+        private boolean uiStateLoaded; // lo stato della GUI è stato letto dal file
+        private boolean bluetoothEnabled;
+        private boolean devicesPaired;
+        private String defaultAddress = "";
+    }
+
+    /* Quando l'utente cambia la probabilità minima dalle impostazioni ricoloro la progressBar con la nuova soglia */
+    private final class MySettingsListener implements SettingsCache.OnSettingsChangedListener {
+        @Override
+        public void onMinimumProbabilityChanged(int probability) {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    updateProgressBar(progressBar.getProgress());
+                }
+            });
+        }
+
+        @Override
+        public void onDefaultDeviceAddressChanged(String address) { }
+    }
 }
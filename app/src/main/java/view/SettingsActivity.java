@@ -12,11 +12,10 @@ import android.widget.Button;
 import android.widget.SeekBar;
 import android.widget.TextView;
 
-import java.io.IOException;
-import java.util.ArrayList;
 import java.util.List;
 
 import mindyourcar.mindyourcar.R;
+import utility.DeviceRegistry;
 import utility.Utility;
 
 
@@ -40,7 +39,7 @@ public class SettingsActivity extends AppCompatActivity {
         this.setupSeekBar();
 
         if(BluetoothAdapter.getDefaultAdapter().isEnabled()) {
-            final List<BluetoothDevice> devices = new ArrayList<>(BluetoothAdapter.getDefaultAdapter().getBondedDevices());
+            final List<BluetoothDevice> devices = DeviceRegistry.getInstance(getApplicationContext()).getDevices();
 
             // Non ci sono device accoppiati con il telefono
             if(devices.isEmpty()) {
@@ -109,12 +108,8 @@ public class SettingsActivity extends AppCompatActivity {
                 // Riprendo la posizione salvata nel bundle e cambio il device di default
                 final BluetoothDevice device = devices.get(selected.getInt("selected"));
                 button.setText(device.getName());
-                try {
-                    Utility.saveDefaultDeviceAddress(getApplicationContext(), device.getAddress());
-                    Log.d("AndroidCar", "Settato default device: " + device.getName());
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+                Utility.saveDefaultDeviceAddress(getApplicationContext(), device.getAddress());
+                Log.d("AndroidCar", "Settato default device: " + device.getName());
             }
         });
 
@@ -151,13 +146,9 @@ public class SettingsActivity extends AppCompatActivity {
 
             @Override
             public void onStopTrackingTouch(SeekBar seekBar) {
-                try {
-                    final int actualValue = this.value * this.rapporto;
-                    Utility.saveDefaultProbability(getApplicationContext(), actualValue);
-                    Log.d("AndroidCar", "Settata probabilità minima a " + actualValue);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+                final int actualValue = this.value * this.rapporto;
+                Utility.saveDefaultProbability(getApplicationContext(), actualValue);
+                Log.d("AndroidCar", "Settata probabilità minima a " + actualValue);
             }
         });
     }
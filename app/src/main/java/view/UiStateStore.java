@@ -0,0 +1,209 @@
+package view;
+
+import android.content.Context;
+import android.util.Log;
+import android.view.View;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stato della GUI di MainActivity (testo mostrato, progresso, visibilità di checkBox e icona di caricamento).
+ *
+ * Lo stato vive in memoria e viene aggiornato ad ogni evento senza accedere al disco.
+ * Il salvataggio su file avviene su un thread dedicato:
+ * - in modo ritardato, FLUSH_DELAY_MS dopo la prima modifica non ancora salvata (le modifiche successive vengono raggruppate)
+ * - subito, quando l'activity chiama flush() nei momenti del ciclo di vita in cui il processo può essere terminato (onPause)
+ * Il file ha lo stesso formato usato in precedenza da MainActivity.onSaveInstanceState.
+ *
+ * L'ultimo stato noto resta anche in memoria finchè il processo è vivo: un'activity ricreata lo ottiene con
+ * loadCached() senza leggere il file, quindi può mostrarlo già nel primo frame. Solo all'avvio a freddo serve load(),
+ * da chiamare su un thread in background.
+ */
+public final class UiStateStore {
+
+    public static final long FLUSH_DELAY_MS = 2000;
+
+    private static volatile Snapshot lastKnown; // ultimo stato letto o aggiornato nel processo
+
+    private final Context context;
+    private final String filename;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            write();
+        }
+    };
+
+    private String text = "";
+    private int progress;
+    private int checkBoxVisibility = View.INVISIBLE;
+    private int connectingVisibility = View.INVISIBLE;
+    private boolean dirty; // true se lo stato in memoria è diverso da quello su file
+    private boolean flushScheduled;
+
+    public UiStateStore(final Context context, final String filename) {
+        this.context = context.getApplicationContext();
+        this.filename = filename;
+    }
+
+    /**
+     * Copia l'ultimo stato noto nel processo, senza accedere al disco.
+     * @return true se c'era uno stato in memoria
+     */
+    public synchronized boolean loadCached() {
+        final Snapshot cached = lastKnown;
+        if(cached == null || !cached.filename.equals(this.filename)) {
+            return false;
+        }
+
+        this.text = cached.text;
+        this.progress = cached.progress;
+        this.checkBoxVisibility = cached.checkBoxVisibility;
+        this.connectingVisibility = cached.connectingVisibility;
+        return true;
+    }
+
+    /**
+     * Legge lo stato salvato su file con un'unica lettura. Può essere chiamato da qualsiasi thread: se nel frattempo
+     * lo stato è già stato modificato con update() il file, più vecchio, viene ignorato.
+     * @return true se è stato trovato uno stato salvato
+     */
+    public synchronized boolean load() {
+        if(this.dirty) {
+            return false;
+        }
+
+        try {
+            final ObjectInputStream inputStream = new ObjectInputStream(this.context.openFileInput(this.filename));
+            try {
+                this.text = inputStream.readUTF();
+                this.progress = inputStream.readInt();
+                this.checkBoxVisibility = inputStream.readInt() == View.INVISIBLE? View.INVISIBLE : View.VISIBLE;
+                this.connectingVisibility = inputStream.readInt() == View.INVISIBLE? View.INVISIBLE : View.VISIBLE;
+            } finally {
+                inputStream.close();
+            }
+            this.remember();
+            return true;
+        } catch (IOException e) {
+            Log.d("AndroidCar", "Nessuno stato della GUI salvato");
+        }
+
+        return false;
+    }
+
+    /**
+     * Aggiorna lo stato in memoria e programma il salvataggio su file, se non è già programmato.
+     */
+    public synchronized void update(final String text, final int progress, final int checkBoxVisibility, final int connectingVisibility) {
+        if(this.text.equals(text) && this.progress == progress
+                && this.checkBoxVisibility == checkBoxVisibility && this.connectingVisibility == connectingVisibility) {
+            return;
+        }
+
+        this.text = text;
+        this.progress = progress;
+        this.checkBoxVisibility = checkBoxVisibility;
+        this.connectingVisibility = connectingVisibility;
+        this.dirty = true;
+        this.remember();
+
+        if(!this.flushScheduled) {
+            this.flushScheduled = true;
+            this.executor.schedule(this.flushTask, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Salva subito lo stato su file, senza bloccare il thread chiamante.
+     */
+    public void flush() {
+        this.executor.execute(this.flushTask);
+    }
+
+    /**
+     * Salva le eventuali modifiche pendenti e termina il thread di salvataggio.
+     */
+    public void close() {
+        this.flush();
+        this.executor.shutdown();
+    }
+
+    public synchronized String getText() {
+        return this.text;
+    }
+
+    public synchronized int getProgress() {
+        return this.progress;
+    }
+
+    public synchronized int getCheckBoxVisibility() {
+        return this.checkBoxVisibility;
+    }
+
+    public synchronized int getConnectingVisibility() {
+        return this.connectingVisibility;
+    }
+
+    /* Aggiorna l'ultimo stato noto nel processo. Va chiamato tenendo il lock */
+    private void remember() {
+        lastKnown = new Snapshot(this.filename, this.text, this.progress, this.checkBoxVisibility, this.connectingVisibility);
+    }
+
+    /* Eseguito sul thread di salvataggio: copia lo stato e lo scrive su file fuori dal lock */
+    private void write() {
+        final String text;
+        final int progress;
+        final int checkBoxVisibility;
+        final int connectingVisibility;
+
+        synchronized (this) {
+            this.flushScheduled = false;
+            if(!this.dirty) {
+                return;
+            }
+            this.dirty = false;
+            text = this.text;
+            progress = this.progress;
+            checkBoxVisibility = this.checkBoxVisibility;
+            connectingVisibility = this.connectingVisibility;
+        }
+
+        try {
+            final ObjectOutputStream objectOutputStream = new ObjectOutputStream(this.context.openFileOutput(this.filename, Context.MODE_PRIVATE));
+            objectOutputStream.writeUTF(text);
+            objectOutputStream.writeInt(progress);
+            objectOutputStream.writeInt(checkBoxVisibility);
+            objectOutputStream.writeInt(connectingVisibility);
+            objectOutputStream.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+            synchronized (this) {
+                this.dirty = true; // Riprovo al prossimo salvataggio
+            }
+        }
+    }
+
+    private static final class Snapshot {
+        private final String filename;
+        private final String text;
+        private final int progress;
+        private final int checkBoxVisibility;
+        private final int connectingVisibility;
+
+        Snapshot(final String filename, final String text, final int progress, final int checkBoxVisibility,
+                 final int connectingVisibility) {
+            this.filename = filename;
+            this.text = text;
+            this.progress = progress;
+            this.checkBoxVisibility = checkBoxVisibility;
+            this.connectingVisibility = connectingVisibility;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package model;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+
+import utility.FrameDecoder;
+import utility.Settings;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Decisioni dell'evaluator, anche su tracce registrate con CaptureTransport da benchmark.DeviceEmulator (10 Hz):
+ * - steady.cap: curva costante intorno a 80 per 3 secondi
+ * - closing.cap: da 5 a circa 65 in 12 secondi, in salita
+ * - opening.cap: da 95 a circa 45 in 10 secondi, in discesa ma ancora sopra la probabilità minima
+ * - opened.cap: da 95 a 0 in 22 secondi
+ * La disconnessione viene valutata all'istante del record END della traccia, o dopo un ritardo di rilevamento.
+ */
+public class ClosureEvaluatorTest {
+
+    private static final int MINIMUM = Settings.DEFAULT_MINIMUM_PROBABILITY;
+
+    @Test
+    public void noSamplesRaisesTheAlarm() {
+        final ClosureEvaluator evaluator = ClosureEvaluator.fromSettings();
+
+        assertFalse(evaluator.evaluate(1000, MINIMUM));
+        assertEquals(-1, evaluator.getProbability());
+    }
+
+    @Test
+    public void recentDisconnectAddsTheRecencyBonus() {
+        final ClosureEvaluator evaluator = new ClosureEvaluator(new EwmaEstimator(1), 4, 0);
+        evaluator.update(60, 1000);
+
+        assertTrue(evaluator.evaluate(1000, MINIMUM));
+        assertEquals(60 + ClosureEvaluator.MAX_RECENCY_BONUS, evaluator.getProbability());
+
+        assertTrue(evaluator.evaluate(1000 + ClosureEvaluator.RECENCY_WINDOW_MS, MINIMUM));
+        assertEquals(60 + ClosureEvaluator.MIN_RECENCY_BONUS, evaluator.getProbability());
+    }
+
+    @Test
+    public void fallingTrendIsProjectedPastTheLastSample() {
+        final ClosureEvaluator evaluator = new ClosureEvaluator(new EwmaEstimator(1), 4, 2000);
+        for(int i = 0; i < 4; i++) {
+            evaluator.update(60 - 5 * i, i * 1000L); // -5 punti al secondo, ultimo sample 45
+        }
+
+        // 45 - 5 * 2 secondi = 35, sotto la minima anche se l'ultimo sample era sopra
+        assertFalse(evaluator.evaluate(5000, MINIMUM));
+        assertEquals(35, evaluator.getProbability());
+    }
+
+    @Test
+    public void touchKeepsTheDeviceRecent() {
+        final ClosureEvaluator evaluator = new ClosureEvaluator(new EwmaEstimator(1), 4, 0);
+        evaluator.update(60, 0);
+        evaluator.touch(ClosureEvaluator.RECENCY_WINDOW_MS);
+
+        assertTrue(evaluator.evaluate(ClosureEvaluator.RECENCY_WINDOW_MS, MINIMUM));
+        assertEquals(60 + ClosureEvaluator.MAX_RECENCY_BONUS, evaluator.getProbability());
+    }
+
+    @Test
+    public void steadyTraceIsClosed() throws Exception {
+        for(String estimator : new String[] {ClosureEvaluator.ESTIMATOR_KALMAN, ClosureEvaluator.ESTIMATOR_EWMA}) {
+            assertTrue(estimator, replay("steady.cap", newEvaluator(estimator)));
+        }
+    }
+
+    @Test
+    public void closingTraceIsClosed() throws Exception {
+        for(String estimator : new String[] {ClosureEvaluator.ESTIMATOR_KALMAN, ClosureEvaluator.ESTIMATOR_EWMA}) {
+            final ClosureEvaluator evaluator = newEvaluator(estimator);
+            assertTrue(estimator, replay("closing.cap", evaluator));
+            assertTrue(estimator, evaluator.getTrend() > 0);
+        }
+    }
+
+    @Test
+    public void openingTraceAboveTheMinimumIsClosed() throws Exception {
+        for(String estimator : new String[] {ClosureEvaluator.ESTIMATOR_KALMAN, ClosureEvaluator.ESTIMATOR_EWMA}) {
+            final ClosureEvaluator evaluator = newEvaluator(estimator);
+            assertTrue(estimator, replay("opening.cap", evaluator));
+            assertTrue(estimator, evaluator.getTrend() < 0);
+        }
+    }
+
+    @Test
+    public void openingTraceDetectedLateFollowsTheTrend() throws Exception {
+        // Perdita rilevata 2 secondi dopo l'ultimo byte (per esempio dal timeout di liveness): la discesa continua
+        final ClosureEvaluator withTrend = newEvaluator(ClosureEvaluator.ESTIMATOR_KALMAN);
+        final ClosureEvaluator withoutTrend = new ClosureEvaluator(
+                ClosureEvaluator.createEstimator(ClosureEvaluator.ESTIMATOR_KALMAN), Settings.CLOSURE_WINDOW_SIZE, 0);
+        replay("opening.cap", withTrend, 2000);
+        replay("opening.cap", withoutTrend, 2000);
+
+        assertTrue(withTrend.getProbability() < withoutTrend.getProbability());
+    }
+
+    @Test
+    public void openedTraceRaisesTheAlarm() throws Exception {
+        for(String estimator : new String[] {ClosureEvaluator.ESTIMATOR_KALMAN, ClosureEvaluator.ESTIMATOR_EWMA}) {
+            final ClosureEvaluator evaluator = newEvaluator(estimator);
+            assertFalse(estimator, replay("opened.cap", evaluator));
+            assertTrue(estimator, evaluator.getProbability() <= MINIMUM);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownEstimatorIsRejected() {
+        ClosureEvaluator.createEstimator("media");
+    }
+
+    private static ClosureEvaluator newEvaluator(final String estimator) {
+        return new ClosureEvaluator(ClosureEvaluator.createEstimator(estimator), Settings.CLOSURE_WINDOW_SIZE,
+                Settings.CLOSURE_TREND_HORIZON_MS);
+    }
+
+    /* Come il ConnectionHandler e il DeviceMonitor: ogni frame passa dal ClosureTracker con l'istante registrato
+       nella traccia, la fine della traccia è la disconnessione */
+    private static boolean replay(final String trace, final ClosureEvaluator evaluator)
+            throws IOException, URISyntaxException {
+        return replay(trace, evaluator, 0);
+    }
+
+    private static boolean replay(final String trace, final ClosureEvaluator evaluator, final long detectionDelayMs)
+            throws IOException, URISyntaxException {
+        final CaptureReader reader = new CaptureReader(
+                new File(ClosureEvaluatorTest.class.getResource("/traces/" + trace).toURI()));
+        final FrameDecoder decoder = new FrameDecoder();
+        final ClosureTracker tracker = new ClosureTracker(evaluator);
+        long time = reader.getStartTime();
+
+        try {
+            while(reader.next() && reader.getType() == CaptureTransport.RECORD_DATA) {
+                final long arrival = reader.getTimeMillis();
+                decoder.decode(reader.getData(), 0, reader.getLength(), new FrameDecoder.FrameHandler() {
+                    @Override
+                    public void onFrame(final FrameDecoder frame) {
+                        tracker.onMessage(frame.toString(), arrival);
+                    }
+                });
+            }
+            time = reader.getTimeMillis();
+        } finally {
+            reader.close();
+        }
+
+        return tracker.onDisconnect(time + detectionDelayMs, MINIMUM);
+    }
+}
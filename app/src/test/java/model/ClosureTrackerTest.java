@@ -0,0 +1,73 @@
+package model;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Eventi del ConnectionHandler passati al ClosureTracker come fanno il DeviceMonitor e gli strumenti in benchmark.
+ */
+public class ClosureTrackerTest {
+
+    private static final int MINIMUM = 30;
+
+    private final ClosureTracker tracker = new ClosureTracker(new ClosureEvaluator(new EwmaEstimator(1), 4, 0));
+
+    @Test
+    public void numericMessageUpdatesTheEstimate() {
+        assertEquals(60, this.tracker.onMessage("60", 1000));
+
+        assertTrue(this.tracker.onDisconnect(1000, MINIMUM));
+        assertEquals(60 + ClosureEvaluator.MAX_RECENCY_BONUS, this.tracker.getProbability());
+    }
+
+    @Test
+    public void otherMessagesOnlyKeepTheDeviceRecent() {
+        this.tracker.onProbability(60, 0);
+        assertEquals(-1, this.tracker.onMessage("ciao", ClosureEvaluator.RECENCY_WINDOW_MS));
+
+        assertTrue(this.tracker.onDisconnect(ClosureEvaluator.RECENCY_WINDOW_MS, MINIMUM));
+        assertEquals(60 + ClosureEvaluator.MAX_RECENCY_BONUS, this.tracker.getProbability());
+    }
+
+    @Test
+    public void disconnectWithoutSamplesRaisesTheAlarm() {
+        assertEquals(-1, this.tracker.onMessage("ciao", 1000));
+
+        assertFalse(this.tracker.onDisconnect(2000, MINIMUM));
+    }
+
+    @Test
+    public void telemetryUpdatesTheEstimateAndTheCarState() {
+        final Telemetry doors = Telemetry.obtain();
+        doors.set(Telemetry.FIELD_DOORS, 1);
+        assertEquals(-1, this.tracker.onTelemetry(doors, 1000));
+        doors.recycle();
+
+        final Telemetry probability = Telemetry.obtain();
+        probability.set(Telemetry.FIELD_PROBABILITY, 20);
+        assertEquals(20, this.tracker.onTelemetry(probability, 2000));
+        probability.recycle();
+
+        assertFalse(this.tracker.onDisconnect(2000, MINIMUM));
+        final String carState = this.tracker.describeCarState();
+        assertTrue(carState, carState.contains("probabilità=20") && carState.contains("porte=1"));
+    }
+
+    @Test
+    public void carStateIsACopy() {
+        final Telemetry frame = Telemetry.obtain();
+        frame.set(Telemetry.FIELD_LOCKED, 1);
+        this.tracker.onTelemetry(frame, 1000);
+        frame.recycle(); // Il frame torna nel pool, lo stato della macchina no
+
+        final Telemetry carState = this.tracker.getCarState();
+        assertTrue(carState.hasLocked() && carState.isLocked());
+        assertFalse(carState.hasProbability());
+
+        carState.set(Telemetry.FIELD_LOCKED, 0);
+        assertTrue(this.tracker.getCarState().isLocked());
+    }
+}
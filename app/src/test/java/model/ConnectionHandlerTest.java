@@ -0,0 +1,271 @@
+package model;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import utility.MetricsRegistry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Frame testuali ricevuti dal ConnectionHandler attraverso un PipedTransport, come da un device vero, controllo
+ * di liveness con device che rispondono o no al PING e bluetooth disattivato e riattivato.
+ */
+public class ConnectionHandlerTest {
+
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private final ConnectionScheduler scheduler = new ConnectionScheduler(1);
+    private ConnectionHandler handler;
+
+    @After
+    public void tearDown() throws InterruptedException {
+        this.stopped.countDown();
+        if(this.handler != null) {
+            this.handler.stopComputing();
+        }
+        this.scheduler.shutdown();
+        this.scheduler.awaitTermination(1000);
+    }
+
+    @Test
+    public void legacyTextWithEqualsIsAMessage() throws Exception {
+        // Un messaggio delle versioni precedenti del device che contiene '=' ma non è una telemetria
+        final List<String> received = this.receive(4, "87\n", "stato=ok\n", "p=42,d=1\n", "ciao\n");
+
+        assertEquals(Arrays.asList("probabilità 87", "messaggio stato=ok", "telemetria 42/1", "messaggio ciao"), received);
+    }
+
+    @Test
+    public void malformedTelemetryCountsAsParseFailure() throws Exception {
+        final MetricsRegistry registry = new MetricsRegistry();
+        final List<String> received = this.receive(registry, 2, "p=abc\n", "50\n");
+
+        assertEquals(Arrays.asList("messaggio p=abc", "probabilità 50"), received);
+        assertEquals(1, registry.counter("frames.parse_failures").get());
+    }
+
+    @Test
+    public void silentDeviceWithoutPingIsNotDisconnected() throws Exception {
+        // Modulo delle versioni precedenti: manda un sample e poi tace, ignorando il PING
+        final CountDownLatch disconnected = this.startSilentDevice(false);
+
+        assertFalse(disconnected.await(1000, TimeUnit.MILLISECONDS));
+        assertTrue(this.handler.getMetrics().heartbeatsSent.get() > 0);
+        assertEquals(0, this.handler.getMetrics().livenessTimeouts.get());
+    }
+
+    @Test
+    public void silentDeviceWithoutPingIsProbedOnlyOnce() throws Exception {
+        // Il primo PING scade senza PONG: da lì in poi il watchdog non deve più mandarne, nè contare altri fallimenti
+        final CountDownLatch disconnected = this.startSilentDevice(false);
+
+        assertFalse(disconnected.await(1500, TimeUnit.MILLISECONDS));
+        final ConnectionMetrics metrics = this.handler.getMetrics();
+        assertEquals(1, metrics.heartbeatsSent.get());
+        assertEquals(1, metrics.commandsTimedOut.get());
+        assertEquals(1, metrics.commandsFailed.get());
+    }
+
+    @Test
+    public void silentDeviceAnsweringPingIsDisconnected() throws Exception {
+        // Ha risposto PONG al primo PING, poi sparisce senza chiudere il socket
+        final CountDownLatch disconnected = this.startSilentDevice(true);
+
+        assertTrue(disconnected.await(2000, TimeUnit.MILLISECONDS));
+        assertEquals(1, this.handler.getMetrics().livenessTimeouts.get());
+    }
+
+    @Test
+    public void bluetoothOffStopsHandlerUntilRestarted() throws Exception {
+        final CountDownLatch disabled = new CountDownLatch(1);
+        final CountDownLatch connected = new CountDownLatch(1);
+        final PipedTransport transport = new PipedTransport("test", "00:00:00:00:00:00", new PipedTransport.DeviceSide() {
+            @Override
+            public void onConnected(final InputStream fromPhone, final OutputStream toPhone) { }
+        });
+        final ConnectionListener listener = new ConnectionListener() {
+            @Override
+            public void notifyEvent(final Event event, final String message) {
+                if(event == Event.BLUETOOTH_DISABLED) {
+                    disabled.countDown();
+                } else if(event == Event.CONNECTION_ESTABLISHED) {
+                    connected.countDown();
+                }
+            }
+
+            @Override
+            public void notifyProbability(final int probability) { }
+
+            @Override
+            public void notifyTelemetry(final Telemetry telemetry) {
+                telemetry.recycle();
+            }
+        };
+
+        // Bluetooth spento: il primo tentativo ferma l'handler
+        transport.setAvailable(false);
+        this.handler = new ConnectionHandler(transport, listener, this.scheduler, new ReconnectPolicy());
+        this.handler.start();
+        assertTrue(disabled.await(2000, TimeUnit.MILLISECONDS));
+        this.awaitWorker();
+        assertTrue(this.handler.isStopped());
+
+        // Bluetooth riacceso: wakeUp() da solo non fa ripartire un handler fermo
+        transport.setAvailable(true);
+        this.handler.wakeUp();
+        assertFalse(connected.await(300, TimeUnit.MILLISECONDS));
+        assertTrue(this.handler.isStopped());
+
+        // Il service lo riavvia con un nuovo handler sullo stesso device, come per SET_DEVICE
+        this.handler = new ConnectionHandler(transport, listener, this.scheduler, new ReconnectPolicy());
+        this.handler.start();
+        assertTrue(connected.await(2000, TimeUnit.MILLISECONDS));
+        assertFalse(this.handler.isStopped());
+    }
+
+    /* Device che manda un sample, risponde al primo PING solo se pong è true e poi non manda più niente */
+    private CountDownLatch startSilentDevice(final boolean pong) {
+        final CountDownLatch disconnected = new CountDownLatch(1);
+        final PipedTransport transport = new PipedTransport("test", "00:00:00:00:00:00", new PipedTransport.DeviceSide() {
+            @Override
+            public void onConnected(final InputStream fromPhone, final OutputStream toPhone) {
+                final Thread device = new Thread("device") {
+                    @Override
+                    public void run() {
+                        try {
+                            toPhone.write("50\n".getBytes("US-ASCII"));
+                            toPhone.flush();
+                            final BufferedReader requests = new BufferedReader(new InputStreamReader(fromPhone, "US-ASCII"));
+                            String request;
+                            boolean answered = false;
+                            while(!answered && (request = requests.readLine()) != null) {
+                                // "?<id> PING" -> "!<id> PONG"
+                                if(pong && request.endsWith(" " + CommandChannel.PING)) {
+                                    final String id = request.substring(1, request.indexOf(' '));
+                                    toPhone.write(("!" + id + " " + CommandChannel.PONG + "\n").getBytes("US-ASCII"));
+                                    toPhone.flush();
+                                    answered = true;
+                                }
+                            }
+                            stopped.await();
+                        } catch (IOException | InterruptedException e) {
+                            // Connessione chiusa dal telefono
+                        }
+                    }
+                };
+                device.setDaemon(true);
+                device.start();
+            }
+        });
+
+        this.handler = new ConnectionHandler(transport, new ConnectionListener() {
+            @Override
+            public void notifyEvent(final Event event, final String message) {
+                if(event == Event.DISCONNECTED) {
+                    disconnected.countDown();
+                }
+            }
+
+            @Override
+            public void notifyProbability(final int probability) { }
+
+            @Override
+            public void notifyTelemetry(final Telemetry telemetry) {
+                telemetry.recycle();
+            }
+        }, this.scheduler, new ReconnectPolicy(), new ConnectionMetrics(new MetricsRegistry(), ""));
+        this.handler.setLiveness(100, 300);
+        this.handler.start();
+        return disconnected;
+    }
+
+    /* Aspetta che l'unico worker dello scheduler abbia finito il task in corso */
+    private void awaitWorker() throws InterruptedException {
+        final CountDownLatch idle = new CountDownLatch(1);
+        this.scheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                idle.countDown();
+            }
+        });
+        assertTrue(idle.await(2000, TimeUnit.MILLISECONDS));
+    }
+
+    private List<String> receive(final int expected, final String... frames) throws Exception {
+        return this.receive(new MetricsRegistry(), expected, frames);
+    }
+
+    /* Il device manda i frame appena connesso e resta vivo fino alla fine del test (altrimenti la pipe si rompe) */
+    private List<String> receive(final MetricsRegistry registry, final int expected, final String... frames)
+            throws Exception {
+        final List<String> received = new ArrayList<>();
+        final CountDownLatch done = new CountDownLatch(expected);
+        final PipedTransport transport = new PipedTransport("test", "00:00:00:00:00:00", new PipedTransport.DeviceSide() {
+            @Override
+            public void onConnected(final InputStream fromPhone, final OutputStream toPhone) {
+                final Thread device = new Thread("device") {
+                    @Override
+                    public void run() {
+                        try {
+                            for(String frame : frames) {
+                                toPhone.write(frame.getBytes("US-ASCII"));
+                            }
+                            toPhone.flush();
+                            stopped.await();
+                        } catch (IOException | InterruptedException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                };
+                device.setDaemon(true);
+                device.start();
+            }
+        });
+
+        this.handler = new ConnectionHandler(transport, new ConnectionListener() {
+            @Override
+            public void notifyEvent(final Event event, final String message) {
+                if(event == Event.MESSAGE_RECEIVED) {
+                    this.add("messaggio " + message);
+                }
+            }
+
+            @Override
+            public void notifyProbability(final int probability) {
+                this.add("probabilità " + probability);
+            }
+
+            @Override
+            public void notifyTelemetry(final Telemetry telemetry) {
+                this.add("telemetria " + telemetry.getProbability() + "/" + telemetry.getOpenDoors());
+                telemetry.recycle();
+            }
+
+            private void add(final String item) {
+                synchronized (received) {
+                    received.add(item);
+                }
+                done.countDown();
+            }
+        }, this.scheduler, new ReconnectPolicy(), new ConnectionMetrics(registry, ""));
+        this.handler.start();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        synchronized (received) {
+            return new ArrayList<>(received);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package model;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Un worker per device: i task che restano bloccati come un handler connesso non devono affamare gli altri.
+ */
+public class ConnectionSchedulerTest {
+
+    private final CountDownLatch release = new CountDownLatch(1);
+    private ConnectionScheduler scheduler;
+
+    @After
+    public void tearDown() throws InterruptedException {
+        this.release.countDown();
+        this.scheduler.shutdown();
+        this.scheduler.awaitTermination(1000);
+    }
+
+    @Test
+    public void growingThePoolStartsTheQueuedConnection() throws InterruptedException {
+        this.scheduler = new ConnectionScheduler(3);
+        final CountDownLatch started = new CountDownLatch(4);
+        for(int i = 0; i < 4; i++) {
+            this.scheduler.execute(this.connection(started));
+        }
+
+        assertEquals(1, awaitQueued(1));
+        this.scheduler.setWorkers(4);
+        assertTrue(started.await(1, TimeUnit.SECONDS));
+        assertEquals(4, this.scheduler.getWorkers());
+    }
+
+    @Test
+    public void shrinkingThePoolKeepsTheRunningConnections() throws InterruptedException {
+        this.scheduler = new ConnectionScheduler(4);
+        final CountDownLatch started = new CountDownLatch(4);
+        for(int i = 0; i < 4; i++) {
+            this.scheduler.execute(this.connection(started));
+        }
+        assertTrue(started.await(1, TimeUnit.SECONDS));
+
+        this.scheduler.setWorkers(2);
+        assertEquals(2, this.scheduler.getWorkers());
+        assertEquals(4, this.scheduler.getActiveWorkers());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void atLeastOneWorker() {
+        this.scheduler = new ConnectionScheduler(1);
+        this.scheduler.setWorkers(0);
+    }
+
+    /* Come un handler connesso: occupa il worker finchè il test non finisce */
+    private Runnable connection(final CountDownLatch started) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+
+    private int awaitQueued(final int expected) throws InterruptedException {
+        for(int i = 0; i < 100 && this.scheduler.getQueuedTasks() != expected; i++) {
+            Thread.sleep(10);
+        }
+        return this.scheduler.getQueuedTasks();
+    }
+}
@@ -0,0 +1,70 @@
+package model;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class EwmaEstimatorTest {
+
+    private static final double DELTA = 1e-9;
+
+    @Test
+    public void firstSampleIsTheEstimate() {
+        final EwmaEstimator estimator = new EwmaEstimator(0.3);
+        estimator.update(70, 0);
+
+        assertEquals(70, estimator.getEstimate(), DELTA);
+    }
+
+    @Test
+    public void eachSampleWeighsAlpha() {
+        final EwmaEstimator estimator = new EwmaEstimator(0.3);
+        estimator.update(0, 0);
+        estimator.update(100, 100);
+        assertEquals(30, estimator.getEstimate(), DELTA);
+
+        estimator.update(100, 200);
+        assertEquals(51, estimator.getEstimate(), DELTA);
+    }
+
+    @Test
+    public void ignoresTheTimeBetweenSamples() {
+        final EwmaEstimator dense = new EwmaEstimator(0.5);
+        final EwmaEstimator sparse = new EwmaEstimator(0.5);
+        dense.update(20, 0);
+        dense.update(80, 100);
+        sparse.update(20, 0);
+        sparse.update(80, 60000);
+
+        assertEquals(dense.getEstimate(), sparse.getEstimate(), DELTA);
+    }
+
+    @Test
+    public void alphaOneFollowsTheLastSample() {
+        final EwmaEstimator estimator = new EwmaEstimator(1);
+        estimator.update(10, 0);
+        estimator.update(90, 100);
+
+        assertEquals(90, estimator.getEstimate(), DELTA);
+    }
+
+    @Test
+    public void resetForgetsTheSamples() {
+        final EwmaEstimator estimator = new EwmaEstimator(0.3);
+        estimator.update(10, 0);
+        estimator.reset();
+        estimator.update(90, 100);
+
+        assertEquals(90, estimator.getEstimate(), DELTA);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAlphaZero() {
+        new EwmaEstimator(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAlphaAboveOne() {
+        new EwmaEstimator(1.5);
+    }
+}
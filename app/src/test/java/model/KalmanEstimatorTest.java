@@ -0,0 +1,72 @@
+package model;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class KalmanEstimatorTest {
+
+    private static final double DELTA = 1e-9;
+
+    @Test
+    public void firstSampleIsTheEstimate() {
+        final KalmanEstimator estimator = new KalmanEstimator(25, 100);
+        estimator.update(70, 0);
+
+        assertEquals(70, estimator.getEstimate(), DELTA);
+        assertEquals(100, estimator.getVariance(), DELTA);
+    }
+
+    @Test
+    public void secondSampleFollowsTheGain() {
+        final KalmanEstimator estimator = new KalmanEstimator(25, 100);
+        estimator.update(0, 0);
+        estimator.update(100, 4000);
+
+        // Varianza predetta 100 + 25 * 4 = 200, guadagno 200 / 300
+        assertEquals(100 * 2.0 / 3, estimator.getEstimate(), DELTA);
+        assertEquals(200.0 / 3, estimator.getVariance(), DELTA);
+    }
+
+    @Test
+    public void longPauseGivesTheNewSampleMoreWeight() {
+        final KalmanEstimator dense = new KalmanEstimator(25, 100);
+        final KalmanEstimator sparse = new KalmanEstimator(25, 100);
+        dense.update(20, 0);
+        dense.update(80, 100);
+        sparse.update(20, 0);
+        sparse.update(80, 60000);
+
+        assertTrue(sparse.getEstimate() > dense.getEstimate());
+        assertTrue(sparse.getEstimate() > 75);
+    }
+
+    @Test
+    public void filtersNoiseAroundAStableValue() {
+        final KalmanEstimator estimator = new KalmanEstimator(25, 100);
+        for(int i = 0; i < 200; i++) {
+            estimator.update(i % 2 == 0? 40 : 60, i * 100);
+        }
+
+        assertEquals(50, estimator.getEstimate(), 5);
+        assertTrue(estimator.getVariance() < 100);
+    }
+
+    @Test
+    public void resetForgetsTheSamples() {
+        final KalmanEstimator estimator = new KalmanEstimator(25, 100);
+        estimator.update(10, 0);
+        estimator.update(10, 100);
+        estimator.reset();
+        estimator.update(90, 200);
+
+        assertEquals(90, estimator.getEstimate(), DELTA);
+        assertEquals(100, estimator.getVariance(), DELTA);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroNoise() {
+        new KalmanEstimator(0, 100);
+    }
+}
@@ -0,0 +1,84 @@
+package model;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class SampleWindowTest {
+
+    private static final double DELTA = 1e-9;
+    private static final long EPOCH = 1700000000000L; // istanti realistici, per controllare gli arrotondamenti
+
+    @Test
+    public void slopeOfALine() {
+        final SampleWindow window = new SampleWindow(8);
+        for(int i = 0; i < 8; i++) {
+            window.add(10 + 2 * i, EPOCH + i * 1000);
+        }
+
+        assertEquals(0.002, window.getSlope(), DELTA);
+        assertEquals(17, window.getAverage(), DELTA);
+    }
+
+    @Test
+    public void noSlopeWithoutTwoDistinctTimes() {
+        final SampleWindow window = new SampleWindow(4);
+        assertEquals(0, window.getSlope(), DELTA);
+
+        window.add(10, EPOCH);
+        assertEquals(0, window.getSlope(), DELTA);
+
+        window.add(90, EPOCH);
+        assertEquals(0, window.getSlope(), DELTA);
+    }
+
+    @Test
+    public void oldestSamplesAreEvicted() {
+        final SampleWindow window = new SampleWindow(4);
+        for(int i = 0; i < 4; i++) {
+            window.add(0, EPOCH + i * 100);
+        }
+        for(int i = 4; i < 8; i++) {
+            window.add(100, EPOCH + i * 100);
+        }
+
+        assertEquals(4, window.size());
+        assertEquals(100, window.getAverage(), DELTA);
+        assertEquals(0, window.getSlope(), DELTA);
+        assertEquals(100, window.getLast());
+        assertEquals(EPOCH + 700, window.getLastTime());
+    }
+
+    @Test
+    public void slopeStaysExactAfterManyWraps() {
+        final SampleWindow window = new SampleWindow(16);
+        for(int i = 0; i < 100000; i++) {
+            window.add(i % 2 == 0? 30 : 70, EPOCH + i * 100L);
+        }
+        for(int i = 0; i < 16; i++) {
+            window.add(3 * i, EPOCH + 10000000L + i * 1000);
+        }
+
+        assertEquals(0.003, window.getSlope(), DELTA);
+    }
+
+    @Test
+    public void clearEmptiesTheWindow() {
+        final SampleWindow window = new SampleWindow(4);
+        window.add(50, EPOCH);
+        window.add(60, EPOCH + 100);
+        window.clear();
+
+        assertEquals(0, window.size());
+        assertEquals(0, window.getAverage(), DELTA);
+
+        window.add(10, EPOCH + 1000);
+        window.add(20, EPOCH + 2000);
+        assertEquals(0.01, window.getSlope(), DELTA);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsCapacityBelowTwo() {
+        new SampleWindow(1);
+    }
+}
@@ -0,0 +1,138 @@
+package model;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Query per finestre e livelli aggregati mantenuti nel file dello storico.
+ */
+public class TelemetryHistoryTest {
+
+    private static final long HOUR = 3600000;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void hourlyWindowsFromTheTiers() throws IOException {
+        final TelemetryHistory history = new TelemetryHistory(null);
+        history.addSample(10 * HOUR + 1000, 20);
+        history.addSample(10 * HOUR + 2000, 40);
+        history.addSample(11 * HOUR, 90);
+
+        assertEquals(Arrays.asList("36000000:20-40/30.0x2", "39600000:90-90/90.0x1"),
+                query(history, 10 * HOUR, 12 * HOUR, HOUR));
+    }
+
+    @Test
+    public void tiersSurviveALogThatNoLongerHasTheSamples() throws IOException {
+        final File file = this.folder.newFile("history.bin");
+        final File directory = this.folder.newFolder("log");
+        TelemetryLog log = new TelemetryLog(directory, 4, 2);
+        TelemetryHistory history = new TelemetryHistory(log, file);
+        history.rebuild();
+        for(int i = 0; i < 8; i++) {
+            final long time = i * HOUR;
+            log.appendSample(time, 10 * i);
+            history.addSample(time, 10 * i);
+        }
+        log.appendEvent(8 * HOUR, Event.DISCONNECTED, 70);
+        history.addEvent(8 * HOUR, Event.DISCONNECTED);
+        log.close();
+
+        // Il registro tiene solo gli ultimi due segmenti da 4 record: le prime 4 ore sono solo nel file dello storico
+        log = new TelemetryLog(directory, 4, 2);
+        history = new TelemetryHistory(log, file);
+        history.rebuild();
+
+        assertTrue(history.isRestored());
+        assertEquals(8, query(history, 0, 8 * HOUR, HOUR).size());
+        assertEquals(Arrays.asList("0:0-70/35.0x8"), query(history, 0, 8 * HOUR, 8 * HOUR));
+
+        // Le disconnessioni vengono riprese dal registro, senza contare due volte i sample
+        final List<String> disconnects = new ArrayList<>();
+        history.queryDisconnects(0, Long.MAX_VALUE, new TelemetryHistory.DisconnectVisitor() {
+            @Override
+            public void onDisconnect(final long time, final int lastProbability, final long lastSampleTime) {
+                disconnects.add(time + ":" + lastProbability);
+            }
+        });
+        assertEquals(Arrays.asList(8 * HOUR + ":70"), disconnects);
+        log.close();
+    }
+
+    @Test
+    public void fileOfAnotherLayoutIsRebuiltFromTheLog() throws IOException {
+        final File file = this.folder.newFile("history.bin");
+        TelemetryHistory history = new TelemetryHistory(null, file, new long[] {1000}, new int[] {60}, 4);
+        history.addSample(5000, 50);
+        history.rebuild();
+
+        final TelemetryLog log = new TelemetryLog(this.folder.newFolder("log"), 16, 2);
+        log.appendSample(2 * HOUR, 30);
+        history = new TelemetryHistory(log, file);
+        history.rebuild();
+
+        assertFalse(history.isRestored());
+        assertEquals(Arrays.asList("7200000:30-30/30.0x1"), query(history, 0, 3 * HOUR, HOUR));
+        log.close();
+    }
+
+    @Test
+    public void interruptedRebuildIsNotTrusted() throws IOException {
+        final File file = this.folder.newFile("history.bin");
+        TelemetryHistory history = new TelemetryHistory(null, file);
+        history.addSample(HOUR, 50); // Senza rebuild() il file non viene dichiarato valido
+        history.force();
+
+        history = new TelemetryHistory(null, file);
+        assertFalse(history.isRestored());
+        assertEquals(0, query(history, 0, 2 * HOUR, HOUR).size());
+    }
+
+    /* Finestre come "inizio:min-max/mediaxcount" */
+    @Test
+    public void reusedHistoryReadsTheReopenedLog() throws IOException {
+        final File directory = this.folder.newFolder("log");
+        TelemetryLog log = new TelemetryLog(directory, 16, 2);
+        final TelemetryHistory history = new TelemetryHistory(log);
+        history.rebuild();
+        log.appendSample(1000, 10);
+        history.addSample(1000, 10);
+        log.close();
+
+        // Il device torna monitorato: stesso storico, registro riaperto
+        log = new TelemetryLog(directory, 16, 2);
+        history.setLog(log);
+        log.appendSample(2000, 20);
+        history.addSample(2000, 20);
+
+        // Finestre sotto il secondo: lette dal registro
+        assertEquals(Arrays.asList("1000:10-10/10.0x1", "2000:20-20/20.0x1"), query(history, 0, 3000, 500));
+        log.close();
+    }
+
+    private static List<String> query(final TelemetryHistory history, final long from, final long to,
+                                      final long window) throws IOException {
+        final List<String> windows = new ArrayList<>();
+        history.query(from, to, window, new TelemetryHistory.WindowVisitor() {
+            @Override
+            public void onWindow(final long start, final long length, final int min, final int max,
+                                 final double average, final int count) {
+                windows.add(start + ":" + min + "-" + max + "/" + average + "x" + count);
+            }
+        });
+        return windows;
+    }
+}
@@ -0,0 +1,93 @@
+package model;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Letture per intervallo del registro, anche quando l'ora di sistema torna indietro.
+ */
+public class TelemetryLogTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void rangeReadAcrossSegments() throws IOException {
+        final TelemetryLog log = new TelemetryLog(this.folder.getRoot(), 4, 8);
+        for(int i = 0; i < 10; i++) {
+            log.appendSample(1000 + i * 100, i);
+        }
+
+        assertEquals(Arrays.asList(3, 4, 5, 6), read(log, 1300, 1700));
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), read(log, Long.MIN_VALUE, Long.MAX_VALUE));
+        log.close();
+    }
+
+    @Test
+    public void clockGoingBackInsideASegment() throws IOException {
+        final TelemetryLog log = new TelemetryLog(this.folder.getRoot(), 16, 8);
+        log.appendSample(5000, 0);
+        log.appendSample(5100, 1);
+        log.appendSample(1000, 2); // Ora di sistema riportata indietro
+        log.appendSample(1100, 3);
+        log.appendSample(5200, 4);
+
+        assertEquals(Arrays.asList(2, 3), read(log, 1000, 2000));
+        assertEquals(Arrays.asList(0, 1, 4), read(log, 5000, 6000));
+        log.close();
+    }
+
+    @Test
+    public void clockGoingBackAcrossSegments() throws IOException {
+        final TelemetryLog log = new TelemetryLog(this.folder.getRoot(), 2, 8);
+        log.appendSample(5000, 0);
+        log.appendSample(5100, 1);
+        log.appendSample(1000, 2); // Il nuovo segmento inizia prima di quello precedente
+        log.appendSample(1100, 3);
+        log.appendSample(1200, 4);
+
+        // Il primo segmento inizia dopo to ma i successivi vanno letti lo stesso
+        assertEquals(Arrays.asList(2, 3, 4), read(log, 0, 2000));
+        log.close();
+    }
+
+    @Test
+    public void unorderedSegmentIsRecognizedAfterReopening() throws IOException {
+        TelemetryLog log = new TelemetryLog(this.folder.getRoot(), 4, 8);
+        log.appendSample(5000, 0);
+        log.appendSample(1000, 1);
+        log.appendSample(6000, 2);
+        log.close();
+
+        log = new TelemetryLog(this.folder.getRoot(), 4, 8);
+        assertEquals(3, log.getRecordsRecovered());
+        assertEquals(Arrays.asList(1), read(log, 1000, 2000));
+
+        // Il segmento recuperato si riempie e diventa un segmento chiuso
+        log.appendSample(6100, 3);
+        log.appendSample(6200, 4);
+        assertEquals(Arrays.asList(1), read(log, 1000, 2000));
+        assertEquals(Arrays.asList(0, 2, 3, 4), read(log, 5000, 7000));
+        log.close();
+    }
+
+    /* Valori dei sample con istante in [from, to), in ordine di lettura */
+    private static List<Integer> read(final TelemetryLog log, final long from, final long to) throws IOException {
+        final List<Integer> values = new ArrayList<>();
+        log.read(from, to, new TelemetryLog.RecordVisitor() {
+            @Override
+            public void onRecord(final long time, final int kind, final int value) {
+                values.add(value);
+            }
+        });
+        return values;
+    }
+}
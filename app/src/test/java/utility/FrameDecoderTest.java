@@ -0,0 +1,209 @@
+package utility;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Frammentazioni patologiche dello stream: il decoder deve emettere gli stessi frame qualunque sia il modo in cui
+ * i byte vengono divisi tra le letture.
+ */
+public class FrameDecoderTest {
+
+    private final List<String> frames = new ArrayList<>();
+    private final FrameDecoder.FrameHandler collector = new FrameDecoder.FrameHandler() {
+        @Override
+        public void onFrame(final FrameDecoder frame) {
+            if(frame.isBinary()) {
+                // Tipo e campi del frame binario, per esempio "1:87"
+                final StringBuilder builder = new StringBuilder().append(frame.type());
+                while(frame.hasNextField()) {
+                    builder.append(':').append(frame.nextVarint());
+                }
+                frames.add(builder.toString());
+            } else {
+                frames.add(frame.toString());
+            }
+        }
+    };
+
+    private FrameDecoder decoder;
+
+    @Before
+    public void setUp() {
+        this.decoder = new FrameDecoder(16);
+        this.frames.clear();
+    }
+
+    @Test
+    public void oneBytePerRead() throws IOException {
+        final byte[] bytes = ascii("87\n12\n100\n");
+        this.readAll(bytes, ones(bytes.length));
+
+        assertEquals(Arrays.asList("87", "12", "100"), this.frames);
+    }
+
+    @Test
+    public void severalFramesInOneRead() throws IOException {
+        this.readAll(ascii("1\n2\n3\n4\n"), 8);
+
+        assertEquals(Arrays.asList("1", "2", "3", "4"), this.frames);
+    }
+
+    @Test
+    public void crLfSplitAcrossReads() throws IOException {
+        // "\r" alla fine di una lettura e "\n" all'inizio della successiva non devono produrre frame vuoti
+        this.readAll(ascii("42\r\n43\r\n"), 3, 3, 2);
+
+        assertEquals(Arrays.asList("42", "43"), this.frames);
+    }
+
+    @Test
+    public void terminatorInTheMiddleOfARead() throws IOException {
+        // Ogni lettura chiude il frame precedente e ne inizia uno nuovo
+        this.readAll(ascii("12\n34\n56\n"), 1, 3, 3, 2);
+
+        assertEquals(Arrays.asList("12", "34", "56"), this.frames);
+    }
+
+    @Test
+    public void frameLongerThanTheBufferIsDiscarded() throws IOException {
+        final byte[] bytes = ascii("1\n" + "123456789012345678901234567890\n" + "2\n");
+        this.readAll(bytes, 4, 4, 4, 4, 4, 4, 4, 4, 4);
+
+        assertEquals(Arrays.asList("1", "2"), this.frames);
+        assertEquals(1, this.decoder.getFramesDiscarded());
+    }
+
+    @Test
+    public void frameWrappingAroundTheBuffer() throws IOException {
+        // Dopo i primi frame il buffer circolare riparte dall'inizio a metà del frame lungo
+        this.readAll(ascii("1234\n5678\n12345678901\n"), ones(22));
+
+        assertEquals(Arrays.asList("1234", "5678", "12345678901"), this.frames);
+    }
+
+    @Test
+    public void binaryFrameWithBadCrcIsSkipped() throws IOException {
+        this.decoder = new FrameDecoder();
+        this.decoder.setBinaryMode(true);
+        final byte[] good = probabilityFrame(87);
+        final byte[] bad = probabilityFrame(12);
+        bad[bad.length - 1] ^= 0x01;
+
+        final byte[] bytes = concat(bad, good);
+        this.readAll(bytes, ones(bytes.length));
+
+        assertEquals(Arrays.asList("1:87"), this.frames);
+        assertTrue(this.decoder.getFramesCorrupted() > 0);
+    }
+
+    @Test
+    public void binaryFramesResyncAfterGarbage() throws IOException {
+        this.decoder = new FrameDecoder();
+        this.decoder.setBinaryMode(true);
+        // Rumore che contiene anche un SYNC con una lunghezza non valida
+        final byte[] garbage = {0x00, 0x7F, BinaryProtocol.SYNC, 0x00, 0x13, (byte) 0xFF};
+
+        final byte[] bytes = concat(garbage, probabilityFrame(50), garbage, probabilityFrame(51));
+        this.readAll(bytes, 5, 1, 7, 2, 100);
+
+        assertEquals(Arrays.asList("1:50", "1:51"), this.frames);
+        assertTrue(this.decoder.getGarbageBytes() > 0);
+    }
+
+    @Test
+    public void switchToBinaryInsideOnFrame() throws IOException {
+        this.decoder = new FrameDecoder();
+        final FrameDecoder.FrameHandler handler = new FrameDecoder.FrameHandler() {
+            @Override
+            public void onFrame(final FrameDecoder frame) {
+                if(!frame.isBinary() && frame.matches(BinaryProtocol.ACK)) {
+                    frame.setBinaryMode(true);
+                }
+                collector.onFrame(frame);
+            }
+        };
+
+        // L'ACK e il primo frame binario arrivano nella stessa lettura
+        final byte[] bytes = concat(ascii("7\n" + BinaryProtocol.ACK + "\n"), probabilityFrame(99));
+        this.decoder.readFrom(new ChunkedInputStream(bytes, bytes.length), handler);
+
+        assertEquals(Arrays.asList("7", BinaryProtocol.ACK, "1:99"), this.frames);
+    }
+
+    /* Legge tutto lo stream, con letture lunghe al massimo quanto indicato da chunks (l'ultimo si ripete) */
+    private void readAll(final byte[] bytes, final int... chunks) throws IOException {
+        final InputStream input = new ChunkedInputStream(bytes, chunks);
+        while(this.decoder.readFrom(input, this.collector) >= 0) { }
+    }
+
+    private static byte[] probabilityFrame(final int probability) {
+        final byte[] frame = new byte[BinaryProtocol.MAX_FRAME_SIZE];
+        final int length = BinaryProtocol.encodeFrame(BinaryProtocol.TYPE_PROBABILITY, new int[] {probability}, frame, 0);
+        return Arrays.copyOf(frame, length);
+    }
+
+    private static byte[] ascii(final String text) throws UnsupportedEncodingException {
+        return text.getBytes("US-ASCII");
+    }
+
+    private static int[] ones(final int count) {
+        final int[] chunks = new int[count];
+        Arrays.fill(chunks, 1);
+        return chunks;
+    }
+
+    private static byte[] concat(final byte[]... parts) {
+        int length = 0;
+        for(byte[] part : parts) {
+            length += part.length;
+        }
+        final byte[] result = new byte[length];
+        int offset = 0;
+        for(byte[] part : parts) {
+            System.arraycopy(part, 0, result, offset, part.length);
+            offset += part.length;
+        }
+        return result;
+    }
+
+    /* Restituisce i byte divisi nelle letture indicate, come un socket che consegna pacchetti di dimensione variabile */
+    private static final class ChunkedInputStream extends InputStream {
+        private final byte[] bytes;
+        private final int[] chunks;
+        private int position;
+        private int chunk;
+
+        ChunkedInputStream(final byte[] bytes, final int... chunks) {
+            this.bytes = bytes;
+            this.chunks = chunks;
+        }
+
+        @Override
+        public int read() {
+            return this.position < this.bytes.length? this.bytes[this.position++] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int length) {
+            if(this.position >= this.bytes.length) {
+                return -1;
+            }
+            final int size = this.chunks[Math.min(this.chunk++, this.chunks.length - 1)];
+            final int count = Math.min(Math.min(size, length), this.bytes.length - this.position);
+            System.arraycopy(this.bytes, this.position, buffer, offset, count);
+            this.position += count;
+            return count;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package utility;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Lettura e scrittura del file delle impostazioni: migrazione dal formato delle versioni precedenti, round trip,
+ * file temporaneo rimasto da una scrittura interrotta e file danneggiato.
+ */
+public class SettingsStoreTest {
+
+    private static final String FILENAME = "settings.bin";
+    private static final String ADDRESS = "98:D3:31:FB:12:34";
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+    private SettingsStore store;
+
+    @Before
+    public void setUp() {
+        this.file = new File(this.folder.getRoot(), FILENAME);
+        this.store = new SettingsStore(this.folder.getRoot(), FILENAME);
+    }
+
+    @Test
+    public void missingFileGivesTheDefaults() {
+        final SettingsStore.Values values = this.store.load();
+
+        assertEquals(Settings.DEFAULT_MINIMUM_PROBABILITY, values.getMinimumProbability());
+        assertEquals("", values.getDefaultDeviceAddress());
+        assertFalse(this.store.wasMigrated());
+    }
+
+    @Test
+    public void legacyFileIsMigrated() throws IOException {
+        // Come salvavano le versioni precedenti
+        final ObjectOutputStream output = new ObjectOutputStream(new FileOutputStream(this.file));
+        output.writeUTF(ADDRESS);
+        output.writeInt(42);
+        output.close();
+
+        SettingsStore.Values values = this.store.load();
+        assertTrue(this.store.wasMigrated());
+        assertEquals(42, values.getMinimumProbability());
+        assertEquals(ADDRESS, values.getDefaultDeviceAddress());
+
+        this.store.write(values.getMinimumProbability(), values.getDefaultDeviceAddress());
+        assertFalse(this.store.wasMigrated());
+
+        final SettingsStore reopened = new SettingsStore(this.folder.getRoot(), FILENAME);
+        values = reopened.load();
+        assertFalse(reopened.wasMigrated());
+        assertEquals(42, values.getMinimumProbability());
+        assertEquals(ADDRESS, values.getDefaultDeviceAddress());
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        this.store.write(73, ADDRESS);
+
+        final SettingsStore.Values values = new SettingsStore(this.folder.getRoot(), FILENAME).load();
+        assertEquals(73, values.getMinimumProbability());
+        assertEquals(ADDRESS, values.getDefaultDeviceAddress());
+        assertFalse(new File(this.folder.getRoot(), FILENAME + ".tmp").exists());
+    }
+
+    @Test
+    public void nullAddressIsWrittenAsEmpty() throws IOException {
+        this.store.write(50, null);
+
+        assertEquals("", this.store.load().getDefaultDeviceAddress());
+    }
+
+    @Test
+    public void leftoverTemporaryFileIsDiscarded() throws IOException {
+        this.store.write(60, ADDRESS);
+        // Scrittura interrotta prima della rinomina: il file temporaneo contiene impostazioni mai confermate
+        final File temporary = new File(this.folder.getRoot(), FILENAME + ".tmp");
+        final FileOutputStream output = new FileOutputStream(temporary);
+        output.write(SettingsStore.encode(10, "00:00:00:00:00:00"));
+        output.close();
+
+        final SettingsStore.Values values = this.store.load();
+        assertEquals(60, values.getMinimumProbability());
+        assertEquals(ADDRESS, values.getDefaultDeviceAddress());
+        assertFalse(temporary.exists());
+    }
+
+    @Test
+    public void corruptedCrcGivesTheDefaults() throws IOException {
+        this.store.write(60, ADDRESS);
+        final RandomAccessFile output = new RandomAccessFile(this.file, "rw");
+        output.seek(12); // Dentro il valore della probabilità minima
+        output.write(0x7F);
+        output.close();
+
+        final SettingsStore.Values values = this.store.load();
+        assertEquals(Settings.DEFAULT_MINIMUM_PROBABILITY, values.getMinimumProbability());
+        assertEquals("", values.getDefaultDeviceAddress());
+    }
+
+    @Test
+    public void unknownFieldsAreSkipped() throws IOException {
+        final byte[] known = SettingsStore.encode(55, ADDRESS);
+        // Un campo con tag 99 aggiunto da una versione futura, prima del CRC
+        final byte[] fields = new byte[known.length - 4 + 6];
+        System.arraycopy(known, 0, fields, 0, known.length - 4);
+        fields[7] = 3; // numero di campi
+        fields[known.length - 4 + 1] = 99;
+        fields[known.length - 4 + 3] = 2;
+        final CRC32 crc = new CRC32();
+        crc.update(fields);
+        final byte[] bytes = new byte[fields.length + 4];
+        System.arraycopy(fields, 0, bytes, 0, fields.length);
+        final int value = (int) crc.getValue();
+        for(int i = 0; i < 4; i++) {
+            bytes[fields.length + i] = (byte) (value >>> (24 - 8 * i));
+        }
+
+        final SettingsStore.Values values = SettingsStore.decode(bytes);
+        assertEquals(55, values.getMinimumProbability());
+        assertEquals(ADDRESS, values.getDefaultDeviceAddress());
+    }
+}
@@ -0,0 +1,32 @@
+package android.util;
+
+/**
+ * Sostituisce android.util.Log quando le classi dell'app girano su una JVM: i metodi di android.jar lanciano
+ * RuntimeException("Stub!"), questi scrivono sullo standard error.
+ * Vengono implementati solo i metodi usati dall'app.
+ */
+public final class Log {
+
+    private Log() { }
+
+    public static int d(final String tag, final String msg) {
+        return println("D", tag, msg);
+    }
+
+    public static int i(final String tag, final String msg) {
+        return println("I", tag, msg);
+    }
+
+    public static int w(final String tag, final String msg) {
+        return println("W", tag, msg);
+    }
+
+    public static int e(final String tag, final String msg) {
+        return println("E", tag, msg);
+    }
+
+    private static int println(final String priority, final String tag, final String msg) {
+        System.err.println(priority + "/" + tag + ": " + msg);
+        return 0;
+    }
+}
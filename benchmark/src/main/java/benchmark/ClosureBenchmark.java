@@ -0,0 +1,55 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+import model.ClosureEvaluator;
+import model.EwmaEstimator;
+import model.KalmanEstimator;
+
+/**
+ * Aggiornamento della probabilità ad ogni messaggio e valutazione della chiusura alla disconnessione
+ * (la logica di ApplicationService.valutaChiusuraMacchina), con i diversi stimatori.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ClosureBenchmark {
+
+    @Param({"ewma", "kalman"})
+    public String estimator;
+
+    private ClosureEvaluator evaluator;
+    private long time;
+    private int probability;
+
+    @Setup
+    public void setup() {
+        this.evaluator = new ClosureEvaluator(this.estimator.equals("ewma")? new EwmaEstimator() : new KalmanEstimator(),
+                ClosureEvaluator.DEFAULT_WINDOW_SIZE, ClosureEvaluator.DEFAULT_TREND_HORIZON_MS);
+    }
+
+    @Benchmark
+    public int update() {
+        this.time += 100;
+        this.probability = (this.probability + 7) % 101;
+        this.evaluator.update(this.probability, this.time);
+        return this.evaluator.getProbability();
+    }
+
+    @Benchmark
+    public boolean updateAndEvaluate() {
+        this.time += 100;
+        this.probability = (this.probability + 7) % 101;
+        this.evaluator.update(this.probability, this.time);
+        return this.evaluator.evaluate(this.time + (this.probability * 500), 40);
+    }
+}
@@ -0,0 +1,537 @@
+package benchmark;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import model.CommandChannel;
+import model.PipedTransport;
+import model.Transport;
+
+/**
+ * Device simulato: fa quello che fa il modulo sulla macchina collegato con l'SPP Settings.MY_UUID, cioè scrive una
+ * probabilità da 0 a 100 per riga terminata da '\n', alla frequenza indicata e con la probabilità che segue una curva.
+ * Possono essere iniettati dei guasti:
+ * - BURST: BURST_FRAMES frame accumulati e scritti con una sola write, come fa il buffer del modulo bluetooth
+ * - SPLIT: un frame scritto con due write separate da una breve pausa
+ * - GARBAGE: da 1 a GARBAGE_MAX_BYTES byte casuali (anche non ASCII o '\n') prima di un frame
+ * - STALL: il device resta connesso ma non scrive niente per STALL_MS, in media ogni STALL_MEAN_INTERVAL_MS
+ * - DISCONNECT: la connessione viene chiusa di colpo (reset per TCP), in media dopo DISCONNECT_MEAN_MS
+ * - VANISH: il device smette di scrivere e di rispondere ma la connessione resta aperta, come un modulo che perde
+ *           l'alimentazione quando il link non è ancora scaduto; in media dopo VANISH_MEAN_MS. La sessione termina
+ *           solo quando il telefono chiude la connessione
+ *
+ * Risponde ai comandi di model.CommandChannel (LOCK, FW, BATT, RATE, PING) su un thread separato, quindi le risposte
+ * arrivano mescolate ai frame; durante uno stallo le risposte aspettano la fine dello stallo.
+ *
+ * Il telefono si connette attraverso un PipedTransport (createTransport) o via TCP (listen); ogni connessione è una
+ * sessione su un thread dedicato. La curva prosegue tra una sessione e l'altra. Con lo stesso seme la sequenza di
+ * valori e guasti è la stessa, gli istanti dipendono invece dalla velocità con cui il telefono legge.
+ *
+ * Uso come server TCP (per esempio per ReplayHarness record): DeviceEmulator [porta] [frequenza in Hz, 0 = massima]
+ * [curva] [guasti separati da virgola, all o none]
+ */
+public final class DeviceEmulator {
+
+    public static final int BURST_FRAMES = 32;
+    public static final double BURST_PROBABILITY = 0.02;
+    public static final double SPLIT_PROBABILITY = 0.1;
+    public static final long SPLIT_PAUSE_MS = 2;
+    public static final double GARBAGE_PROBABILITY = 0.02;
+    public static final int GARBAGE_MAX_BYTES = 8;
+    public static final long STALL_MS = 3000;
+    public static final long STALL_MEAN_INTERVAL_MS = 20000;
+    public static final long DISCONNECT_MEAN_MS = 15000;
+    public static final long VANISH_MEAN_MS = 15000;
+    public static final int NOISE = 3;
+
+    public static final String FIRMWARE = "1.0-emulator";
+    public static final int BATTERY_MILLIVOLTS = 12540;
+
+    private static final long MAX_LAG_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long POLL_MS = 5;
+
+    /**
+     * Andamento della probabilità nel tempo, in secondi dalla creazione dell'emulatore.
+     */
+    public enum Curve {
+        /** Macchina chiusa, probabilità stabile */
+        CONSTANT {
+            @Override
+            int value(final double seconds, final int previous, final Random random) {
+                return 80;
+            }
+        },
+        /** Da 0 a 100 in 20 secondi, poi stabile */
+        CLOSING {
+            @Override
+            int value(final double seconds, final int previous, final Random random) {
+                return (int) Math.min(100, seconds * 5);
+            }
+        },
+        /** Da 100 a 0 in 20 secondi, poi stabile */
+        OPENING {
+            @Override
+            int value(final double seconds, final int previous, final Random random) {
+                return (int) Math.max(0, 100 - seconds * 5);
+            }
+        },
+        /** Oscilla tra 0 e 100 con periodo di 30 secondi */
+        SINE {
+            @Override
+            int value(final double seconds, final int previous, final Random random) {
+                return (int) Math.round(50 + 50 * Math.sin(2 * Math.PI * seconds / 30));
+            }
+        },
+        /** Alterna 90 e 10 ogni 5 secondi */
+        FLAPPING {
+            @Override
+            int value(final double seconds, final int previous, final Random random) {
+                return ((long) (seconds / 5)) % 2 == 0? 90 : 10;
+            }
+        },
+        /** Passeggiata casuale, al massimo 10 punti per campione */
+        RANDOM {
+            @Override
+            int value(final double seconds, final int previous, final Random random) {
+                return previous + random.nextInt(21) - 10;
+            }
+        };
+
+        abstract int value(double seconds, int previous, Random random);
+    }
+
+    public enum Fault {
+        BURST, SPLIT, GARBAGE, STALL, DISCONNECT, VANISH;
+
+        /**
+         * @param faults nomi separati da virgola (maiuscole o minuscole), "all" o "none"
+         * @return
+         */
+        public static EnumSet<Fault> parse(final String faults) {
+            if(faults.equalsIgnoreCase("all")) {
+                return EnumSet.allOf(Fault.class);
+            }
+
+            final EnumSet<Fault> result = EnumSet.noneOf(Fault.class);
+            if(!faults.equalsIgnoreCase("none") && !faults.isEmpty()) {
+                for(String fault : faults.split(",")) {
+                    result.add(Fault.valueOf(fault.trim().toUpperCase()));
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Contatori di quello che hanno fatto gli emulatori, condivisibili tra più emulatori.
+     */
+    public static final class Counters {
+        final AtomicLong sessions = new AtomicLong();
+        final AtomicLong frames = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong bursts = new AtomicLong();
+        final AtomicLong splits = new AtomicLong();
+        final AtomicLong garbage = new AtomicLong();
+        final AtomicLong stalls = new AtomicLong();
+        final AtomicLong disconnects = new AtomicLong();
+        final AtomicLong vanished = new AtomicLong();
+        final AtomicLong commands = new AtomicLong();
+
+        @Override
+        public String toString() {
+            return "sessioni " + this.sessions + ", frame " + this.frames + ", byte " + this.bytes
+                    + ", burst " + this.bursts + ", split " + this.splits + ", garbage " + this.garbage
+                    + ", stalli " + this.stalls + ", disconnessioni " + this.disconnects + ", sparizioni " + this.vanished
+                    + ", comandi " + this.commands;
+        }
+    }
+
+    private volatile double rate; // cambia con il comando RATE
+    private final Curve curve;
+    private final EnumSet<Fault> faults;
+    private final Random random; // usato solo dalla sessione in corso, che è una alla volta
+    private final Counters counters;
+    private final long createdAt = System.nanoTime();
+    private final List<Closeable> connections = new ArrayList<>(); // protetta dal lock della lista
+    private volatile boolean stopped;
+    private volatile ServerSocket server;
+    private volatile int probability; // ultimo valore scritto
+    private volatile long stalledUntil; // System.nanoTime() della fine dello stallo in corso
+    private volatile boolean vanished; // la sessione in corso non scrive e non risponde più
+
+    /**
+     * @param seed seme dei valori casuali (rumore, guasti)
+     * @param rate frame al secondo, 0 per scrivere il più velocemente possibile
+     * @param curve
+     * @param faults guasti da iniettare
+     * @param counters contatori da aggiornare
+     */
+    public DeviceEmulator(final long seed, final double rate, final Curve curve, final EnumSet<Fault> faults,
+                          final Counters counters) {
+        if(rate < 0) {
+            throw new IllegalArgumentException("La frequenza non può essere negativa");
+        }
+        this.rate = rate;
+        this.curve = curve;
+        this.faults = faults;
+        this.random = new Random(seed);
+        this.counters = counters;
+        this.probability = 50;
+    }
+
+    /**
+     * @param name
+     * @param address
+     * @return un transport in memoria che ad ogni connect() apre una sessione con questo emulatore
+     */
+    public Transport createTransport(final String name, final String address) {
+        return new PipedTransport(name, address, new PipedTransport.DeviceSide() {
+            @Override
+            public void onConnected(final InputStream fromPhone, final OutputStream toPhone) {
+                startSession(fromPhone, toPhone, toPhone, name);
+            }
+        });
+    }
+
+    /**
+     * Accetta connessioni TCP su localhost, una sessione per connessione.
+     * @param port porta, 0 per sceglierne una libera
+     * @return la porta su cui l'emulatore è in ascolto
+     * @throws IOException
+     */
+    public int listen(final int port) throws IOException {
+        final ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        this.server = server;
+
+        final Thread accept = new Thread("emulator-accept-" + server.getLocalPort()) {
+            @Override
+            public void run() {
+                while(!stopped) {
+                    try {
+                        final Socket socket = server.accept();
+                        socket.setTcpNoDelay(true);
+                        startSession(socket.getInputStream(), socket.getOutputStream(), socket,
+                                socket.getRemoteSocketAddress().toString());
+                    } catch (IOException e) {
+                        if(!stopped) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            }
+        };
+        accept.setDaemon(true);
+        accept.start();
+        return server.getLocalPort();
+    }
+
+    /**
+     * Termina le sessioni aperte e smette di accettare connessioni.
+     */
+    public void stop() {
+        this.stopped = true;
+
+        final ServerSocket server = this.server;
+        if(server != null) {
+            close(server);
+        }
+        synchronized (this.connections) {
+            for(Closeable connection : this.connections) {
+                close(connection);
+            }
+            this.connections.clear();
+        }
+    }
+
+    private void startSession(final InputStream input, final OutputStream output, final Closeable connection,
+                              final String name) {
+        synchronized (this.connections) {
+            if(this.stopped) {
+                close(connection);
+                return;
+            }
+            this.connections.add(connection);
+        }
+
+        final AtomicBoolean active = new AtomicBoolean(true);
+        final AtomicBoolean open = new AtomicBoolean(true); // false quando il telefono ha chiuso la connessione
+        final Thread session = new Thread("emulator-" + name) {
+            @Override
+            public void run() {
+                try {
+                    runSession(output, connection, open);
+                } finally {
+                    active.set(false);
+                    synchronized (connections) {
+                        connections.remove(connection);
+                    }
+                }
+            }
+        };
+        final Thread responder = new Thread("emulator-commands-" + name) {
+            @Override
+            public void run() {
+                respond(input, output, active);
+                open.set(false);
+            }
+        };
+        session.setDaemon(true);
+        responder.setDaemon(true);
+        session.start();
+        responder.start();
+    }
+
+    /* Legge le richieste del telefono e risponde, finchè la sessione è attiva. Le scritture sono sincronizzate su
+       output con quelle dei frame */
+    private void respond(final InputStream input, final OutputStream output, final AtomicBoolean active) {
+        final StringBuilder line = new StringBuilder();
+
+        while(active.get()) {
+            final int b;
+            try {
+                b = input.read();
+            } catch (IOException e) {
+                // Una pipe considera rotto lo stream quando termina il thread che ha scritto per ultimo, anche se la
+                // connessione è ancora aperta: riprovo finchè la sessione è attiva
+                sleep(POLL_MS);
+                continue;
+            }
+            if(b < 0) {
+                return;
+            }
+            if(b != '\n' && b != '\r') {
+                line.append((char) b);
+                continue;
+            }
+            if(line.length() == 0 || line.charAt(0) != '?') {
+                line.setLength(0); // Per esempio la proposta del protocollo binario, che l'emulatore non supporta
+                continue;
+            }
+
+            final String request = line.toString();
+            line.setLength(0);
+            final int separator = request.indexOf(' ');
+            final String id = separator < 0? request.substring(1) : request.substring(1, separator);
+            final String response = this.execute(separator < 0? "" : request.substring(separator + 1));
+
+            final long stall = this.stalledUntil - System.nanoTime();
+            if(stall > 0) {
+                sleep(TimeUnit.NANOSECONDS.toMillis(stall) + 1);
+            }
+            if(this.vanished) {
+                continue; // Continuo a leggere solo per sapere quando il telefono chiude la connessione
+            }
+            try {
+                synchronized (output) {
+                    output.write(("!" + id + " " + response + "\n").getBytes("US-ASCII"));
+                    output.flush();
+                }
+                this.counters.commands.incrementAndGet();
+            } catch (IOException e) {
+                return; // Connessione chiusa
+            }
+        }
+    }
+
+    private String execute(final String command) {
+        final String[] parts = command.split(" ");
+        if(parts[0].equals(CommandChannel.QUERY_LOCK)) {
+            return this.probability >= 50? "1" : "0";
+        } else if(parts[0].equals(CommandChannel.QUERY_FIRMWARE)) {
+            return FIRMWARE;
+        } else if(parts[0].equals(CommandChannel.QUERY_BATTERY)) {
+            return Integer.toString(BATTERY_MILLIVOLTS);
+        } else if(parts[0].equals(CommandChannel.PING)) {
+            return CommandChannel.PONG;
+        } else if(parts[0].equals(CommandChannel.SET_RATE) && parts.length == 2) {
+            try {
+                final double rate = Double.parseDouble(parts[1]);
+                if(rate >= 0) {
+                    this.rate = rate;
+                    return "OK";
+                }
+            } catch (NumberFormatException e) {
+                // Risposta di errore sotto
+            }
+            return CommandChannel.ERROR + " frequenza non valida";
+        }
+        return CommandChannel.ERROR + " comando sconosciuto";
+    }
+
+    /* Scrive i frame fino allo stop o alla disconnessione simulata, poi chiude la connessione.
+       Il thread deve restare vivo finchè scrive: una pipe il cui thread di scrittura termina viene considerata rotta */
+    private synchronized void runSession(final OutputStream output, final Closeable connection,
+                                         final AtomicBoolean open) {
+        this.counters.sessions.incrementAndGet();
+        this.vanished = false;
+
+        final byte[] buffer = new byte[BURST_FRAMES * 4 + GARBAGE_MAX_BYTES];
+        final long start = System.nanoTime();
+        final long disconnectAt = this.faults.contains(Fault.DISCONNECT)?
+                start + this.nextInterval(DISCONNECT_MEAN_MS) : Long.MAX_VALUE;
+        final long vanishAt = this.faults.contains(Fault.VANISH)? start + this.nextInterval(VANISH_MEAN_MS) : Long.MAX_VALUE;
+        long stallAt = this.faults.contains(Fault.STALL)? start + this.nextInterval(STALL_MEAN_INTERVAL_MS) : Long.MAX_VALUE;
+        long due = start;
+
+        try {
+            while(!this.stopped) {
+                final long now = System.nanoTime();
+                if(now >= disconnectAt) {
+                    this.counters.disconnects.incrementAndGet();
+                    abort(connection);
+                    return;
+                }
+                if(now >= vanishAt) {
+                    this.counters.vanished.incrementAndGet();
+                    this.vanished = true;
+                    // Il thread resta vivo, altrimenti la pipe verso il telefono risulterebbe rotta
+                    while(!this.stopped && open.get()) {
+                        Thread.sleep(POLL_MS);
+                    }
+                    break;
+                }
+                if(now >= stallAt) {
+                    this.counters.stalls.incrementAndGet();
+                    this.stalledUntil = now + TimeUnit.MILLISECONDS.toNanos(STALL_MS);
+                    Thread.sleep(STALL_MS);
+                    stallAt = System.nanoTime() + this.nextInterval(STALL_MEAN_INTERVAL_MS);
+                    due = System.nanoTime();
+                    continue;
+                }
+
+                int length = 0;
+                if(this.faults.contains(Fault.GARBAGE) && this.random.nextDouble() < GARBAGE_PROBABILITY) {
+                    this.counters.garbage.incrementAndGet();
+                    for(int i = 1 + this.random.nextInt(GARBAGE_MAX_BYTES); i > 0; i--) {
+                        buffer[length++] = (byte) this.random.nextInt(256);
+                    }
+                }
+
+                int frames = 1;
+                if(this.faults.contains(Fault.BURST) && this.random.nextDouble() < BURST_PROBABILITY) {
+                    this.counters.bursts.incrementAndGet();
+                    frames = BURST_FRAMES;
+                }
+                for(int i = 0; i < frames; i++) {
+                    length = this.appendFrame(buffer, length, (now - this.createdAt) / 1e9);
+                }
+
+                synchronized (output) {
+                    if(frames == 1 && length > 1 && this.faults.contains(Fault.SPLIT)
+                            && this.random.nextDouble() < SPLIT_PROBABILITY) {
+                        this.counters.splits.incrementAndGet();
+                        final int cut = 1 + this.random.nextInt(length - 1);
+                        output.write(buffer, 0, cut);
+                        output.flush();
+                        Thread.sleep(SPLIT_PAUSE_MS);
+                        output.write(buffer, cut, length - cut);
+                    } else {
+                        output.write(buffer, 0, length);
+                    }
+                    output.flush();
+                }
+                this.counters.frames.addAndGet(frames);
+                this.counters.bytes.addAndGet(length);
+
+                // In un burst i frame sono stati accumulati: la frequenza media resta quella richiesta
+                final double rate = this.rate;
+                due += rate > 0? (long) (frames * TimeUnit.SECONDS.toNanos(1) / rate) : 0;
+                final long wait = due - System.nanoTime();
+                if(wait > 0) {
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                } else if(-wait > MAX_LAG_NANOS) {
+                    due = System.nanoTime(); // Il telefono non legge abbastanza in fretta: non recupero i frame persi
+                }
+            }
+            close(connection);
+        } catch (IOException e) {
+            close(connection); // Connessione chiusa dal telefono o dallo stop
+        } catch (InterruptedException e) {
+            close(connection);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /* Aggiunge al buffer la prossima probabilità seguita da '\n' */
+    private int appendFrame(final byte[] buffer, final int offset, final double seconds) {
+        int value = this.curve.value(seconds, this.probability, this.random);
+        if(this.curve != Curve.RANDOM) {
+            value += this.random.nextInt(2 * NOISE + 1) - NOISE;
+        }
+        value = Math.max(0, Math.min(100, value));
+        this.probability = value;
+
+        int position = offset;
+        if(value >= 100) {
+            buffer[position++] = '1';
+        }
+        if(value >= 10) {
+            buffer[position++] = (byte) ('0' + value / 10 % 10);
+        }
+        buffer[position++] = (byte) ('0' + value % 10);
+        buffer[position++] = '\n';
+        return position;
+    }
+
+    /* Intervallo casuale con distribuzione esponenziale, in nanosecondi */
+    private long nextInterval(final long meanMs) {
+        return (long) (-Math.log(1 - this.random.nextDouble()) * TimeUnit.MILLISECONDS.toNanos(meanMs));
+    }
+
+    /* Chiude di colpo: su TCP il telefono riceve un reset invece della normale chiusura */
+    private static void abort(final Closeable connection) {
+        if(connection instanceof Socket) {
+            try {
+                ((Socket) connection).setSoLinger(true, 0);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        close(connection);
+    }
+
+    private static void sleep(final long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void close(final Closeable connection) {
+        try {
+            connection.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final int port = args.length > 0? Integer.parseInt(args[0]) : 9000;
+        final double rate = args.length > 1? Double.parseDouble(args[1]) : 10;
+        final Curve curve = args.length > 2? Curve.valueOf(args[2].toUpperCase()) : Curve.SINE;
+        final EnumSet<Fault> faults = args.length > 3? Fault.parse(args[3]) : EnumSet.noneOf(Fault.class);
+
+        final Counters counters = new Counters();
+        final DeviceEmulator emulator = new DeviceEmulator(System.nanoTime(), rate, curve, faults, counters);
+        System.out.println("Emulatore in ascolto su localhost:" + emulator.listen(port)
+                + ", " + rate + " Hz, curva " + curve + ", guasti " + faults);
+
+        while(true) {
+            Thread.sleep(10000);
+            System.out.println(counters);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import model.Event;
+
+/**
+ * Dal nome dell'azione di un Intent all'handler dell'evento: scansione di Event.values() con confronto dei nomi
+ * (il vecchio receiver di MainActivity), Event.valueOf, e HashMap nome -> Event più EnumMap Event -> handler.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DispatchBenchmark {
+
+    @Param({"CONNECTION_ESTABLISHED", "MESSAGE_RECEIVED", "NO_DEVICES_PAIRED"})
+    public String action;
+
+    private final Map<String, Event> eventsByAction = new HashMap<>();
+    private final Map<Event, Integer> handlers = new EnumMap<>(Event.class);
+
+    @Setup
+    public void setup() {
+        for(Event e : Event.values()) {
+            this.eventsByAction.put(e.name(), e);
+            this.handlers.put(e, e.ordinal());
+        }
+    }
+
+    @Benchmark
+    public Event valuesScan() {
+        Event found = null;
+        for(Event e : Event.values()) {
+            if(e.name().equals(this.action)) {
+                found = Event.valueOf(this.action);
+            }
+        }
+        return found;
+    }
+
+    @Benchmark
+    public Event valueOf() {
+        return Event.valueOf(this.action);
+    }
+
+    @Benchmark
+    public Integer mapLookup() {
+        return this.handlers.get(this.eventsByAction.get(this.action));
+    }
+}
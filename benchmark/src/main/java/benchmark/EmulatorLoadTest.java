@@ -0,0 +1,355 @@
+package benchmark;
+
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import model.ClosureEvaluator;
+import model.ClosureTracker;
+import model.CommandChannel;
+import model.ConnectionHandler;
+import model.ConnectionListener;
+import model.ConnectionMetrics;
+import model.ConnectionScheduler;
+import model.Event;
+import model.ReconnectPolicy;
+import model.TcpTransport;
+import model.Telemetry;
+import model.Transport;
+import utility.MetricsRegistry;
+import utility.Settings;
+
+/**
+ * Prova di carico con più device simulati (DeviceEmulator) collegati contemporaneamente, ognuno con il proprio
+ * ConnectionHandler sullo stesso ConnectionScheduler e con un listener che fa quello che fa ApplicationService
+ * (ClosureEvaluator aggiornato ad ogni probabilità e valutazione della chiusura ad ogni disconnessione).
+ * Le metriche delle connessioni vengono sommate su tutti i device.
+ *
+ * Con un solo numero di device stampa il resoconto della prova e le metriche; con un intervallo "minimo..massimo"
+ * ripete la prova raddoppiando il numero di device e stampa una riga per prova, per vedere come peggiorano
+ * throughput, frame persi, latenza e tempi di riconnessione all'aumentare del carico.
+ * Senza numero di worker lo scheduler ne ha uno per device, come se tutti i device potessero essere connessi insieme;
+ * con meno worker che device quelli in eccesso restano in coda finchè un altro non si disconnette.
+ * Con un numero di comandi al secondo per device, durante la prova vengono mandati ai device i comandi di
+ * CommandChannel (a rotazione LOCK, FW, BATT, RATE), per misurare i tempi di risposta con il link carico.
+ * Con un timeout di liveness gli handler chiudono le connessioni da cui non arriva niente (heartbeat a un terzo del
+ * timeout): con il guasto VANISH il resoconto confronta il tempo di rilevamento con quello dell'errore del socket
+ * (DISCONNECT); senza liveness un device sparito su TCP non viene mai rilevato.
+ *
+ * Uso: EmulatorLoadTest [pipe|tcp] [device o minimo..massimo] [secondi] [frequenza in Hz] [curva]
+ *      [guasti separati da virgola, all o none] [worker, 0 = uno per device] [comandi al secondo per device]
+ *      [timeout di liveness in ms, 0 = disattivato]
+ */
+public final class EmulatorLoadTest {
+
+    private static final long SEED = 1;
+    private static final long SAMPLE_INTERVAL_MS = 100;
+    private static final String PREFIX = "load.";
+    private static final int HEARTBEATS_PER_TIMEOUT = 3;
+
+    private EmulatorLoadTest() { }
+
+    public static void main(final String[] args) throws Exception {
+        final String mode = args.length > 0? args[0] : "pipe";
+        final String devices = args.length > 1? args[1] : "8";
+        final int seconds = args.length > 2? Integer.parseInt(args[2]) : 10;
+        final double rate = args.length > 3? Double.parseDouble(args[3]) : 20;
+        final DeviceEmulator.Curve curve = args.length > 4?
+                DeviceEmulator.Curve.valueOf(args[4].toUpperCase()) : DeviceEmulator.Curve.SINE;
+        final EnumSet<DeviceEmulator.Fault> faults = args.length > 5?
+                DeviceEmulator.Fault.parse(args[5]) : EnumSet.noneOf(DeviceEmulator.Fault.class);
+        final int workers = args.length > 6? Integer.parseInt(args[6]) : 0;
+        final double commandRate = args.length > 7? Double.parseDouble(args[7]) : 0;
+        final long livenessTimeoutMs = args.length > 8? Long.parseLong(args[8]) : 0;
+
+        System.out.println("Transport: " + mode + ", durata " + seconds + " s, " + rate + " Hz per device, curva "
+                + curve + ", guasti " + faults + ", worker " + (workers > 0? String.valueOf(workers) : "uno per device")
+                + ", comandi " + commandRate + "/s per device, liveness "
+                + (livenessTimeoutMs > 0? livenessTimeoutMs + " ms" : "disattivata"));
+
+        final int separator = devices.indexOf("..");
+        if(separator < 0) {
+            final Run run = new Run(mode, Integer.parseInt(devices), workers, seconds, rate, curve, faults, commandRate,
+                    livenessTimeoutMs);
+            run.execute();
+            run.printReport();
+            return;
+        }
+
+        final int min = Integer.parseInt(devices.substring(0, separator));
+        final int max = Integer.parseInt(devices.substring(separator + 2));
+        System.out.println(String.format("%7s %10s %10s %8s %9s %9s %9s %10s %9s %7s",
+                "device", "inviati/s", "ricevuti/s", "ricevuti", "lat p50", "lat p99", "lat max", "riconn p99",
+                "scartati", "coda"));
+        for(int count = Math.max(1, min); count <= max; count *= 2) {
+            final Run run = new Run(mode, count, workers, seconds, rate, curve, faults, commandRate,
+                    livenessTimeoutMs);
+            run.execute();
+            run.printRow();
+        }
+    }
+
+    /* Una prova con un numero fisso di device */
+    private static final class Run {
+        private final String mode;
+        private final int devices;
+        private final int workers;
+        private final int seconds;
+        private final double rate;
+        private final DeviceEmulator.Curve curve;
+        private final EnumSet<DeviceEmulator.Fault> faults;
+        private final double commandRate;
+        private final long livenessTimeoutMs;
+        private final MetricsRegistry registry = new MetricsRegistry();
+        private final ConnectionMetrics metrics = new ConnectionMetrics(this.registry, PREFIX);
+        private final DeviceEmulator.Counters counters = new DeviceEmulator.Counters();
+        private final Totals totals = new Totals();
+        private long elapsedNanos;
+        private int maxQueued;
+        private long connectedSamples;
+        private long samples;
+
+        Run(final String mode, final int devices, final int workers, final int seconds, final double rate,
+            final DeviceEmulator.Curve curve, final EnumSet<DeviceEmulator.Fault> faults, final double commandRate,
+            final long livenessTimeoutMs) {
+            this.mode = mode;
+            this.devices = devices;
+            this.workers = workers > 0? workers : devices;
+            this.seconds = seconds;
+            this.rate = rate;
+            this.curve = curve;
+            this.faults = faults;
+            this.commandRate = commandRate;
+            this.livenessTimeoutMs = livenessTimeoutMs;
+        }
+
+        void execute() throws Exception {
+            final ConnectionScheduler scheduler = new ConnectionScheduler(this.workers);
+            final List<DeviceEmulator> emulators = new ArrayList<>(this.devices);
+            final List<ConnectionHandler> handlers = new ArrayList<>(this.devices);
+            final String host = InetAddress.getLoopbackAddress().getHostAddress();
+
+            for(int i = 0; i < this.devices; i++) {
+                final DeviceEmulator emulator = new DeviceEmulator(SEED + i, this.rate, this.curve, this.faults, this.counters);
+                final Transport transport;
+                if(this.mode.equals("tcp")) {
+                    transport = new TcpTransport(host, emulator.listen(0));
+                } else {
+                    transport = emulator.createTransport("device-" + i, String.format("00:00:00:00:%02X:%02X", i >> 8, i & 0xFF));
+                }
+                final ConnectionHandler handler = new ConnectionHandler(transport, new LoadListener(this.totals), scheduler,
+                        new ReconnectPolicy(), this.metrics);
+                handler.setLiveness(this.livenessTimeoutMs / HEARTBEATS_PER_TIMEOUT, this.livenessTimeoutMs);
+                emulators.add(emulator);
+                handlers.add(handler);
+            }
+
+            final long start = System.nanoTime();
+            for(ConnectionHandler handler : handlers) {
+                handler.start();
+            }
+
+            final long end = start + TimeUnit.SECONDS.toNanos(this.seconds);
+            final long commandInterval = this.commandRate > 0?
+                    (long) (TimeUnit.SECONDS.toNanos(1) / (this.commandRate * this.devices)) : Long.MAX_VALUE;
+            long nextCommand = this.commandRate > 0? start + commandInterval : Long.MAX_VALUE;
+            long nextSample = start + TimeUnit.MILLISECONDS.toNanos(SAMPLE_INTERVAL_MS);
+            int commands = 0;
+
+            while(System.nanoTime() < end) {
+                final long now = System.nanoTime();
+                if(now >= nextCommand) {
+                    this.sendCommand(handlers.get(commands % this.devices), commands / this.devices);
+                    commands++;
+                    nextCommand += commandInterval;
+                    continue;
+                }
+                if(now < nextSample) {
+                    final long wait = Math.min(nextSample, nextCommand) - now;
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                    continue;
+                }
+                nextSample += TimeUnit.MILLISECONDS.toNanos(SAMPLE_INTERVAL_MS);
+                this.maxQueued = Math.max(this.maxQueued, scheduler.getQueuedTasks());
+                this.connectedSamples += this.totals.connected.get();
+                this.samples++;
+            }
+            this.elapsedNanos = System.nanoTime() - start;
+
+            for(ConnectionHandler handler : handlers) {
+                handler.stopComputing();
+            }
+            for(DeviceEmulator emulator : emulators) {
+                emulator.stop();
+            }
+            scheduler.shutdown();
+            scheduler.awaitTermination(TimeUnit.SECONDS.toMillis(5));
+
+            // I gauge dei ConnectionHandler hanno lo stesso nome per tutti i device: resterebbe solo quello dell'ultimo
+            this.registry.removeAll(PREFIX + "connect.connected");
+            this.registry.removeAll(PREFIX + "frames.corrupted");
+        }
+
+        /* Manda al device il comando successivo della rotazione, senza aspettare la risposta */
+        private void sendCommand(final ConnectionHandler handler, final int sequence) {
+            final String command;
+            switch (sequence % 4) {
+                case 0:
+                    command = CommandChannel.QUERY_LOCK;
+                    break;
+                case 1:
+                    command = CommandChannel.QUERY_FIRMWARE;
+                    break;
+                case 2:
+                    command = CommandChannel.QUERY_BATTERY;
+                    break;
+                default:
+                    command = CommandChannel.SET_RATE + " " + this.rate;
+                    break;
+            }
+            this.totals.commands.incrementAndGet();
+            handler.getCommandChannel().send(command, CommandChannel.DEFAULT_TIMEOUT_MS, this.totals);
+        }
+
+        void printReport() {
+            final double elapsed = this.elapsedNanos / 1e9;
+            final long sent = this.counters.frames.get();
+            final long received = this.totals.probabilities.get();
+
+            System.out.println("Device: " + this.devices + ", worker " + this.workers
+                    + ", tempo " + TimeUnit.NANOSECONDS.toMillis(this.elapsedNanos) + " ms");
+            System.out.println("Inviati: " + this.counters);
+            System.out.println("Ricevuti: probabilità " + received + " (" + percentage(received, sent) + " dei frame inviati)"
+                    + ", messaggi non numerici " + this.totals.messages.get());
+            System.out.println("Throughput: inviati " + (long) (sent / elapsed) + " frame/s, ricevuti "
+                    + (long) (received / elapsed) + " frame/s, " + String.format("%.1f", received / elapsed / this.devices)
+                    + " frame/s per device (richiesti " + this.rate + ")");
+            System.out.println("Decisioni: " + (this.totals.closed.get() + this.totals.notClosed.get())
+                    + ", chiusa " + this.totals.closed.get() + ", non chiusa " + this.totals.notClosed.get());
+            System.out.println("Comandi: " + this.totals.commands.get() + ", risposte " + this.totals.responses.get()
+                    + ", falliti " + this.totals.commandFailures.get());
+            final MetricsRegistry.Histogram loss = this.registry.histogram(PREFIX + "connect.loss_detection_ms",
+                    MetricsRegistry.MILLIS_BUCKETS);
+            final MetricsRegistry.Histogram liveness = this.registry.histogram(PREFIX + "liveness.detection_ms",
+                    MetricsRegistry.MILLIS_BUCKETS);
+            System.out.println("Rilevamento perdita: errore del socket " + loss.getCount() + " (p50 " + loss.getQuantile(0.5)
+                    + " ms, max " + loss.getMax() + " ms), liveness " + liveness.getCount() + " (p50 "
+                    + liveness.getQuantile(0.5) + " ms, max " + liveness.getMax() + " ms), heartbeat "
+                    + this.registry.counter(PREFIX + "liveness.heartbeats").get());
+            System.out.println("Scheduler: device connessi in media " + String.format("%.1f", this.getAverageConnected())
+                    + ", coda massima " + this.maxQueued);
+
+            final PrintWriter writer = new PrintWriter(System.out);
+            this.registry.dump(writer);
+            writer.flush();
+        }
+
+        void printRow() {
+            final double elapsed = this.elapsedNanos / 1e9;
+            final long sent = this.counters.frames.get();
+            final long received = this.totals.probabilities.get();
+            final MetricsRegistry.Histogram latency = this.registry.histogram(PREFIX + "frames.latency_us",
+                    MetricsRegistry.MICROS_BUCKETS);
+            final MetricsRegistry.Histogram reconnect = this.registry.histogram(PREFIX + "connect.reconnect_time_ms",
+                    MetricsRegistry.MILLIS_BUCKETS);
+
+            System.out.println(String.format("%7d %10d %10d %8s %7dus %7dus %7dus %8dms %9d %7d",
+                    this.devices, (long) (sent / elapsed), (long) (received / elapsed), percentage(received, sent),
+                    latency.getQuantile(0.5), latency.getQuantile(0.99), latency.getMax(), reconnect.getQuantile(0.99),
+                    this.registry.counter(PREFIX + "frames.parse_failures").get(), this.maxQueued));
+        }
+
+        private double getAverageConnected() {
+            return this.samples == 0? 0 : (double) this.connectedSamples / this.samples;
+        }
+
+        private static String percentage(final long part, final long total) {
+            return total == 0? "-" : String.format("%.1f%%", 100.0 * part / total);
+        }
+    }
+
+    /* Contatori sommati su tutti i device; riceve anche l'esito dei comandi */
+    private static final class Totals implements CommandChannel.ResponseListener {
+        private final AtomicLong probabilities = new AtomicLong();
+        private final AtomicLong messages = new AtomicLong();
+        private final AtomicLong closed = new AtomicLong();
+        private final AtomicLong notClosed = new AtomicLong();
+        private final AtomicInteger connected = new AtomicInteger();
+        private final AtomicLong commands = new AtomicLong();
+        private final AtomicLong responses = new AtomicLong();
+        private final AtomicLong commandFailures = new AtomicLong();
+
+        @Override
+        public void onResponse(final String command, final String response) {
+            this.responses.incrementAndGet();
+        }
+
+        @Override
+        public void onFailure(final String command, final String reason) {
+            this.commandFailures.incrementAndGet();
+        }
+    }
+
+    /* Listener di un device: decide come DeviceMonitor, con lo stesso ClosureTracker, ma conta invece di notificare */
+    private static final class LoadListener implements ConnectionListener {
+        private final Totals totals;
+        private final ClosureTracker closureTracker = new ClosureTracker(ClosureEvaluator.fromSettings());
+        private boolean connected; // usato solo dal worker della connessione
+
+        LoadListener(final Totals totals) {
+            this.totals = totals;
+        }
+
+        @Override
+        public void notifyEvent(final Event event, final String message) {
+            switch (event) {
+                case CONNECTION_ESTABLISHED:
+                    this.connected = true;
+                    this.totals.connected.incrementAndGet();
+                    break;
+
+                case MESSAGE_RECEIVED:
+                    if(this.closureTracker.onMessage(message, System.currentTimeMillis()) >= 0) {
+                        this.totals.probabilities.incrementAndGet();
+                    } else {
+                        this.totals.messages.incrementAndGet();
+                    }
+                    break;
+
+                case DISCONNECTED:
+                    if(this.connected) {
+                        this.connected = false;
+                        this.totals.connected.decrementAndGet();
+                    }
+                    if(this.closureTracker.onDisconnect(System.currentTimeMillis(), Settings.DEFAULT_MINIMUM_PROBABILITY)) {
+                        this.totals.closed.incrementAndGet();
+                    } else {
+                        this.totals.notClosed.incrementAndGet();
+                    }
+                    break;
+
+                default:
+                    break;
+            }
+        }
+
+        @Override
+        public void notifyProbability(final int probability) {
+            this.totals.probabilities.incrementAndGet();
+            this.closureTracker.onProbability(probability, System.currentTimeMillis());
+        }
+
+        @Override
+        public void notifyTelemetry(final Telemetry telemetry) {
+            if(this.closureTracker.onTelemetry(telemetry, System.currentTimeMillis()) >= 0) {
+                this.totals.probabilities.incrementAndGet();
+            }
+            telemetry.recycle();
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import model.ClosureEvaluator;
+import model.ClosureTracker;
+import model.ConnectionHandler;
+import model.ConnectionListener;
+import model.ConnectionMetrics;
+import model.ConnectionScheduler;
+import model.Event;
+import model.PipedTransport;
+import model.TcpTransport;
+import model.Telemetry;
+import model.ReconnectPolicy;
+import model.Transport;
+import utility.MetricsRegistry;
+
+/**
+ * Prova di carico della pipeline di connessione (ConnectionHandler, FrameDecoder) senza bluetooth.
+ * Un device simulato manda il numero di frame richiesto il più velocemente possibile e viene misurato
+ * quanti frame al secondo arrivano al ConnectionListener, che li passa a un ClosureTracker come il service. Alla fine vengono stampate le metriche della connessione.
+ *
+ * Uso: LoopbackLoadTest [pipe|tcp] [numero di frame] [timeout in secondi]
+ */
+public final class LoopbackLoadTest {
+
+    private static final int FRAMES_PER_WRITE = 64;
+
+    private LoopbackLoadTest() { }
+
+    public static void main(final String[] args) throws Exception {
+        final String mode = args.length > 0? args[0] : "pipe";
+        final int frames = args.length > 1? Integer.parseInt(args[1]) : 10000;
+        final int timeoutSeconds = args.length > 2? Integer.parseInt(args[2]) : 60;
+
+        final FrameWriter device = new FrameWriter(frames);
+        final CountingListener listener = new CountingListener(frames);
+        final Transport transport;
+        ServerSocket server = null;
+
+        if(mode.equals("tcp")) {
+            server = new ServerSocket(0);
+            startAcceptThread(server, device);
+            transport = new TcpTransport("localhost", server.getLocalPort());
+        } else {
+            transport = new PipedTransport("loopback", "00:00:00:00:00:00", new PipedTransport.DeviceSide() {
+                @Override
+                public void onConnected(InputStream fromPhone, OutputStream toPhone) {
+                    device.start(toPhone);
+                }
+            });
+        }
+
+        final ConnectionScheduler scheduler = new ConnectionScheduler(1);
+        final MetricsRegistry metrics = new MetricsRegistry();
+        final ConnectionHandler handler = new ConnectionHandler(transport, listener, scheduler, new ReconnectPolicy(),
+                new ConnectionMetrics(metrics, "loopback."));
+        handler.start();
+
+        final boolean completed = listener.await(timeoutSeconds);
+        final long elapsedNanos = System.nanoTime() - listener.connectedAt;
+
+        device.stop();
+        handler.stopComputing();
+        scheduler.shutdown();
+        scheduler.awaitTermination(TimeUnit.SECONDS.toMillis(timeoutSeconds));
+        if(server != null) {
+            server.close();
+        }
+
+        final long received = listener.probabilities.get();
+        System.out.println("Transport: " + mode);
+        System.out.println("Frame ricevuti: " + received + "/" + frames + (completed? "" : " (timeout)"));
+        System.out.println("Tempo: " + TimeUnit.NANOSECONDS.toMillis(elapsedNanos) + " ms");
+        System.out.println("Throughput: " + (long) (received / (elapsedNanos / 1e9)) + " frame/s");
+
+        final PrintWriter writer = new PrintWriter(System.out);
+        metrics.dump(writer);
+        writer.flush();
+    }
+
+    private static void startAcceptThread(final ServerSocket server, final FrameWriter device) {
+        final Thread accept = new Thread("accept") {
+            @Override
+            public void run() {
+                try {
+                    final Socket socket = server.accept();
+                    socket.setTcpNoDelay(true);
+                    device.start(socket.getOutputStream());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        accept.setDaemon(true);
+        accept.start();
+    }
+
+    /* Device simulato: scrive i frame in blocchi e tiene aperta la connessione finchè il test non termina */
+    private static final class FrameWriter {
+        private final int frames;
+        private final CountDownLatch stopped = new CountDownLatch(1);
+
+        FrameWriter(final int frames) {
+            this.frames = frames;
+        }
+
+        void start(final OutputStream output) {
+            final Thread writer = new Thread("device") {
+                @Override
+                public void run() {
+                    write(output);
+                }
+            };
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        void stop() {
+            this.stopped.countDown();
+        }
+
+        private void write(final OutputStream output) {
+            final StringBuilder block = new StringBuilder();
+            int sent = 0;
+
+            try {
+                while(sent < this.frames) {
+                    block.setLength(0);
+                    for(int i = 0; i < FRAMES_PER_WRITE && sent < this.frames; i++, sent++) {
+                        block.append(sent % 101).append('\n');
+                    }
+                    output.write(block.toString().getBytes("US-ASCII"));
+                    output.flush();
+                }
+                // Se il thread che scrive termina la pipe viene considerata rotta: resto vivo fino alla fine del test
+                this.stopped.await();
+                output.close();
+            } catch (IOException | InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /* Passa le probabilità al ClosureTracker come DeviceMonitor e le conta */
+    private static final class CountingListener implements ConnectionListener {
+        private final ClosureTracker closureTracker = new ClosureTracker(ClosureEvaluator.fromSettings());
+        private final AtomicLong probabilities = new AtomicLong();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final long expected;
+        private volatile long connectedAt = System.nanoTime();
+
+        CountingListener(final long expected) {
+            this.expected = expected;
+        }
+
+        boolean await(final int timeoutSeconds) throws InterruptedException {
+            return this.done.await(timeoutSeconds, TimeUnit.SECONDS);
+        }
+
+        @Override
+        public void notifyEvent(final Event event, final String message) {
+            if(event == Event.CONNECTION_ESTABLISHED) {
+                this.connectedAt = System.nanoTime();
+            } else if(event == Event.MESSAGE_RECEIVED
+                    && this.closureTracker.onMessage(message, System.currentTimeMillis()) >= 0) {
+                this.count();
+            }
+        }
+
+        @Override
+        public void notifyProbability(final int probability) {
+            this.closureTracker.onProbability(probability, System.currentTimeMillis());
+            this.count();
+        }
+
+        @Override
+        public void notifyTelemetry(final Telemetry telemetry) {
+            if(this.closureTracker.onTelemetry(telemetry, System.currentTimeMillis()) >= 0) {
+                this.count();
+            }
+            telemetry.recycle();
+        }
+
+        private void count() {
+            if(this.probabilities.incrementAndGet() == this.expected) {
+                this.done.countDown();
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.TimeUnit;
+
+import utility.FrameDecoder;
+
+/**
+ * Conversione del payload di un frame in probabilità: stringa + Integer.parseInt (come faceva notifyEvent)
+ * contro la lettura diretta dai byte di FrameDecoder.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ParseBenchmark {
+
+    @Param({"7", "73", "100"})
+    public String payload;
+
+    private byte[] frame; // payload seguito da '\n'
+    private final FrameDecoder decoder = new FrameDecoder();
+    private int lastProbability;
+
+    private final FrameDecoder.FrameHandler handler = new FrameDecoder.FrameHandler() {
+        @Override
+        public void onFrame(FrameDecoder frame) {
+            lastProbability = frame.parseInt();
+        }
+    };
+
+    @Setup
+    public void setup() throws UnsupportedEncodingException {
+        this.frame = (this.payload + '\n').getBytes("US-ASCII");
+    }
+
+    @Benchmark
+    public int stringParseInt() throws UnsupportedEncodingException {
+        return Integer.parseInt(new String(this.frame, 0, this.frame.length - 1, "US-ASCII"));
+    }
+
+    @Benchmark
+    public int frameDecoderParseInt() {
+        this.decoder.decode(this.frame, 0, this.frame.length, this.handler);
+        return this.lastProbability;
+    }
+}
@@ -0,0 +1,405 @@
+package benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import model.CaptureReader;
+import model.CaptureTransport;
+import model.ClosureEvaluator;
+import model.ClosureTracker;
+import model.ConnectionHandler;
+import model.ConnectionListener;
+import model.ConnectionMetrics;
+import model.ConnectionScheduler;
+import model.Event;
+import model.ProbabilityEstimator;
+import model.ReconnectPolicy;
+import model.TcpTransport;
+import model.Telemetry;
+import model.Transport;
+import utility.MetricsRegistry;
+import utility.Settings;
+
+/**
+ * Registra e riproduce i byte ricevuti da un device, per riprodurre su una JVM i problemi visti sul campo e per
+ * confrontare le modifiche allo stimatore su tracce reali.
+ *
+ * replay: i file di cattura scritti da CaptureTransport (sul telefono o con "record") vengono riprodotti, una
+ * connessione per file in ordine di nome, attraverso la stessa pipeline dell'app: ConnectionHandler e FrameDecoder,
+ * poi lo stesso ClosureTracker di ApplicationService (ClosureEvaluator aggiornato ad ogni probabilità e valutazione
+ * della chiusura ad ogni disconnessione). Ogni lettura restituisce esattamente i byte di una lettura
+ * registrata e gli istanti passati allo stimatore sono quelli della cattura, quindi le decisioni non dipendono dalla
+ * velocità di riproduzione: il digest finale cambia solo se cambia il comportamento della pipeline o dello stimatore.
+ * La velocità può essere quella originale (1), N volte più veloce o la massima possibile (max).
+ * Alla fine vengono stampate le decisioni, il throughput e la latenza dall'arrivo dei byte alla decisione.
+ *
+ * record: si connette via TCP ad un device (per esempio un emulatore) e registra le connessioni per il numero di
+ * secondi indicato.
+ *
+ * Uso: ReplayHarness replay [file .cap o cartella] [max|velocità] [kalman|ewma] [probabilità minima]
+ *      ReplayHarness record [host] [porta] [cartella] [secondi]
+ */
+public final class ReplayHarness {
+
+    private ReplayHarness() { }
+
+    public static void main(final String[] args) throws Exception {
+        if(args.length >= 2 && args[0].equals("replay")) {
+            replay(new File(args[1]),
+                    args.length > 2? args[2] : "max",
+                    args.length > 3? args[3] : "kalman",
+                    args.length > 4? Integer.parseInt(args[4]) : Settings.DEFAULT_MINIMUM_PROBABILITY);
+        } else if(args.length >= 5 && args[0].equals("record")) {
+            record(args[1], Integer.parseInt(args[2]), new File(args[3]), Integer.parseInt(args[4]));
+        } else {
+            System.out.println("Uso: ReplayHarness replay [file .cap o cartella] [max|velocità] [kalman|ewma] [probabilità minima]");
+            System.out.println("     ReplayHarness record [host] [porta] [cartella] [secondi]");
+        }
+    }
+
+    private static void replay(final File source, final String speed, final String estimator,
+                               final int minimumProbability) throws Exception {
+        final List<File> sessions = listCaptures(source);
+        if(sessions.isEmpty()) {
+            System.out.println("Nessun file di cattura in " + source);
+            return;
+        }
+
+        final ProbabilityEstimator probabilityEstimator = ClosureEvaluator.createEstimator(estimator);
+        final MetricsRegistry metrics = new MetricsRegistry();
+        final ReplayTransport transport = new ReplayTransport(sessions, speed.equals("max")? 0 : Double.parseDouble(speed));
+        final ReplayListener listener = new ReplayListener(transport, new ClosureTracker(new ClosureEvaluator(
+                probabilityEstimator, Settings.CLOSURE_WINDOW_SIZE, Settings.CLOSURE_TREND_HORIZON_MS)),
+                minimumProbability, metrics);
+
+        // Riconnessione immediata: la sessione successiva parte appena finisce quella precedente
+        final ConnectionScheduler scheduler = new ConnectionScheduler(1);
+        final ConnectionHandler handler = new ConnectionHandler(transport, listener, scheduler,
+                new ReconnectPolicy(0, 0, 0, 1, 0), new ConnectionMetrics(metrics, "replay."));
+
+        final long start = System.nanoTime();
+        handler.start();
+        transport.awaitFinished();
+        final long elapsedNanos = System.nanoTime() - start;
+
+        handler.stopComputing();
+        scheduler.shutdown();
+        scheduler.awaitTermination(TimeUnit.SECONDS.toMillis(10));
+
+        final double seconds = elapsedNanos / 1e9;
+        System.out.println("Sessioni: " + sessions.size() + ", letture: " + transport.records + ", byte: " + transport.bytes);
+        System.out.println("Probabilità: " + listener.samples + ", decisioni: " + listener.decisions
+                + " (chiusa " + listener.closed + ", non chiusa " + (listener.decisions - listener.closed) + ")");
+        System.out.println("Tempo: " + TimeUnit.NANOSECONDS.toMillis(elapsedNanos) + " ms, velocità " + speed
+                + ", stimatore " + estimator);
+        System.out.println("Throughput: " + (long) (transport.bytes / seconds) + " byte/s, "
+                + (long) (listener.samples / seconds) + " probabilità/s");
+        System.out.println("Digest: " + Long.toHexString(listener.digest.getValue()));
+
+        final PrintWriter writer = new PrintWriter(System.out);
+        metrics.dump(writer);
+        writer.flush();
+    }
+
+    private static void record(final String host, final int port, final File directory, final int seconds) throws Exception {
+        final CaptureTransport transport = new CaptureTransport(new TcpTransport(host, port), directory, Integer.MAX_VALUE);
+        final ConnectionScheduler scheduler = new ConnectionScheduler(1);
+        final ConnectionHandler handler = new ConnectionHandler(transport, new ConnectionListener() {
+            @Override
+            public void notifyEvent(Event event, String message) {
+                if(event != Event.MESSAGE_RECEIVED) {
+                    System.out.println(event + " " + message);
+                }
+            }
+
+            @Override
+            public void notifyProbability(int probability) { }
+
+            @Override
+            public void notifyTelemetry(Telemetry telemetry) {
+                telemetry.recycle();
+            }
+        }, scheduler);
+
+        handler.start();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        handler.stopComputing();
+        scheduler.shutdown();
+        scheduler.awaitTermination(TimeUnit.SECONDS.toMillis(10));
+        System.out.println("Catture scritte in " + directory);
+    }
+
+    private static List<File> listCaptures(final File source) {
+        final List<File> sessions = new ArrayList<>();
+
+        if(source.isDirectory()) {
+            final File[] files = source.listFiles();
+            if(files != null) {
+                Arrays.sort(files);
+                for(File file : files) {
+                    if(file.getName().endsWith(CaptureTransport.EXTENSION)) {
+                        sessions.add(file);
+                    }
+                }
+            }
+        } else if(source.isFile()) {
+            sessions.add(source);
+        }
+        return sessions;
+    }
+
+    /**
+     * Passa gli eventi del ConnectionHandler al ClosureTracker come ApplicationService.DeviceMonitor, usando come
+     * istante quello registrato nella cattura invece dell'orologio, e ne misura la latenza.
+     */
+    private static final class ReplayListener implements ConnectionListener {
+        private final ReplayTransport transport;
+        private final ClosureTracker closureTracker;
+        private final int minimumProbability;
+        private final MetricsRegistry.Histogram sampleLatency;
+        private final MetricsRegistry.Histogram decisionLatency;
+        private final CRC32 digest = new CRC32();
+        private final byte[] digestBuffer = new byte[13];
+        private long samples;
+        private long decisions;
+        private long closed;
+
+        ReplayListener(final ReplayTransport transport, final ClosureTracker closureTracker,
+                       final int minimumProbability, final MetricsRegistry metrics) {
+            this.transport = transport;
+            this.closureTracker = closureTracker;
+            this.minimumProbability = minimumProbability;
+            this.sampleLatency = metrics.histogram("replay.sample_latency_us", MetricsRegistry.MICROS_BUCKETS);
+            this.decisionLatency = metrics.histogram("replay.decision_latency_us", MetricsRegistry.MICROS_BUCKETS);
+        }
+
+        @Override
+        public void notifyEvent(final Event event, final String message) {
+            switch (event) {
+                case MESSAGE_RECEIVED:
+                    if(this.closureTracker.onMessage(message, this.transport.currentTime) >= 0) {
+                        this.sampleProcessed();
+                    }
+                    break;
+
+                case DISCONNECTED:
+                    final long time = this.transport.currentTime;
+                    final boolean carClosed = this.closureTracker.onDisconnect(time, this.minimumProbability);
+                    this.decisionLatency.record((System.nanoTime() - this.transport.deliveredAt) / 1000);
+
+                    this.decisions++;
+                    if(carClosed) {
+                        this.closed++;
+                    }
+                    this.addToDigest(time, this.closureTracker.getProbability(), carClosed? 1 : 0);
+                    System.out.println("Decisione " + this.decisions + ": istante " + time
+                            + ", probabilità " + this.closureTracker.getProbability()
+                            + ", trend " + String.format("%.4f", this.closureTracker.getTrend())
+                            + (carClosed? ", chiusa" : ", NON chiusa"));
+                    break;
+
+                default:
+                    break;
+            }
+        }
+
+        @Override
+        public void notifyProbability(final int probability) {
+            this.closureTracker.onProbability(probability, this.transport.currentTime);
+            this.sampleProcessed();
+        }
+
+        @Override
+        public void notifyTelemetry(final Telemetry telemetry) {
+            if(this.closureTracker.onTelemetry(telemetry, this.transport.currentTime) >= 0) {
+                this.sampleProcessed();
+            }
+            telemetry.recycle();
+        }
+
+        private void sampleProcessed() {
+            this.sampleLatency.record((System.nanoTime() - this.transport.deliveredAt) / 1000);
+            this.samples++;
+            this.addToDigest(this.transport.currentTime, this.closureTracker.getProbability(), 2);
+        }
+
+        private void addToDigest(final long time, final int probability, final int kind) {
+            for(int i = 0; i < 8; i++) {
+                this.digestBuffer[i] = (byte) (time >>> (56 - 8 * i));
+            }
+            for(int i = 0; i < 4; i++) {
+                this.digestBuffer[8 + i] = (byte) (probability >>> (24 - 8 * i));
+            }
+            this.digestBuffer[12] = (byte) kind;
+            this.digest.update(this.digestBuffer, 0, this.digestBuffer.length);
+        }
+    }
+
+    /**
+     * Transport che ad ogni connect() riproduce il file di cattura successivo. Quando i file sono finiti il transport
+     * non è più disponibile e awaitFinished() ritorna.
+     */
+    private static final class ReplayTransport implements Transport {
+        private final List<File> sessions;
+        private final double speed; // 0 = massima velocità
+        private final CountDownLatch finished = new CountDownLatch(1);
+        private int nextSession;
+        private long firstStartTime;
+        private long replayStartNanos;
+        private volatile CaptureReader reader;
+        private volatile InputStream input;
+
+        // Aggiornati dal thread che legge e letti dal listener sullo stesso thread
+        private long currentTime; // istante, nella cattura, dell'ultimo record restituito
+        private long deliveredAt; // System.nanoTime() in cui l'ultimo record è stato restituito
+        private long records;
+        private long bytes;
+
+        ReplayTransport(final List<File> sessions, final double speed) {
+            this.sessions = sessions;
+            this.speed = speed;
+        }
+
+        void awaitFinished() throws InterruptedException {
+            this.finished.await();
+        }
+
+        @Override
+        public String getName() {
+            return "replay";
+        }
+
+        @Override
+        public String getAddress() {
+            final CaptureReader reader = this.reader;
+            return reader == null? "" : reader.getAddress();
+        }
+
+        @Override
+        public synchronized boolean isAvailable() {
+            if(this.nextSession == this.sessions.size()) {
+                this.finished.countDown();
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public synchronized void connect() throws IOException {
+            if(this.nextSession == this.sessions.size()) {
+                this.finished.countDown();
+                throw new IOException("Catture terminate");
+            }
+
+            final CaptureReader reader = new CaptureReader(this.sessions.get(this.nextSession++));
+            if(this.replayStartNanos == 0) {
+                this.firstStartTime = reader.getStartTime();
+                this.replayStartNanos = System.nanoTime();
+            }
+            this.currentTime = reader.getStartTime();
+            this.reader = reader;
+            this.input = new ReplayInputStream(reader, (reader.getStartTime() - this.firstStartTime) * 1000000);
+        }
+
+        @Override
+        public boolean isConnected() {
+            return this.input != null;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            final InputStream input = this.input;
+            if(input == null) {
+                throw new IOException("Non connesso");
+            }
+            return input;
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            throw new IOException("La riproduzione non accetta byte dal telefono");
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            this.input = null;
+            final CaptureReader reader = this.reader;
+            if(reader != null) {
+                reader.close();
+            }
+        }
+
+        /* Aspetta l'istante del record, scalato per la velocità di riproduzione */
+        private void pace(final long captureNanos) throws IOException {
+            if(this.speed <= 0) {
+                return;
+            }
+
+            final long due = this.replayStartNanos + (long) (captureNanos / this.speed);
+            long wait;
+            while((wait = due - System.nanoTime()) > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Riproduzione interrotta");
+                }
+            }
+        }
+
+        /* Restituisce i byte di una lettura registrata alla volta; -1 alla fine della sessione */
+        private final class ReplayInputStream extends InputStream {
+            private final CaptureReader reader;
+            private final long sessionOffsetNanos; // inizio della sessione rispetto alla prima
+            private int position;
+            private int remaining;
+
+            ReplayInputStream(final CaptureReader reader, final long sessionOffsetNanos) {
+                this.reader = reader;
+                this.sessionOffsetNanos = sessionOffsetNanos;
+            }
+
+            @Override
+            public int read() throws IOException {
+                final byte[] single = new byte[1];
+                return this.read(single, 0, 1) < 0? -1 : single[0] & 0xFF;
+            }
+
+            @Override
+            public int read(final byte[] bytes, final int offset, final int length) throws IOException {
+                while(this.remaining == 0) {
+                    final boolean hasRecord = this.reader.next();
+                    if(hasRecord) {
+                        pace(this.sessionOffsetNanos + this.reader.getTimeNanos());
+                        currentTime = this.reader.getTimeMillis();
+                    }
+                    deliveredAt = System.nanoTime();
+
+                    if(!hasRecord || this.reader.getType() == CaptureTransport.RECORD_END) {
+                        return -1;
+                    }
+
+                    this.position = 0;
+                    this.remaining = this.reader.getLength();
+                    records++;
+                    ReplayTransport.this.bytes += this.remaining;
+                }
+
+                final int count = Math.min(length, this.remaining);
+                System.arraycopy(this.reader.getData(), this.position, bytes, offset, count);
+                this.position += count;
+                this.remaining -= count;
+                return count;
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import utility.FrameDecoder;
+import utility.Utility;
+
+/**
+ * Lettura di un frame dallo stream con Utility.readFromStream e con FrameDecoder, scrittura con Utility.sendToStream.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class StreamBenchmark {
+
+    private final ByteArrayInputStream input = new ByteArrayInputStream("73\n".getBytes());
+    private final FrameDecoder decoder = new FrameDecoder();
+    private final OutputStream sink = new NullOutputStream();
+    private int lastProbability;
+
+    private final FrameDecoder.FrameHandler handler = new FrameDecoder.FrameHandler() {
+        @Override
+        public void onFrame(FrameDecoder frame) {
+            lastProbability = frame.parseInt();
+        }
+    };
+
+    @Benchmark
+    public String readFromStream() throws IOException {
+        this.input.reset();
+        return Utility.readFromStream(this.input);
+    }
+
+    @Benchmark
+    public int frameDecoderReadFrom() throws IOException {
+        this.input.reset();
+        this.decoder.readFrom(this.input, this.handler);
+        return this.lastProbability;
+    }
+
+    @Benchmark
+    public void sendToStream() throws IOException {
+        Utility.sendToStream(this.sink, "73");
+    }
+
+    private static final class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) { }
+
+        @Override
+        public void write(byte[] b, int off, int len) { }
+    }
+}
@@ -0,0 +1,98 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.TimeUnit;
+
+import model.ConnectionListener;
+import model.Event;
+import model.Telemetry;
+import utility.BinaryProtocol;
+import utility.FrameDecoder;
+
+/**
+ * Ricezione di un frame di telemetria con cinque campi: stringa + split + Integer.parseInt contro la lettura diretta
+ * dai byte del decoder in un messaggio del pool, sia nel formato testuale che in quello binario.
+ * Con il profiler GC gc.alloc.rate.norm dei due casi con il pool deve essere 0.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TelemetryBenchmark {
+
+    private static final String TEXT = "p=87,d=0,l=1,w=2,b=12540";
+
+    private byte[] textFrame;
+    private byte[] binaryFrame;
+    private final FrameDecoder textDecoder = new FrameDecoder();
+    private final FrameDecoder binaryDecoder = new FrameDecoder();
+    private int checksum;
+
+    /* Come il listener dell'applicazione: legge i campi e ricicla il messaggio */
+    private final ConnectionListener listener = new ConnectionListener() {
+        @Override
+        public void notifyEvent(Event event, String message) { }
+
+        @Override
+        public void notifyProbability(int probability) { }
+
+        @Override
+        public void notifyTelemetry(Telemetry telemetry) {
+            checksum = telemetry.getProbability() + telemetry.getOpenDoors() + (telemetry.isLocked()? 1 : 0)
+                    + telemetry.getOpenWindows() + telemetry.getBatteryMillivolts();
+            telemetry.recycle();
+        }
+    };
+
+    private final FrameDecoder.FrameHandler handler = new FrameDecoder.FrameHandler() {
+        @Override
+        public void onFrame(FrameDecoder frame) {
+            // Stessa sequenza di ConnectionHandler
+            final Telemetry telemetry = Telemetry.obtain();
+            telemetry.read(frame);
+            listener.notifyTelemetry(telemetry);
+        }
+    };
+
+    @Setup
+    public void setup() throws UnsupportedEncodingException {
+        this.textFrame = (TEXT + '\n').getBytes("US-ASCII");
+
+        final byte[] frame = new byte[BinaryProtocol.MAX_FRAME_SIZE];
+        final int length = BinaryProtocol.encodeFrame(BinaryProtocol.TYPE_TELEMETRY, new int[] {
+                Telemetry.FIELD_PROBABILITY, 87, Telemetry.FIELD_DOORS, 0, Telemetry.FIELD_LOCKED, 1,
+                Telemetry.FIELD_WINDOWS, 2, Telemetry.FIELD_BATTERY, 12540}, frame, 0);
+        this.binaryFrame = new byte[length];
+        System.arraycopy(frame, 0, this.binaryFrame, 0, length);
+        this.binaryDecoder.setBinaryMode(true);
+    }
+
+    @Benchmark
+    public int stringSplit() throws UnsupportedEncodingException {
+        int sum = 0;
+        for(String pair : new String(this.textFrame, 0, this.textFrame.length - 1, "US-ASCII").split(",")) {
+            final String[] keyValue = pair.split("=");
+            sum += Integer.parseInt(keyValue[1]);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public int pooledText() {
+        this.textDecoder.decode(this.textFrame, 0, this.textFrame.length, this.handler);
+        return this.checksum;
+    }
+
+    @Benchmark
+    public int pooledBinary() {
+        this.binaryDecoder.decode(this.binaryFrame, 0, this.binaryFrame.length, this.handler);
+        return this.checksum;
+    }
+}